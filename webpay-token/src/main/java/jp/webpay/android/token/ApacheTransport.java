@@ -0,0 +1,319 @@
+package jp.webpay.android.token;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Transport using the legacy Apache HTTP client bundled with Android.
+ * This is the default on Android 2.2, where HttpURLConnection is less reliable.
+ * Connections are shared in the process, kept alive up to {@link #MAX_CONNECTIONS}
+ * and closed after {@link #IDLE_TIMEOUT_SECONDS} of inactivity.
+ */
+public class ApacheTransport implements Transport {
+    static final int MAX_CONNECTIONS = 4;
+    static final long IDLE_TIMEOUT_SECONDS = 30;
+    // a pool fully leased has nothing to warm, and a preconnect must not hold the thread of background requests
+    static final long PRECONNECT_POOL_TIMEOUT_MILLIS = 100;
+
+    private static ApacheTransport instance;
+
+    private final SchemeRegistry registry;
+    private final HttpParams params;
+    private final CountingConnectionManager connectionManager;
+    private final DefaultHttpClient httpClient;
+    private final PreconnectTracker preconnects = new PreconnectTracker(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    // local ports identify connections which preconnect opened, guarded by preconnects
+    private final Set<Integer> warmPorts = new HashSet<Integer>();
+
+    /**
+     * @return transport whose connection pool is shared in the process
+     */
+    public static synchronized ApacheTransport getInstance() {
+        if (instance == null) {
+            instance = new ApacheTransport(TlsContext.getDefault());
+        }
+        return instance;
+    }
+
+    /**
+     * @param tlsContext    context whose session cache and pins are used for https requests
+     */
+    public ApacheTransport(TlsContext tlsContext) {
+        registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", new TlsSocketFactory(tlsContext), 443));
+        params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+        HttpConnectionParams.setConnectionTimeout(params, Request.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSoTimeout(params, Request.DEFAULT_READ_TIMEOUT_MILLIS);
+
+        connectionManager = new CountingConnectionManager();
+        httpClient = new DefaultHttpClient(connectionManager, params);
+    }
+
+    @Override
+    public <T> T execute(final Request transportRequest, final ResponseReader<T> reader) throws IOException {
+        final HttpRequestBase request;
+        if (transportRequest.method.equals("POST")) {
+            HttpPost postRequest = new HttpPost(transportRequest.url);
+            postRequest.setEntity(new ByteArrayEntity(transportRequest.body));
+            request = postRequest;
+        } else {
+            request = new HttpGet(transportRequest.url);
+        }
+        for (Map.Entry<String, String> header : transportRequest.headers.entrySet()) {
+            request.setHeader(header.getKey(), header.getValue());
+        }
+        // parameters of the request take precedence over the ones of the client
+        HttpConnectionParams.setConnectionTimeout(request.getParams(), transportRequest.connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(request.getParams(), transportRequest.readTimeoutMillis);
+
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // aborting shuts down the connection and releases it from the pool
+        transportRequest.abortSignal.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                request.abort();
+            }
+        });
+        try {
+            // the client consumes the rest of the entity so that the connection returns to the pool
+            return httpClient.execute(request, new ResponseHandler<T>() {
+                @Override
+                public T handleResponse(HttpResponse response) throws IOException {
+                    transportRequest.events.responseStart();
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    HttpEntity entity = response.getEntity();
+                    InputStream content = entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+                    try {
+                        InputStream body = new BoundedInputStream(content,
+                                entity == null ? 0 : entity.getContentLength(), transportRequest.maxResponseBodySize);
+                        HeaderCollector headers = new HeaderCollector();
+                        for (Header header : response.getAllHeaders()) {
+                            headers.add(header.getName(), header.getValue());
+                        }
+                        T result = reader.read(statusCode, headers.toMap(), body);
+                        transportRequest.events.responseBodyEnd();
+                        return result;
+                    } catch (ResponseTooLargeException e) {
+                        // shut the connection down, or closing the body would read the rest of it to reuse the connection
+                        request.abort();
+                        content = null;
+                        throw e;
+                    } finally {
+                        if (content != null) {
+                            content.close();
+                        }
+                    }
+                }
+            });
+        } catch (org.apache.http.conn.ConnectTimeoutException e) {
+            throw new ConnectTimeoutException(e.getMessage());
+        } finally {
+            transportRequest.abortSignal.setAbortAction(null);
+        }
+    }
+
+    @Override
+    public void preconnect(String url) throws IOException {
+        if (!preconnects.begin()) {
+            return;
+        }
+        boolean warmed = false;
+        try {
+            URI uri = new URI(url);
+            // same target and route as DefaultHttpClient determines for a request, to share the pool
+            HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+            HttpRoute route = new HttpRoute(target, null, registry.getScheme(target.getSchemeName()).isLayered());
+            ManagedClientConnection connection;
+            try {
+                connection = connectionManager.requestUncountedConnection(route)
+                        .getConnection(PRECONNECT_POOL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ConnectionPoolTimeoutException e) {
+                // not warmed, the request waits for a connection anyway
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection");
+            }
+            try {
+                if (!connection.isOpen()) {
+                    // the TLS socket factory completes the handshake to verify the host
+                    connection.open(route, new BasicHttpContext(), params);
+                    synchronized (preconnects) {
+                        warmPorts.add(connection.getLocalPort());
+                    }
+                    warmed = true;
+                }
+                connection.markReusable();
+            } catch (IOException e) {
+                connection.abortConnection();
+                throw e;
+            } finally {
+                connectionManager.releaseConnection(connection, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            preconnects.end(warmed);
+        }
+    }
+
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return preconnects.toStats(connectionManager.opened.get(), connectionManager.reused.get());
+    }
+
+    private void onLeased(ManagedClientConnection connection) {
+        synchronized (preconnects) {
+            if (!connection.isOpen()) {
+                warmPorts.clear();
+                preconnects.onConnectionOpened();
+            } else if (warmPorts.remove(connection.getLocalPort())) {
+                preconnects.onWarmConnectionUsed();
+            }
+        }
+    }
+
+    /**
+     * Opens TLS connections from the shared context, completing the handshake to verify the host.
+     * Apache's SSLSocketFactory on Android cannot take a socket factory, so this replaces it.
+     */
+    private static class TlsSocketFactory implements LayeredSocketFactory {
+        private final TlsContext tlsContext;
+
+        TlsSocketFactory(TlsContext tlsContext) {
+            this.tlsContext = tlsContext;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort,
+                                    HttpParams params) throws IOException {
+            if (socket == null) {
+                socket = createSocket();
+            }
+            if (localAddress != null || localPort > 0) {
+                socket.bind(new InetSocketAddress(localAddress, Math.max(localPort, 0)));
+            }
+            try {
+                socket.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+            } catch (SocketTimeoutException e) {
+                throw new ConnectTimeoutException(e);
+            }
+            socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            return createSocket(socket, host, port, true);
+        }
+
+        // layering on a plain socket with the host and port lets the session cache find the session to resume
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            SSLSocket sslSocket = (SSLSocket) tlsContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+            try {
+                boolean verifiesHostname = TlsContext.enableEndpointIdentification(sslSocket);
+                sslSocket.startHandshake();
+                tlsContext.onHandshake(host, sslSocket.getSession(), verifiesHostname);
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+            return sslSocket;
+        }
+
+        @Override
+        public boolean isSecure(Socket socket) {
+            return socket instanceof SSLSocket;
+        }
+    }
+
+    /**
+     * Counts leased connections by whether they are already open, that is, kept alive in the pool.
+     */
+    private class CountingConnectionManager extends ThreadSafeClientConnManager {
+        private final AtomicLong opened = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+
+        CountingConnectionManager() {
+            super(params, registry);
+        }
+
+        ClientConnectionRequest requestUncountedConnection(HttpRoute route) {
+            return super.requestConnection(route, null);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    onLeased(connection);
+                    if (connection.isOpen()) {
+                        reused.incrementAndGet();
+                    } else {
+                        opened.incrementAndGet();
+                    }
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+}
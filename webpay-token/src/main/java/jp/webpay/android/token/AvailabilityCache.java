@@ -0,0 +1,251 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.AccountAvailability;
+
+/**
+ * Availability of accounts kept in memory for the process, keyed by publishable key and endpoints,
+ * so that an instance sending to a proxy or a stub server does not share values with the real API.
+ * <p>
+ * A value younger than the TTL is returned without a request. An older one is returned as well,
+ * while a request refreshes it in background (stale-while-revalidate), until it is too old to show.
+ * Callers arriving while a request is in flight wait for that request instead of sending another one.
+ * <p>
+ * With a {@link AvailabilitySnapshot} attached, values are also saved to a file and loaded in the next process
+ * as stale ones. Refreshing requests send the validators of the last response,
+ * so that an unchanged availability costs a 304 response without a body.
+ */
+class AvailabilityCache {
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long MAX_STALE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final AvailabilityCache instance = new AvailabilityCache(TTL_MILLIS, MAX_STALE_MILLIS);
+
+    private final long ttlNanos;
+    private final long maxStaleNanos;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private AvailabilitySnapshot snapshot;
+    // counts changes to save, so that the snapshot keeps the newest state
+    private long version = 0;
+
+    static AvailabilityCache getInstance() {
+        return instance;
+    }
+
+    AvailabilityCache(long ttlMillis, long maxStaleMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+    }
+
+    /**
+     * Load the snapshot into this cache, and save changes to it from now on.
+     * Values in memory are kept over the loaded ones. Only the first snapshot is used.
+     */
+    synchronized void attachSnapshot(AvailabilitySnapshot snapshot) {
+        if (this.snapshot != null) {
+            return;
+        }
+        this.snapshot = snapshot;
+        for (AvailabilitySnapshot.Record record : snapshot.load()) {
+            Entry entry = entries.get(record.key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(record.key, entry);
+            }
+            if (entry.value == null) {
+                entry.value = record.value;
+                entry.etag = record.etag;
+                entry.lastModified = record.lastModified;
+                // it may have changed while the app was not running, so revalidate on the first use
+                entry.fetchedAt = System.nanoTime() - ttlNanos;
+            }
+        }
+    }
+
+    /**
+     * @param webpay    instance to send a request with if needed, whose publishable key and endpoints are the key
+     * @return future of the cached value, or of the request in flight.
+     *         Cancelling it does not cancel the request shared with others.
+     */
+    WebPayFuture<AccountAvailability> get(WebPay webpay) {
+        String key = keyOf(webpay.getPublishableKey(), webpay.getEndpoints());
+        WebPayFuture<AccountAvailability> result = new WebPayFuture<AccountAvailability>();
+        WebPayFuture<AccountAvailability> inFlight;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            long age = System.nanoTime() - entry.fetchedAt;
+            if (entry.value != null && age < ttlNanos + maxStaleNanos) {
+                AccountAvailability cached = entry.value;
+                if (age >= ttlNanos && entry.inFlight == null) {
+                    refresh(webpay, entry);
+                }
+                result.complete(cached);
+                return result;
+            }
+            // the request may complete right away on a synchronous executor
+            inFlight = entry.inFlight != null ? entry.inFlight : refresh(webpay, entry);
+        }
+        join(inFlight, result);
+        return result;
+    }
+
+    /**
+     * @return value not too old to show, or null without sending a request
+     */
+    synchronized AccountAvailability peek(String publishableKey, List<Uri> endpoints) {
+        Entry entry = entries.get(keyOf(publishableKey, endpoints));
+        if (entry == null || entry.value == null
+                || System.nanoTime() - entry.fetchedAt >= ttlNanos + maxStaleNanos) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    void clear() {
+        AvailabilitySnapshot toDelete;
+        long clearedVersion;
+        synchronized (this) {
+            entries.clear();
+            toDelete = snapshot;
+            clearedVersion = ++version;
+        }
+        if (toDelete != null) {
+            toDelete.delete(clearedVersion);
+        }
+    }
+
+    // also the key of records in the snapshot
+    static String keyOf(String publishableKey, List<Uri> endpoints) {
+        StringBuilder key = new StringBuilder(publishableKey);
+        for (Uri endpoint : endpoints) {
+            key.append(' ').append(endpoint);
+        }
+        return key.toString();
+    }
+
+    // called while holding the lock, so that one request is sent per key
+    private WebPayFuture<AccountAvailability> refresh(WebPay webpay, final Entry entry) {
+        final WebPayFuture<AccountAvailability> shared = new WebPayFuture<AccountAvailability>();
+        entry.inFlight = shared;
+        // validators are sent only with a value to fall back on
+        String etag = entry.value != null ? entry.etag : null;
+        String lastModified = entry.value != null ? entry.lastModified : null;
+        webpay.fetchAvailability(etag, lastModified).addListener(new WebPayListener<Fetched>() {
+            @Override
+            public void onCreate(Fetched fetched) {
+                AccountAvailability value;
+                boolean changed;
+                synchronized (AvailabilityCache.this) {
+                    entry.inFlight = null;
+                    changed = fetched.value != null;
+                    if (changed) {
+                        entry.value = fetched.value;
+                        entry.etag = fetched.etag;
+                        entry.lastModified = fetched.lastModified;
+                    } else {
+                        // validators may be updated by a 304 response
+                        if (fetched.etag != null) {
+                            entry.etag = fetched.etag;
+                        }
+                        if (fetched.lastModified != null) {
+                            entry.lastModified = fetched.lastModified;
+                        }
+                    }
+                    entry.fetchedAt = System.nanoTime();
+                    value = entry.value;
+                }
+                if (changed) {
+                    save();
+                }
+                if (value != null) {
+                    shared.complete(value);
+                } else {
+                    shared.fail(new IllegalStateException("Not modified without a cached value"));
+                }
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                // a stale value, if any, is kept for the next caller to try again
+                synchronized (AvailabilityCache.this) {
+                    entry.inFlight = null;
+                }
+                shared.fail(cause);
+            }
+        }, WebPayExecutors.direct());
+        return shared;
+    }
+
+    // saves on the thread which completed the request, not on the caller's
+    private void save() {
+        AvailabilitySnapshot target;
+        List<AvailabilitySnapshot.Record> records = new ArrayList<AvailabilitySnapshot.Record>();
+        long savedVersion;
+        synchronized (this) {
+            if (snapshot == null) {
+                return;
+            }
+            target = snapshot;
+            savedVersion = ++version;
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                if (entry.value != null) {
+                    records.add(new AvailabilitySnapshot.Record(item.getKey(), entry.value, entry.etag,
+                            entry.lastModified));
+                }
+            }
+        }
+        target.save(records, savedVersion);
+    }
+
+    private static void join(WebPayFuture<AccountAvailability> shared, final WebPayFuture<AccountAvailability> result) {
+        shared.addListener(new WebPayListener<AccountAvailability>() {
+            @Override
+            public void onCreate(AccountAvailability availability) {
+                result.complete(availability);
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                result.fail(cause);
+            }
+        }, WebPayExecutors.direct());
+    }
+
+    /**
+     * Response to a possibly conditional availability request.
+     */
+    static class Fetched {
+        /**
+         * availability in the response, or null for 304 Not Modified
+         */
+        final AccountAvailability value;
+        final String etag;
+        final String lastModified;
+
+        Fetched(AccountAvailability value, String etag, String lastModified) {
+            this.value = value;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class Entry {
+        private AccountAvailability value;
+        private String etag;
+        private String lastModified;
+        private long fetchedAt;
+        private WebPayFuture<AccountAvailability> inFlight;
+    }
+}
@@ -0,0 +1,131 @@
+package jp.webpay.android.token;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.webpay.android.token.model.AccountAvailability;
+
+/**
+ * File keeping the last availability of accounts across processes, with validators of the responses.
+ * The file is small enough to read on the main thread when the first screen needs it.
+ * A broken or unknown file is ignored, since the availability is fetched again anyway.
+ */
+class AvailabilitySnapshot {
+    // 2 keys records by publishable key and endpoints
+    private static final int VERSION = 2;
+
+    private final File file;
+    private long savedVersion = -1;
+
+    AvailabilitySnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return records in the file, or an empty list if it is missing or broken
+     */
+    synchronized List<Record> load() {
+        List<Record> records = new ArrayList<Record>();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024));
+        } catch (FileNotFoundException e) {
+            return records;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return records;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String etag = in.readBoolean() ? in.readUTF() : null;
+                String lastModified = in.readBoolean() ? in.readUTF() : null;
+                records.add(new Record(key, AccountAvailability.readFrom(in), etag, lastModified));
+            }
+        } catch (IOException e) {
+            records.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return records;
+    }
+
+    /**
+     * Replace the file with the records, written to a temporary file and renamed.
+     *
+     * @param records    all records to keep
+     * @param version    counter of changes the records reflect, so that an older state
+     *                   saved later from another thread does not overwrite a newer one
+     */
+    synchronized void save(List<Record> records, long version) {
+        if (version <= savedVersion) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1024));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(records.size());
+                for (Record record : records) {
+                    out.writeUTF(record.key);
+                    writeOptional(out, record.etag);
+                    writeOptional(out, record.lastModified);
+                    record.value.writeTo(out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Failed to rename " + temporary);
+            }
+            savedVersion = version;
+        } catch (IOException ignored) {
+            // the snapshot is an optimization, the next process fetches availability again
+            temporary.delete();
+        }
+    }
+
+    synchronized void delete(long version) {
+        file.delete();
+        savedVersion = version;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static class Record {
+        final String key;
+        final AccountAvailability value;
+        final String etag;
+        final String lastModified;
+
+        Record(String key, AccountAvailability value, String etag, String lastModified) {
+            this.key = key;
+            this.value = value;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package jp.webpay.android.token;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response body which fails with {@link ResponseTooLargeException} once more than the limit is read.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count = 0;
+
+    /**
+     * @param in               body of the response
+     * @param declaredLength   length in the Content-Length header, or -1 if unknown
+     * @param limit            maximum body size in bytes
+     * @throws ResponseTooLargeException if the declared length is already over the limit
+     */
+    BoundedInputStream(InputStream in, long declaredLength, long limit) throws ResponseTooLargeException {
+        super(in);
+        if (declaredLength > limit) {
+            throw new ResponseTooLargeException(limit);
+        }
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        // read one byte more than the limit allows to tell an exact fit from an overflow
+        int read = super.read(buffer, offset, (int) Math.min(length, limit - count + 1));
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, limit - count + 1));
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long read) throws ResponseTooLargeException {
+        count += read;
+        if (count > limit) {
+            throw new ResponseTooLargeException(limit);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jp.webpay.android.token;
+
+/**
+ * Pool of byte buffers to read response bodies into, shared in the process.
+ * A buffer is borrowed for the time a response is read and returned when parsing finishes,
+ * so that a request allocates no buffer once the pool is warm.
+ * Buffers returned while {@link #MAX_POOLED_BUFFERS} are already pooled are left to the GC.
+ */
+public final class BufferPool {
+    public static final int BUFFER_SIZE = 4096;
+    static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final BufferPool defaultPool = new BufferPool(MAX_POOLED_BUFFERS);
+
+    private final byte[][] pooled;
+    private int pooledCount = 0;
+    private int inUse = 0;
+    private int highWater = 0;
+    private long acquisitions = 0;
+    private long hits = 0;
+
+    /**
+     * @return pool used by the bundled transports and {@link WebPay}
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    BufferPool(int maxPooledBuffers) {
+        pooled = new byte[maxPooledBuffers][];
+    }
+
+    /**
+     * @return buffer of {@link #BUFFER_SIZE} bytes, which must be passed to {@link #release(byte[])} once
+     */
+    synchronized byte[] acquire() {
+        acquisitions++;
+        inUse++;
+        highWater = Math.max(highWater, inUse);
+        if (pooledCount > 0) {
+            hits++;
+            byte[] buffer = pooled[--pooledCount];
+            pooled[pooledCount] = null;
+            return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    synchronized void release(byte[] buffer) {
+        inUse--;
+        if (pooledCount < pooled.length) {
+            pooled[pooledCount++] = buffer;
+        }
+    }
+
+    /**
+     * @return snapshot of counters of this pool
+     */
+    public synchronized BufferPoolStats getStats() {
+        return new BufferPoolStats(acquisitions, hits, highWater, pooledCount);
+    }
+}
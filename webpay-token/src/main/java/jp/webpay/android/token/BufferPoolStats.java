@@ -0,0 +1,44 @@
+package jp.webpay.android.token;
+
+/**
+ * Snapshot of counters of a {@link BufferPool}.
+ */
+public class BufferPoolStats {
+    /**
+     * number of buffers borrowed from the pool
+     */
+    public final long acquisitions;
+    /**
+     * number of borrowed buffers which were reused instead of allocated
+     */
+    public final long hits;
+    /**
+     * the most buffers borrowed at once, which is the memory responses took at the peak
+     */
+    public final int highWaterBuffers;
+    /**
+     * number of buffers kept in the pool now
+     */
+    public final int pooledBuffers;
+
+    public BufferPoolStats(long acquisitions, long hits, int highWaterBuffers, int pooledBuffers) {
+        this.acquisitions = acquisitions;
+        this.hits = hits;
+        this.highWaterBuffers = highWaterBuffers;
+        this.pooledBuffers = pooledBuffers;
+    }
+
+    /**
+     * @return ratio of reused buffers in 0..1, or 0 before any acquisition
+     */
+    public double getHitRate() {
+        return acquisitions == 0 ? 0 : (double) hits / acquisitions;
+    }
+
+    /**
+     * @return {@link #highWaterBuffers} in bytes
+     */
+    public long getHighWaterBytes() {
+        return (long) highWaterBuffers * BufferPool.BUFFER_SIZE;
+    }
+}
@@ -0,0 +1,234 @@
+package jp.webpay.android.token;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.webpay.android.token.json.JsonWriter;
+
+/**
+ * Records the phases of requests and writes them in the Trace Event Format of Chrome,
+ * which chrome://tracing and Perfetto open, for offline analysis of where checkout time goes.
+ * <pre>{@code
+ * ChromeTraceExporter exporter = new ChromeTraceExporter();
+ * WebPay webpay = new WebPay.Builder(WEBPAY_PUBLISHABLE_KEY).eventListener(exporter).build();
+ * // after some requests
+ * exporter.writeTo(new FileOutputStream(new File(context.getCacheDir(), "webpay-trace.json")));
+ * }</pre>
+ * Each request is a row of the trace, whose id is the request id. The "request" span runs from the submission
+ * to the result, enclosing "queue", "dns", "connect", "tls", "wait" from the request written to the first
+ * byte of the response, and "download" of the response. Parsing and callbacks are marked as instants.
+ * <p>
+ * Events are kept in memory up to the given maximum, and later ones are dropped.
+ */
+public class ChromeTraceExporter extends WebPayEventListener {
+    /**
+     * the maximum number of events kept unless specified, about 1000 requests
+     */
+    public static final int DEFAULT_MAX_EVENTS = 10000;
+
+    private final int maxEvents;
+    private final List<TraceEvent> events = new ArrayList<TraceEvent>();
+    // start times of spans not ended yet, by request id and then by span name
+    private final Map<Long, Map<String, Long>> openSpans = new HashMap<Long, Map<String, Long>>();
+    // time of the first event received, which is 0 in the trace
+    private long origin;
+    private boolean started = false;
+    private long droppedCount = 0;
+
+    public ChromeTraceExporter() {
+        this(DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * @param maxEvents    the maximum number of events to keep
+     */
+    public ChromeTraceExporter(int maxEvents) {
+        if (maxEvents <= 0) {
+            throw new IllegalArgumentException("maxEvents must be positive");
+        }
+        this.maxEvents = maxEvents;
+    }
+
+    @Override
+    public void queueStart(long requestId, long nanoTime) {
+        begin(requestId, "request", nanoTime);
+        begin(requestId, "queue", nanoTime);
+    }
+
+    @Override
+    public void queueEnd(long requestId, long nanoTime) {
+        end(requestId, "queue", nanoTime, null);
+    }
+
+    @Override
+    public void dnsStart(long requestId, long nanoTime) {
+        begin(requestId, "dns", nanoTime);
+    }
+
+    @Override
+    public void dnsEnd(long requestId, long nanoTime) {
+        end(requestId, "dns", nanoTime, null);
+    }
+
+    @Override
+    public void connectStart(long requestId, long nanoTime) {
+        begin(requestId, "connect", nanoTime);
+    }
+
+    @Override
+    public void connectEnd(long requestId, long nanoTime) {
+        end(requestId, "connect", nanoTime, null);
+    }
+
+    @Override
+    public void secureConnectStart(long requestId, long nanoTime) {
+        begin(requestId, "tls", nanoTime);
+    }
+
+    @Override
+    public void secureConnectEnd(long requestId, long nanoTime) {
+        end(requestId, "tls", nanoTime, null);
+    }
+
+    @Override
+    public void requestBodyEnd(long requestId, long nanoTime) {
+        begin(requestId, "wait", nanoTime);
+    }
+
+    @Override
+    public void responseStart(long requestId, long nanoTime) {
+        end(requestId, "wait", nanoTime, null);
+        begin(requestId, "download", nanoTime);
+    }
+
+    @Override
+    public void responseBodyEnd(long requestId, long nanoTime) {
+        end(requestId, "download", nanoTime, null);
+    }
+
+    @Override
+    public void parseEnd(long requestId, long nanoTime) {
+        instant(requestId, "parsed", nanoTime);
+    }
+
+    @Override
+    public synchronized void requestEnd(long requestId, long nanoTime, Throwable cause) {
+        end(requestId, "request", nanoTime, cause == null ? null : cause.toString());
+        // spans left open by a failed attempt have no end
+        openSpans.remove(requestId);
+    }
+
+    @Override
+    public void callbackEnd(long requestId, long nanoTime) {
+        instant(requestId, "callback", nanoTime);
+    }
+
+    /**
+     * @return the number of events dropped since the maximum was reached
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Write the events recorded so far as a JSON object with "traceEvents". The stream is not closed.
+     *
+     * @param out    stream to write to
+     * @throws IOException if writing failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        List<TraceEvent> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<TraceEvent>(events);
+        }
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        JsonWriter writer = new JsonWriter(buffered);
+        writer.beginObject().name("traceEvents").beginArray();
+        for (TraceEvent event : snapshot) {
+            writer.beginObject()
+                    .name("name").value(event.name)
+                    .name("cat").value("webpay")
+                    .name("ph").value(event.durationNanos < 0 ? "i" : "X")
+                    .name("ts").value(event.startNanos / 1000)
+                    .name("pid").value(1)
+                    .name("tid").value(event.requestId);
+            if (event.durationNanos < 0) {
+                writer.name("s").value("t");
+            } else {
+                writer.name("dur").value(event.durationNanos / 1000);
+            }
+            if (event.error != null) {
+                writer.name("args").beginObject().name("error").value(event.error).endObject();
+            }
+            writer.endObject();
+        }
+        writer.endArray().name("displayTimeUnit").value("ms").endObject();
+        writer.flush();
+    }
+
+    private synchronized void begin(long requestId, String name, long nanoTime) {
+        setOrigin(nanoTime);
+        Map<String, Long> spans = openSpans.get(requestId);
+        if (spans == null) {
+            spans = new HashMap<String, Long>();
+            openSpans.put(requestId, spans);
+        }
+        spans.put(name, nanoTime);
+    }
+
+    private synchronized void end(long requestId, String name, long nanoTime, String error) {
+        Map<String, Long> spans = openSpans.get(requestId);
+        Long startedAt = spans == null ? null : spans.remove(name);
+        if (startedAt != null) {
+            add(new TraceEvent(requestId, name, startedAt, nanoTime - startedAt, error));
+        }
+    }
+
+    private synchronized void instant(long requestId, String name, long nanoTime) {
+        setOrigin(nanoTime);
+        add(new TraceEvent(requestId, name, nanoTime, -1, null));
+    }
+
+    // called while holding the lock
+    private void setOrigin(long nanoTime) {
+        if (!started) {
+            origin = nanoTime;
+            started = true;
+        }
+    }
+
+    // called while holding the lock
+    private void add(TraceEvent event) {
+        if (events.size() >= maxEvents) {
+            droppedCount++;
+            return;
+        }
+        events.add(event.relativeTo(origin));
+    }
+
+    private static class TraceEvent {
+        final long requestId;
+        final String name;
+        final long startNanos;
+        // negative for an instant
+        final long durationNanos;
+        final String error;
+
+        TraceEvent(long requestId, String name, long startNanos, long durationNanos, String error) {
+            this.requestId = requestId;
+            this.name = name;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.error = error;
+        }
+
+        TraceEvent relativeTo(long origin) {
+            return new TraceEvent(requestId, name, startNanos - origin, durationNanos, error);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests while WebPay or the network path to it is failing, so that a checkout
+ * fails at once with {@link CircuitOpenException} instead of waiting for a timeout.
+ * <p>
+ * The breaker keeps the outcomes of the most recent attempts. An attempt fails if it did not reach WebPay,
+ * WebPay answered with a server error, or it took longer than the slow call threshold.
+ * Card errors and other client errors are successes, since WebPay answered them.
+ * When the ratio of failures in the window reaches the threshold, the breaker opens and rejects requests.
+ * After the cooldown, it lets a few probe requests through (half-open), and closes if all of them succeed
+ * or opens again if any fails.
+ * <p>
+ * Instances built without {@link WebPay.Builder#circuitBreaker(CircuitBreaker)} nor a transport of their own
+ * share one breaker for each list of endpoints, since their requests take the same path.
+ * {@link #getDefault()} is the one of api.webpay.jp. An instance with its own transport has its own breaker,
+ * so that a failing stub does not open the breaker of others.
+ * Observe it by {@link #getState()} or {@link #addStateListener(StateListener, Executor)}
+ * to show a degraded-mode message.
+ */
+public final class CircuitBreaker {
+    public enum State {
+        /**
+         * requests are sent
+         */
+        CLOSED,
+        /**
+         * requests fail with {@link CircuitOpenException} until the cooldown ends
+         */
+        OPEN,
+        /**
+         * a few probe requests are sent, and others fail with {@link CircuitOpenException}
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Receives transitions of the state.
+     */
+    public interface StateListener {
+        void onStateChanged(CircuitBreaker breaker, State state);
+    }
+
+    // shared breakers by the endpoints of instances
+    private static final Map<List<Uri>, CircuitBreaker> sharedBreakers = new HashMap<List<Uri>, CircuitBreaker>();
+
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallThresholdNanos;
+    private final long cooldownNanos;
+    private final int probeCount;
+    private final Clock clock;
+    // outcomes of recent attempts, true for a failure
+    private final boolean[] window;
+    private final List<Registration> registrations = new ArrayList<Registration>();
+    private int count = 0;
+    private int next = 0;
+    private int failures = 0;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight = 0;
+    private int probesSucceeded = 0;
+
+    /**
+     * @return breaker shared by instances of the default endpoint built without
+     * {@link WebPay.Builder#circuitBreaker(CircuitBreaker)} nor {@link WebPay.Builder#transport(Transport)}
+     */
+    public static CircuitBreaker getDefault() {
+        return getShared(WebPay.DEFAULT_ENDPOINTS);
+    }
+
+    static synchronized CircuitBreaker getShared(List<Uri> baseUris) {
+        CircuitBreaker breaker = sharedBreakers.get(baseUris);
+        if (breaker == null) {
+            breaker = new Builder().build();
+            sharedBreakers.put(new ArrayList<Uri>(baseUris), breaker);
+        }
+        return breaker;
+    }
+
+    private CircuitBreaker(Builder builder) {
+        window = new boolean[builder.windowSize];
+        minimumCalls = builder.minimumCalls;
+        failureRateThreshold = builder.failureRateThreshold;
+        slowCallThresholdNanos = builder.slowCallThresholdNanos;
+        cooldownNanos = builder.cooldownNanos;
+        probeCount = builder.probeCount;
+        clock = builder.clock;
+    }
+
+    /**
+     * @return the current state. An open breaker whose cooldown ended is reported as half-open.
+     */
+    public State getState() {
+        State changed;
+        State current;
+        synchronized (this) {
+            changed = endCooldown();
+            current = state;
+        }
+        notifyListeners(changed);
+        return current;
+    }
+
+    /**
+     * @return milliseconds until an open breaker lets probe requests through, or 0 if it is not open
+     */
+    public synchronized long getRemainingCooldownMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openedAt + cooldownNanos - clock.nanoTime()));
+    }
+
+    /**
+     * Close the breaker and forget recent outcomes, such as when the network of the device changed.
+     */
+    public void reset() {
+        State changed;
+        synchronized (this) {
+            changed = moveTo(State.CLOSED);
+            clearWindow();
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * @param listener    listener to call on each transition
+     * @param executor    executor to call the listener on, such as {@link WebPayExecutors#mainThread()}
+     */
+    public synchronized void addStateListener(StateListener listener, Executor executor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        registrations.add(new Registration(listener, executor));
+    }
+
+    public synchronized void removeStateListener(StateListener listener) {
+        for (int i = registrations.size() - 1; i >= 0; i--) {
+            if (registrations.get(i).listener == listener) {
+                registrations.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Ask to send an attempt. A caller which got permission must report it by
+     * {@link #onComplete(boolean, long)} or {@link #onIgnored()}.
+     *
+     * @throws CircuitOpenException if the attempt must not be sent
+     */
+    void acquire() throws CircuitOpenException {
+        State changed;
+        synchronized (this) {
+            changed = endCooldown();
+            if (state == State.CLOSED) {
+                changed = null;
+            } else if (state == State.HALF_OPEN && probesInFlight + probesSucceeded < probeCount) {
+                probesInFlight++;
+            } else {
+                long remaining = state == State.OPEN
+                        ? TimeUnit.NANOSECONDS.toMillis(openedAt + cooldownNanos - clock.nanoTime()) : 0;
+                throw new CircuitOpenException(Math.max(0, remaining));
+            }
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * @param failed          true if the attempt did not reach WebPay or got a server error
+     * @param latencyNanos    time the attempt took
+     */
+    void onComplete(boolean failed, long latencyNanos) {
+        failed = failed || latencyNanos >= slowCallThresholdNanos;
+        State changed = null;
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (failed) {
+                    changed = open();
+                } else if (++probesSucceeded >= probeCount) {
+                    changed = moveTo(State.CLOSED);
+                    clearWindow();
+                }
+            } else if (state == State.CLOSED) {
+                record(failed);
+                if (count >= minimumCalls && failures >= failureRateThreshold * count) {
+                    changed = open();
+                }
+            }
+            // attempts sent before the breaker opened do not count
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * Report an attempt which tells nothing about WebPay, such as a cancelled one.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    // called while holding the lock
+    private State endCooldown() {
+        if (state == State.OPEN && clock.nanoTime() - openedAt >= cooldownNanos) {
+            return moveTo(State.HALF_OPEN);
+        }
+        return null;
+    }
+
+    private State open() {
+        openedAt = clock.nanoTime();
+        return moveTo(State.OPEN);
+    }
+
+    private State moveTo(State newState) {
+        if (state == newState) {
+            return null;
+        }
+        state = newState;
+        probesInFlight = 0;
+        probesSucceeded = 0;
+        return newState;
+    }
+
+    private void record(boolean failed) {
+        if (count == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            count++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void clearWindow() {
+        count = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    private void notifyListeners(final State changed) {
+        if (changed == null) {
+            return;
+        }
+        List<Registration> toNotify;
+        synchronized (this) {
+            toNotify = new ArrayList<Registration>(registrations);
+        }
+        for (final Registration registration : toNotify) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStateChanged(CircuitBreaker.this, changed);
+                }
+            });
+        }
+    }
+
+    private static class Registration {
+        private final StateListener listener;
+        private final Executor executor;
+
+        private Registration(StateListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    public static class Builder {
+        private int windowSize = 20;
+        private int minimumCalls = 10;
+        private double failureRateThreshold = 0.5;
+        private long slowCallThresholdNanos = TimeUnit.SECONDS.toNanos(10);
+        private long cooldownNanos = TimeUnit.SECONDS.toNanos(30);
+        private int probeCount = 2;
+        private Clock clock = Clock.SYSTEM;
+
+        /**
+         * @param windowSize      number of recent attempts to take the failure rate from. Default is 20.
+         * @param minimumCalls    number of attempts needed before the breaker may open. Default is 10.
+         * @return this builder
+         */
+        public Builder window(int windowSize, int minimumCalls) {
+            if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+                throw new IllegalArgumentException("minimumCalls must be from 1 to windowSize");
+            }
+            this.windowSize = windowSize;
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * @param failureRateThreshold    ratio of failures in the window to open at, from 0 to 1. Default is 0.5.
+         * @return this builder
+         */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+                throw new IllegalArgumentException("failureRateThreshold must be greater than 0 and at most 1");
+            }
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * @param threshold    time after which a successful attempt counts as a failure. Default is 10 seconds.
+         * @param unit         the time unit of the threshold
+         * @return this builder
+         */
+        public Builder slowCallThreshold(long threshold, TimeUnit unit) {
+            slowCallThresholdNanos = unit.toNanos(threshold);
+            return this;
+        }
+
+        /**
+         * @param cooldown    time to reject requests before probing. Default is 30 seconds.
+         * @param unit        the time unit of the cooldown
+         * @return this builder
+         */
+        public Builder cooldown(long cooldown, TimeUnit unit) {
+            cooldownNanos = unit.toNanos(cooldown);
+            return this;
+        }
+
+        /**
+         * @param probeCount    number of successful probes needed to close. Default is 2.
+         * @return this builder
+         */
+        public Builder probeCount(int probeCount) {
+            if (probeCount < 1) {
+                throw new IllegalArgumentException("probeCount must be positive");
+            }
+            this.probeCount = probeCount;
+            return this;
+        }
+
+        Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+}
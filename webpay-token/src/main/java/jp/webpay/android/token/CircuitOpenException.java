@@ -0,0 +1,23 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+
+/**
+ * The request was not sent, since the {@link CircuitBreaker} found WebPay unreachable by recent requests.
+ * Apps can tell the user at once that the service is temporarily unavailable.
+ */
+public class CircuitOpenException extends IOException {
+    private final long remainingCooldownMillis;
+
+    public CircuitOpenException(long remainingCooldownMillis) {
+        super("WebPay is temporarily unavailable, retry in " + remainingCooldownMillis + " ms");
+        this.remainingCooldownMillis = remainingCooldownMillis;
+    }
+
+    /**
+     * @return milliseconds until the breaker lets probe requests through
+     */
+    public long getRemainingCooldownMillis() {
+        return remainingCooldownMillis;
+    }
+}
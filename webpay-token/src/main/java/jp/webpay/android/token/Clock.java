@@ -0,0 +1,31 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time to wait between attempts, replaced by a virtual one in tests.
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public boolean await(CountDownLatch wakeUp, long nanos) throws InterruptedException {
+            return wakeUp.await(nanos, TimeUnit.NANOSECONDS);
+        }
+    };
+
+    long nanoTime();
+
+    /**
+     * Wait until the time passes or the latch is opened, whichever comes first.
+     *
+     * @return true if the latch was opened
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    boolean await(CountDownLatch wakeUp, long nanos) throws InterruptedException;
+}
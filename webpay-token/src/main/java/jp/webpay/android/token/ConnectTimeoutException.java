@@ -0,0 +1,22 @@
+package jp.webpay.android.token;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * The connection was not established in time, so the request was not sent.
+ * Transports throw this instead of a plain {@link SocketTimeoutException}, which may also mean
+ * that the request reached the server, so that {@link RetryPolicy} can tell them apart.
+ */
+public class ConnectTimeoutException extends SocketTimeoutException {
+    public ConnectTimeoutException(String message) {
+        super(message);
+    }
+
+    /**
+     * @param cause    timeout thrown by the HTTP engine
+     */
+    public ConnectTimeoutException(SocketTimeoutException cause) {
+        super(cause.getMessage());
+        initCause(cause);
+    }
+}
@@ -0,0 +1,40 @@
+package jp.webpay.android.token;
+
+/**
+ * Snapshot of connection counters of a {@link Transport}.
+ */
+public class ConnectionStats {
+    /**
+     * number of requests that opened a new connection (DNS, TCP and TLS handshake)
+     */
+    public final long connectionsOpened;
+    /**
+     * number of requests that were sent over a kept-alive connection
+     */
+    public final long connectionsReused;
+    /**
+     * number of connections opened in advance by {@link Transport#preconnect(String)}
+     */
+    public final long preconnects;
+    /**
+     * number of requests that were sent over a connection opened in advance
+     */
+    public final long preconnectHits;
+    /**
+     * number of connections opened in advance which no request used
+     */
+    public final long preconnectMisses;
+
+    public ConnectionStats(long connectionsOpened, long connectionsReused) {
+        this(connectionsOpened, connectionsReused, 0, 0, 0);
+    }
+
+    public ConnectionStats(long connectionsOpened, long connectionsReused,
+                           long preconnects, long preconnectHits, long preconnectMisses) {
+        this.connectionsOpened = connectionsOpened;
+        this.connectionsReused = connectionsReused;
+        this.preconnects = preconnects;
+        this.preconnectHits = preconnectHits;
+        this.preconnectMisses = preconnectMisses;
+    }
+}
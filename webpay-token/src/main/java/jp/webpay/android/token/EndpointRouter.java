@@ -0,0 +1,142 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders base URIs by their health, so that a request goes to the healthiest one
+ * and fails over to the others.
+ * <p>
+ * The health of an endpoint is the moving average of its response times plus a penalty for its recent
+ * failures, which decays by half every 30 seconds so that a recovered endpoint is tried again.
+ * An endpoint without responses scores 0, so that each is tried once.
+ */
+class EndpointRouter {
+    // weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.3;
+    // time an error rate of 1 adds to the score
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long ERROR_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final List<Endpoint> endpoints;
+    private final Clock clock;
+
+    EndpointRouter(List<Uri> baseUris, Clock clock) {
+        if (baseUris.isEmpty()) {
+            throw new IllegalArgumentException("baseUris must not be empty");
+        }
+        List<Endpoint> list = new ArrayList<Endpoint>(baseUris.size());
+        for (int i = 0; i < baseUris.size(); i++) {
+            list.add(new Endpoint(baseUris.get(i), i));
+        }
+        endpoints = Collections.unmodifiableList(list);
+        this.clock = clock;
+    }
+
+    /**
+     * @return endpoints from the healthiest, ties in the given order
+     */
+    List<Endpoint> route() {
+        if (endpoints.size() == 1) {
+            return endpoints;
+        }
+        final long now = clock.nanoTime();
+        List<Endpoint> ordered = new ArrayList<Endpoint>(endpoints);
+        final double[] scores = new double[endpoints.size()];
+        for (Endpoint endpoint : endpoints) {
+            scores[endpoint.index] = endpoint.score(now);
+        }
+        Collections.sort(ordered, new Comparator<Endpoint>() {
+            @Override
+            public int compare(Endpoint lhs, Endpoint rhs) {
+                int byScore = Double.compare(scores[lhs.index], scores[rhs.index]);
+                return byScore != 0 ? byScore : lhs.index - rhs.index;
+            }
+        });
+        return ordered;
+    }
+
+    List<EndpointStats> getStats() {
+        long now = clock.nanoTime();
+        List<EndpointStats> stats = new ArrayList<EndpointStats>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            stats.add(endpoint.getStats(now));
+        }
+        return stats;
+    }
+
+    long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    class Endpoint {
+        final Uri baseUri;
+        private final int index;
+        private long requestCount = 0;
+        private long failureCount = 0;
+        private long failoverCount = 0;
+        private double latencyNanos = 0;
+        private double errorRate = 0;
+        private long errorUpdatedAt = 0;
+
+        private Endpoint(Uri baseUri, int index) {
+            this.baseUri = baseUri;
+            this.index = index;
+        }
+
+        synchronized void onRequest() {
+            requestCount++;
+        }
+
+        /**
+         * @param latencyNanos    time until the response was read
+         * @param failed          true if the response was a server error
+         */
+        synchronized void onResponse(long latencyNanos, boolean failed) {
+            long now = clock.nanoTime();
+            this.latencyNanos = this.latencyNanos == 0
+                    ? latencyNanos : this.latencyNanos + ALPHA * (latencyNanos - this.latencyNanos);
+            recordError(now, failed);
+        }
+
+        /**
+         * @param failedOver    true if the request goes on to the next endpoint
+         */
+        synchronized void onFailure(boolean failedOver) {
+            if (failedOver) {
+                failoverCount++;
+            }
+            recordError(clock.nanoTime(), true);
+        }
+
+        private void recordError(long now, boolean failed) {
+            if (failed) {
+                failureCount++;
+            }
+            double decayed = decayedErrorRate(now);
+            errorRate = decayed + ALPHA * ((failed ? 1 : 0) - decayed);
+            errorUpdatedAt = now;
+        }
+
+        private double decayedErrorRate(long now) {
+            if (errorRate == 0) {
+                return 0;
+            }
+            return errorRate * Math.pow(0.5, (double) (now - errorUpdatedAt) / ERROR_HALF_LIFE_NANOS);
+        }
+
+        private synchronized double score(long now) {
+            return latencyNanos + decayedErrorRate(now) * FAILURE_PENALTY_NANOS;
+        }
+
+        private synchronized EndpointStats getStats(long now) {
+            return new EndpointStats(baseUri.toString(), requestCount, failureCount, failoverCount,
+                    (long) latencyNanos, decayedErrorRate(now));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package jp.webpay.android.token;
+
+/**
+ * Snapshot of routing counters of a base URI given by {@link WebPay.Builder#endpoints(String...)}.
+ */
+public class EndpointStats {
+    /**
+     * base URI of the endpoint
+     */
+    public final String baseUri;
+    /**
+     * number of requests sent to this endpoint, including ones failed over to it
+     */
+    public final long requestCount;
+    /**
+     * number of requests which failed on this endpoint, by a network failure or a server error
+     */
+    public final long failureCount;
+    /**
+     * number of requests which could not connect to this endpoint and were sent to the next one
+     */
+    public final long failoverCount;
+    /**
+     * exponentially weighted moving average of response times in nanoseconds, 0 until a response arrives
+     */
+    public final long latencyNanos;
+    /**
+     * recent ratio of failures, from 0 to 1, which decays while the endpoint is not used
+     */
+    public final double errorRate;
+
+    public EndpointStats(String baseUri, long requestCount, long failureCount, long failoverCount,
+                         long latencyNanos, double errorRate) {
+        this.baseUri = baseUri;
+        this.requestCount = requestCount;
+        this.failureCount = failureCount;
+        this.failoverCount = failoverCount;
+        this.latencyNanos = latencyNanos;
+        this.errorRate = errorRate;
+    }
+}
@@ -0,0 +1,37 @@
+package jp.webpay.android.token;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import jp.webpay.android.token.json.JsonWriter;
+
+/**
+ * Appends records to a file as JSON lines, one object per record, to be uploaded by the app later.
+ */
+public class FileTelemetrySink implements TelemetrySink {
+    private final File file;
+
+    /**
+     * @param file    file to append to, created if missing
+     */
+    public FileTelemetrySink(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void write(List<TelemetryRecord> records) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true));
+        try {
+            for (TelemetryRecord record : records) {
+                record.writeTo(new JsonWriter(out));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a request again when it is slower than recent ones, completing with the first response.
+ * See {@link HedgingPolicy} for the behavior.
+ */
+class Hedger {
+    // hedges allowed in a row after a quiet period
+    private static final double MAX_CREDITS = 10;
+
+    private final HedgingPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyWindow latencies = new LatencyWindow(HedgingPolicy.WINDOW_SIZE);
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    // each request earns the ratio, and each hedge spends 1
+    private double credits = 0;
+
+    /**
+     * Starts one attempt of the request, such as a submitted request task.
+     */
+    interface Attempt<T> {
+        WebPayFuture<T> start();
+    }
+
+    Hedger(HedgingPolicy policy, ScheduledExecutorService scheduler) {
+        this.policy = policy;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param attempt     request to start, once or twice. Attempts must be safe to send at the same time.
+     * @param observer    listener called once with the result of the call before the future completes,
+     *                    such as to record metrics, and not called if it is cancelled
+     * @return future of the first attempt which succeeded, or of the last failure.
+     *         Cancelling it cancels all attempts.
+     */
+    <T> WebPayFuture<T> call(Attempt<T> attempt, WebPayListener<T> observer) {
+        Call<T> call = new Call<T>(attempt, observer);
+        call.start();
+        return call.result;
+    }
+
+    long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    private synchronized void earnCredit() {
+        credits = Math.min(MAX_CREDITS, credits + policy.getMaxHedgeRatio());
+    }
+
+    private synchronized boolean spendCredit() {
+        if (credits < 1) {
+            return false;
+        }
+        credits -= 1;
+        return true;
+    }
+
+    private class Call<T> {
+        private final Attempt<T> attempt;
+        private final WebPayListener<T> observer;
+        private final WebPayFuture<T> result = new WebPayFuture<T>() {
+            @Override
+            void onCancelled() {
+                cancelAttempts();
+            }
+        };
+        private WebPayFuture<T> primary;
+        private WebPayFuture<T> hedge;
+        private ScheduledFuture<?> timer;
+        // attempts started and not completed
+        private int outstanding = 0;
+        // whether an attempt has decided the result
+        private boolean settled = false;
+
+        Call(Attempt<T> attempt, WebPayListener<T> observer) {
+            this.attempt = attempt;
+            this.observer = observer;
+        }
+
+        void start() {
+            earnCredit();
+            long delayNanos = latencies.getPercentile(policy.getPercentile(), HedgingPolicy.MIN_SAMPLES);
+            WebPayFuture<T> started = begin(false);
+            synchronized (this) {
+                primary = started;
+            }
+            if (delayNanos < 0 || result.isDone()) {
+                return;
+            }
+            try {
+                ScheduledFuture<?> scheduled = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startHedge();
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+                synchronized (this) {
+                    timer = scheduled;
+                }
+            } catch (RejectedExecutionException ignored) {
+                // hedging is an optimization, the primary request goes on
+            }
+            if (result.isDone()) {
+                cancelAttempts();
+            }
+        }
+
+        private void startHedge() {
+            synchronized (this) {
+                if (result.isDone() || hedge != null) {
+                    return;
+                }
+            }
+            if (!spendCredit()) {
+                return;
+            }
+            hedgeCount.incrementAndGet();
+            WebPayFuture<T> started = begin(true);
+            synchronized (this) {
+                hedge = started;
+            }
+            if (result.isDone()) {
+                // the primary completed while the hedge was starting
+                started.cancel(true);
+            }
+        }
+
+        private WebPayFuture<T> begin(final boolean isHedge) {
+            synchronized (this) {
+                outstanding++;
+            }
+            final long startedAt = System.nanoTime();
+            WebPayFuture<T> future = attempt.start();
+            future.addListener(new WebPayListener<T>() {
+                @Override
+                public void onCreate(T model) {
+                    latencies.record(System.nanoTime() - startedAt);
+                    boolean first;
+                    synchronized (Call.this) {
+                        outstanding--;
+                        first = !settled;
+                        settled = true;
+                    }
+                    if (first) {
+                        // counted before completing, so that the caller sees it with the result
+                        if (isHedge) {
+                            hedgeWinCount.incrementAndGet();
+                        }
+                        if (!result.isDone()) {
+                            observer.onCreate(model);
+                        }
+                        result.complete(model);
+                        cancelAttempts();
+                    }
+                }
+
+                @Override
+                public void onException(Throwable cause) {
+                    if (cause instanceof ErrorResponseException) {
+                        // WebPay answered, so it counts as a latency
+                        latencies.record(System.nanoTime() - startedAt);
+                    }
+                    boolean last;
+                    synchronized (Call.this) {
+                        // a failure is returned only if no other attempt may still succeed
+                        last = --outstanding == 0 && !settled;
+                        if (last) {
+                            settled = true;
+                        }
+                    }
+                    if (last) {
+                        if (!result.isDone()) {
+                            observer.onException(cause);
+                        }
+                        result.fail(cause);
+                        cancelAttempts();
+                    }
+                }
+            }, WebPayExecutors.direct());
+            return future;
+        }
+
+        private void cancelAttempts() {
+            WebPayFuture<T> primaryToCancel;
+            WebPayFuture<T> hedgeToCancel;
+            ScheduledFuture<?> timerToCancel;
+            synchronized (this) {
+                primaryToCancel = primary;
+                hedgeToCancel = hedge;
+                timerToCancel = timer;
+            }
+            if (timerToCancel != null) {
+                timerToCancel.cancel(false);
+            }
+            if (primaryToCancel != null) {
+                primaryToCancel.cancel(true);
+            }
+            if (hedgeToCancel != null) {
+                hedgeToCancel.cancel(true);
+            }
+        }
+    }
+}
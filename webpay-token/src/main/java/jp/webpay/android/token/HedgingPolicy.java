@@ -0,0 +1,55 @@
+package jp.webpay.android.token;
+
+/**
+ * When a token request is sent a second time while the first one is still in flight,
+ * passed to {@link WebPay.Builder#hedging(HedgingPolicy)}. Hedging is off by default.
+ * <p>
+ * A request which has not completed by the given percentile of recent latencies is hedged:
+ * the same card is sent on another connection, since the first one is still busy, and the first
+ * response to arrive wins while the other request is cancelled. A slow connection costs one percentile
+ * of latency instead of a read timeout.
+ * <p>
+ * The hedge has an Idempotency-Key of its own, since WebPay rejects a key while a request with it
+ * is in flight. The request which loses may therefore leave a token, which is never used nor charged.
+ * {@link WebPayMetrics} records a hedged call once.
+ * <p>
+ * Hedges are capped to a ratio of requests, so that an overloaded host is not sent twice the traffic.
+ * {@link RequestStats#hedgeCount} and {@link RequestStats#hedgeWinCount} tell how often hedges
+ * were sent and how often they answered first.
+ */
+public final class HedgingPolicy {
+    /**
+     * number of recent latencies the percentile is taken from
+     */
+    public static final int WINDOW_SIZE = 100;
+    /**
+     * number of latencies needed before the first hedge
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final double maxHedgeRatio;
+
+    /**
+     * @param percentile       percentile of recent latencies to wait before hedging, such as 0.95
+     * @param maxHedgeRatio    the maximum ratio of hedges to requests, such as 0.05
+     */
+    public HedgingPolicy(double percentile, double maxHedgeRatio) {
+        if (!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        if (!(maxHedgeRatio >= 0 && maxHedgeRatio <= 1)) {
+            throw new IllegalArgumentException("maxHedgeRatio must be from 0 to 1");
+        }
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+}
@@ -0,0 +1,57 @@
+package jp.webpay.android.token;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.webpay.android.token.json.JsonWriter;
+
+/**
+ * Posts each batch to a collector as a JSON object whose "records" is the array of records.
+ * Responses other than 2xx fail the batch.
+ */
+public class HttpTelemetrySink implements TelemetrySink {
+    private final String url;
+    private final Transport transport;
+
+    /**
+     * @param url    URL of the collector, sent with the default transport of {@link WebPay}
+     */
+    public HttpTelemetrySink(String url) {
+        this(url, WebPay.getDefaultTransport());
+    }
+
+    /**
+     * @param url          URL of the collector
+     * @param transport    transport to send batches with
+     */
+    public HttpTelemetrySink(String url, Transport transport) {
+        this.url = url;
+        this.transport = transport;
+    }
+
+    @Override
+    public void write(List<TelemetryRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BufferedOutputStream buffered = new BufferedOutputStream(bytes);
+        JsonWriter writer = new JsonWriter(buffered);
+        writer.beginObject().name("records").beginArray();
+        for (TelemetryRecord record : records) {
+            record.writeTo(writer);
+        }
+        writer.endArray().endObject();
+        writer.flush();
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        Transport.Response response = transport.execute(
+                new Transport.Request("POST", url, headers, bytes.toByteArray(), new Transport.AbortSignal()),
+                Transport.Response.READER);
+        if (response.statusCode / 100 != 2) {
+            throw new IOException("collector responded " + response.statusCode);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in buckets of microseconds whose width grows with the value,
+ * 8 for each power of two, so that any value is known within 12.5% in a fixed 2KB.
+ * Values from 1 microsecond to about 38 hours are told apart, and longer ones fall into the last bucket.
+ * Recording allocates nothing.
+ * It is public for the card fields, which trace keystrokes with it.
+ */
+public final class LatencyHistogram {
+    // 2^SUB_BITS buckets for each power of two
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter totalNanos = new StripedCounter();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        count.increment();
+        totalNanos.add(nanos);
+        long max;
+        do {
+            max = maxNanos.get();
+        } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param outcome    name of the snapshot
+     * @return snapshot of the values recorded so far, none of which count as errors
+     */
+    public LatencySnapshot getSnapshot(String outcome) {
+        long[] counts = new long[BUCKET_COUNT];
+        addTo(counts);
+        return new LatencySnapshot(outcome, getCount(), 0, getTotalNanos(), getMaxNanos(),
+                percentileNanos(counts, 0.5), percentileNanos(counts, 0.9), percentileNanos(counts, 0.99));
+    }
+
+    /**
+     * Add the counts of the buckets to the array, to merge histograms before taking percentiles.
+     *
+     * @param counts    array of {@link #BUCKET_COUNT} counts
+     */
+    void addTo(long[] counts) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += buckets.get(i);
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int) Math.min((micros >>> (exponent - SUB_BITS)) - SUB_BUCKETS, SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value in microseconds which falls into the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * @param counts      counts of the buckets
+     * @param quantile    quantile from 0 to 1, such as 0.99
+     * @return upper bound in nanoseconds of the bucket holding the quantile, or 0 if empty
+     */
+    static long percentileNanos(long[] counts, double quantile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(i));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(counts.length - 1));
+    }
+}
@@ -0,0 +1,48 @@
+package jp.webpay.android.token;
+
+/**
+ * Snapshot of the latencies of calls of one {@link WebPayMetrics.Operation}, of one outcome or of all outcomes.
+ * Latencies run from calling WebPay until the result, including the wait for the executor and retries.
+ * Percentiles are upper bounds of buckets, at most 12.5% above the exact value.
+ */
+public class LatencySnapshot {
+    /**
+     * outcome of the calls, such as {@link WebPayMetrics#SUCCESS}, or {@link WebPayMetrics#ALL} for the sum
+     */
+    public final String outcome;
+    public final long count;
+    /**
+     * number of calls which did not succeed, counted in {@link #count}
+     */
+    public final long errorCount;
+    public final long totalNanos;
+    public final long maxNanos;
+    public final long p50Nanos;
+    public final long p90Nanos;
+    public final long p99Nanos;
+
+    public LatencySnapshot(String outcome, long count, long errorCount, long totalNanos, long maxNanos,
+                           long p50Nanos, long p90Nanos, long p99Nanos) {
+        this.outcome = outcome;
+        this.count = count;
+        this.errorCount = errorCount;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+    }
+
+    /**
+     * @return ratio of calls which did not succeed, from 0 to 1, or 0 if none were made
+     */
+    public double getErrorRate() {
+        return count == 0 ? 0 : (double) errorCount / count;
+    }
+
+    @Override
+    public String toString() {
+        return outcome + " count=" + count + " errors=" + errorCount + " p50=" + p50Nanos / 1000000 + "ms"
+                + " p90=" + p90Nanos / 1000000 + "ms p99=" + p99Nanos / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,39 @@
+package jp.webpay.android.token;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the most recent requests, from which a percentile is taken.
+ * The window is small, so a percentile is computed by sorting a copy.
+ */
+class LatencyWindow {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    LatencyWindow(int size) {
+        samples = new long[size];
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @param percentile    percentile from 0 to 1
+     * @param minSamples    the minimum number of samples to trust
+     * @return latency in nanoseconds at the percentile, or -1 if there are fewer samples
+     */
+    synchronized long getPercentile(double percentile, int minSamples) {
+        if (count == 0 || count < minSamples) {
+            return -1;
+        }
+        long[] sorted = new long[count];
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,976 @@
+package jp.webpay.android.token;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking transport which multiplexes all exchanges on a single I/O thread.
+ * Use {@link #enqueue(Request, Callback)} to keep dozens of requests in flight without
+ * a thread per request. This is intended for batch and load tools on the JVM,
+ * the other transports are better suited for an app.
+ * <p>
+ * Connections are kept alive per host, up to {@link #MAX_IDLE_CONNECTIONS_PER_HOST}. A request whose kept-alive
+ * connection fails before any byte of the response arrives is sent once more on a fresh connection.
+ * Call {@link #shutdown()} to stop the I/O thread and close all connections.
+ */
+public class NioTransport implements Transport {
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 8;
+    static final long IDLE_TIMEOUT_MILLIS = 30000;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // completes a preconnect exchange which parked a new connection
+    private static final Response WARMED = new Response(0, new byte[0]);
+
+    private final TlsContext tlsContext;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final ConcurrentLinkedQueue<Exchange> pendingExchanges = new ConcurrentLinkedQueue<Exchange>();
+    private final ConcurrentLinkedQueue<Exchange> abortedExchanges = new ConcurrentLinkedQueue<Exchange>();
+    // following collections are accessed only from the I/O thread
+    private final Map<String, LinkedList<Connection>> idleConnections = new HashMap<String, LinkedList<Connection>>();
+    private final Set<Connection> activeConnections = new HashSet<Connection>();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final PreconnectTracker preconnects = new PreconnectTracker(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    private volatile boolean shutdown = false;
+
+    /**
+     * Callback of an asynchronous exchange, invoked on the I/O thread.
+     * Implementations must return quickly and must not block.
+     */
+    public interface Callback {
+        void onResponse(Response response);
+
+        void onFailure(IOException cause);
+    }
+
+    public NioTransport() throws IOException {
+        this(TlsContext.getDefault());
+    }
+
+    /**
+     * @param tlsContext    context to create TLS engines for https requests, whose sessions are resumed
+     */
+    public NioTransport(TlsContext tlsContext) throws IOException {
+        this.tlsContext = tlsContext;
+        this.selector = Selector.open();
+        this.ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "WebPay-NIO");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+        Response response = await(request.url, request);
+        InputStream body = response.openBody();
+        try {
+            return reader.read(response.statusCode, response.headers, body);
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Connect on the I/O thread and wait until the connection is parked in the pool.
+     */
+    @Override
+    public void preconnect(String url) throws IOException {
+        if (!preconnects.begin()) {
+            return;
+        }
+        boolean warmed = false;
+        try {
+            warmed = await(url, null) == WARMED;
+        } finally {
+            preconnects.end(warmed);
+        }
+    }
+
+    private Response await(String url, Request request) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Response[] response = new Response[1];
+        final IOException[] failure = new IOException[1];
+        enqueue(url, request, new Callback() {
+            @Override
+            public void onResponse(Response result) {
+                response[0] = result;
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException cause) {
+                failure[0] = cause;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Start an exchange and return immediately.
+     * The host name is resolved on the calling thread.
+     * Aborting the request through {@link Request#abortSignal} closes its connection on the I/O thread.
+     *
+     * @param request     request to send
+     * @param callback    receives the response or failure on the I/O thread
+     */
+    public void enqueue(Request request, Callback callback) {
+        enqueue(request.url, request, callback);
+    }
+
+    // a null request connects without sending anything
+    private void enqueue(String url, Request request, Callback callback) {
+        final Exchange exchange;
+        try {
+            exchange = new Exchange(url, request, callback);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+        if (exchange.isAborted()) {
+            exchange.fail(new InterruptedIOException("Request is aborted"));
+            return;
+        }
+        if (request != null) {
+            request.abortSignal.setAbortAction(new Runnable() {
+                @Override
+                public void run() {
+                    abortedExchanges.add(exchange);
+                    selector.wakeup();
+                }
+            });
+        }
+        if (shutdown) {
+            exchange.fail(new IOException("Transport is shut down"));
+            return;
+        }
+        pendingExchanges.add(exchange);
+        selector.wakeup();
+        if (shutdown && pendingExchanges.remove(exchange)) {
+            // the I/O thread may have finished before the exchange was added
+            exchange.fail(new IOException("Transport is shut down"));
+        }
+    }
+
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return preconnects.toStats(opened.get(), reused.get());
+    }
+
+    /**
+     * Stop the I/O thread. Exchanges in flight fail with an IOException.
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    private void runLoop() {
+        try {
+            while (!shutdown) {
+                selector.select(nextTimeoutMillis());
+                abortExchanges();
+                startPendingExchanges();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.onReady(key);
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    } catch (RuntimeException e) {
+                        connection.fail((IOException) new IOException(e.toString()).initCause(e));
+                    }
+                }
+                expireConnections(System.nanoTime());
+            }
+        } catch (IOException e) {
+            // selector is broken, nothing can proceed
+        } finally {
+            closeAll();
+        }
+    }
+
+    private long nextTimeoutMillis() {
+        // checking deadlines every second is precise enough for timeouts in seconds
+        return activeConnections.isEmpty() && idleConnections.isEmpty() ? 0 : 1000;
+    }
+
+    private void abortExchanges() {
+        Exchange exchange;
+        while ((exchange = abortedExchanges.poll()) != null) {
+            IOException cause = new InterruptedIOException("Request is aborted");
+            Connection connection = exchange.connection;
+            if (connection != null && connection.exchange == exchange) {
+                connection.fail(cause);
+            } else {
+                pendingExchanges.remove(exchange);
+                exchange.fail(cause);
+            }
+        }
+    }
+
+    private void startPendingExchanges() {
+        Exchange exchange;
+        while ((exchange = pendingExchanges.poll()) != null) {
+            if (exchange.isAborted()) {
+                exchange.fail(new InterruptedIOException("Request is aborted"));
+                continue;
+            }
+            if (exchange.isPreconnect() && idleConnections.containsKey(exchange.poolKey)) {
+                exchange.succeed(null);
+                continue;
+            }
+            Connection connection = exchange.isPreconnect() || exchange.resent
+                    ? null : takeIdleConnection(exchange.poolKey);
+            try {
+                if (connection != null) {
+                    reused.incrementAndGet();
+                    if (connection.warm) {
+                        connection.warm = false;
+                        preconnects.onWarmConnectionUsed();
+                    }
+                    connection.start(exchange);
+                } else {
+                    if (!exchange.isPreconnect()) {
+                        opened.incrementAndGet();
+                        preconnects.onConnectionOpened();
+                    }
+                    connection = new Connection(exchange);
+                    connection.start(exchange);
+                }
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.fail(e);
+                } else {
+                    exchange.fail(e);
+                }
+            }
+        }
+    }
+
+    private Connection takeIdleConnection(String poolKey) {
+        LinkedList<Connection> connections = idleConnections.get(poolKey);
+        while (connections != null && !connections.isEmpty()) {
+            Connection connection = connections.removeLast();
+            if (connections.isEmpty()) {
+                idleConnections.remove(poolKey);
+            }
+            if (connection.channel.isOpen()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void releaseConnection(Connection connection) {
+        activeConnections.remove(connection);
+        LinkedList<Connection> connections = idleConnections.get(connection.poolKey);
+        if (connections == null) {
+            connections = new LinkedList<Connection>();
+            idleConnections.put(connection.poolKey, connections);
+        }
+        connections.addLast(connection);
+        if (connections.size() > MAX_IDLE_CONNECTIONS_PER_HOST) {
+            connections.removeFirst().close();
+        }
+    }
+
+    private void expireConnections(long now) {
+        for (Connection connection : new ArrayList<Connection>(activeConnections)) {
+            if (now - connection.deadline > 0) {
+                connection.fail(connection.connected ? new SocketTimeoutException("Read timed out")
+                        : new ConnectTimeoutException("Connect timed out"));
+            }
+        }
+        Iterator<LinkedList<Connection>> lists = idleConnections.values().iterator();
+        while (lists.hasNext()) {
+            LinkedList<Connection> connections = lists.next();
+            Iterator<Connection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (now - connection.deadline > 0 || !connection.channel.isOpen()) {
+                    iterator.remove();
+                    connection.close();
+                }
+            }
+            if (connections.isEmpty()) {
+                lists.remove();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Connection connection : new ArrayList<Connection>(activeConnections)) {
+            connection.fail(new IOException("Transport is shut down"));
+        }
+        for (LinkedList<Connection> connections : idleConnections.values()) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        idleConnections.clear();
+        Exchange exchange;
+        while ((exchange = pendingExchanges.poll()) != null) {
+            exchange.fail(new IOException("Transport is shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A request and its callback, which is completed exactly once.
+     * A preconnect has no request, and completes once connected.
+     */
+    private static class Exchange {
+        private final Callback callback;
+        private final AbortSignal abortSignal;
+        private final RequestEvents events;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private final String host;
+        private final int port;
+        private final boolean secure;
+        private final String poolKey;
+        private final InetAddress address;
+        private final byte[] requestBytes;
+        private final long maxResponseBodySize;
+        private final long connectTimeoutNanos;
+        private final long readTimeoutNanos;
+        // set on the I/O thread when started
+        private Connection connection;
+        // whether sent again on a fresh connection after a pooled one turned out to be closed
+        private boolean resent = false;
+
+        Exchange(String urlString, Request request, Callback callback) throws IOException {
+            this.callback = callback;
+            this.abortSignal = request == null ? null : request.abortSignal;
+            this.events = request == null ? RequestEvents.NONE : request.events;
+            URL url = new URL(urlString);
+            String scheme = url.getProtocol().toLowerCase(Locale.ENGLISH);
+            if (!scheme.equals("http") && !scheme.equals("https")) {
+                throw new IOException("Unsupported scheme " + scheme);
+            }
+            secure = scheme.equals("https");
+            host = url.getHost();
+            port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            poolKey = scheme + "://" + host + ":" + port;
+            events.dnsStart();
+            address = InetAddress.getByName(host);
+            events.dnsEnd();
+            requestBytes = request == null ? null : encode(request, url);
+            maxResponseBodySize = request == null ? 0 : request.maxResponseBodySize;
+            connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(request == null
+                    ? Request.DEFAULT_CONNECT_TIMEOUT_MILLIS : request.connectTimeoutMillis);
+            readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(request == null
+                    ? Request.DEFAULT_READ_TIMEOUT_MILLIS : request.readTimeoutMillis);
+        }
+
+        boolean isPreconnect() {
+            return requestBytes == null;
+        }
+
+        boolean isAborted() {
+            return abortSignal != null && abortSignal.isAborted();
+        }
+
+        private byte[] encode(Request request, URL url) throws IOException {
+            byte[] body = request.body == null ? new byte[0] : request.body;
+            String path = url.getFile().length() == 0 ? "/" : url.getFile();
+            StringBuilder head = new StringBuilder();
+            head.append(request.method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host);
+            if (port != url.getDefaultPort()) {
+                head.append(':').append(port);
+            }
+            head.append("\r\n");
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (request.method.equals("POST")) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+            byte[] headBytes = head.toString().getBytes("UTF-8");
+            byte[] bytes = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+            System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+            return bytes;
+        }
+
+        void succeed(Response response) {
+            if (completed.compareAndSet(false, true)) {
+                if (abortSignal != null) {
+                    abortSignal.setAbortAction(null);
+                }
+                callback.onResponse(response);
+            }
+        }
+
+        void fail(IOException cause) {
+            if (completed.compareAndSet(false, true)) {
+                if (abortSignal != null) {
+                    abortSignal.setAbortAction(null);
+                }
+                callback.onFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * A socket channel with optional TLS, which runs exchanges one after another.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String poolKey;
+        private final SSLEngine engine;
+        private final boolean verifiesHostname;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer appOut;
+        private Exchange exchange;
+        private ResponseParser parser;
+        private boolean connected = false;
+        private boolean handshaking = false;
+        // whether any byte of the response to the current exchange arrived
+        private boolean responding = false;
+        // whether the current exchange was started on a pooled connection
+        private boolean reused = false;
+        // opened by a preconnect and not used by any request yet
+        private boolean warm = false;
+        private long deadline;
+
+        Connection(Exchange exchange) throws IOException {
+            poolKey = exchange.poolKey;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(selector, 0, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            if (exchange.secure) {
+                engine = tlsContext.createEngine(exchange.host, exchange.port);
+                verifiesHostname = TlsContext.enableEndpointIdentification(engine);
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            } else {
+                engine = null;
+                verifiesHostname = false;
+                appIn = ByteBuffer.allocate(8192);
+            }
+        }
+
+        void start(Exchange exchange) throws IOException {
+            this.exchange = exchange;
+            exchange.connection = this;
+            this.parser = new ResponseParser(exchange.maxResponseBodySize);
+            this.responding = false;
+            this.reused = connected;
+            this.appOut = exchange.isPreconnect() ? EMPTY : ByteBuffer.wrap(exchange.requestBytes);
+            activeConnections.add(this);
+            if (connected) {
+                deadline = System.nanoTime() + exchange.readTimeoutNanos;
+                writeRequest();
+            } else {
+                deadline = System.nanoTime() + exchange.connectTimeoutNanos;
+                exchange.events.connectStart();
+                if (channel.connect(new InetSocketAddress(exchange.address, exchange.port))) {
+                    onConnected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            }
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (exchange == null) {
+                // an idle connection is readable when the server closed it, or, under TLS 1.3, when session tickets
+                // arrive after the handshake. The connection is kept unless it was closed or got application data.
+                if (engine == null || readPlaintext() || appIn.position() > 0) {
+                    close();
+                }
+                return;
+            }
+            if (!connected) {
+                // the connect timeout runs until connected, however many events arrive
+                if (key.isConnectable() && channel.finishConnect()) {
+                    onConnected();
+                }
+                return;
+            }
+            deadline = System.nanoTime() + exchange.readTimeoutNanos;
+            if (handshaking) {
+                handshake();
+            } else if (appOut.hasRemaining() || (netOut != null && netOut.position() > 0)) {
+                writeRequest();
+            } else {
+                readResponse();
+            }
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            exchange.events.connectEnd();
+            // the TLS handshake is bounded by the read timeout
+            deadline = System.nanoTime() + exchange.readTimeoutNanos;
+            if (engine != null) {
+                handshaking = true;
+                exchange.events.secureConnectStart();
+                engine.beginHandshake();
+                handshake();
+            } else if (exchange.isPreconnect()) {
+                park();
+            } else {
+                writeRequest();
+            }
+        }
+
+        private void park() {
+            Exchange completed = exchange;
+            exchange = null;
+            warm = true;
+            key.interestOps(SelectionKey.OP_READ);
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+            releaseConnection(this);
+            completed.succeed(WARMED);
+        }
+
+        private void handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        if (!flush()) {
+                            return;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        if (!unwrapHandshake()) {
+                            return;
+                        }
+                        break;
+                    default:
+                        if (!flush()) {
+                            return;
+                        }
+                        handshaking = false;
+                        exchange.events.secureConnectEnd();
+                        tlsContext.onHandshake(exchange.host, engine.getSession(), verifiesHostname);
+                        if (exchange.isPreconnect()) {
+                            park();
+                        } else {
+                            writeRequest();
+                        }
+                        return;
+                }
+            }
+        }
+
+        private void writeRequest() throws IOException {
+            if (engine != null) {
+                while (appOut.hasRemaining()) {
+                    wrap(appOut);
+                    if (!flush()) {
+                        return;
+                    }
+                }
+                if (!flush()) {
+                    return;
+                }
+            } else {
+                channel.write(appOut);
+                if (appOut.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            exchange.events.requestBodyEnd();
+        }
+
+        private void readResponse() throws IOException {
+            boolean endOfStream = readPlaintext();
+            if (!responding && appIn.position() > 0) {
+                responding = true;
+                exchange.events.responseStart();
+            }
+            appIn.flip();
+            try {
+                parser.feed(appIn);
+            } finally {
+                appIn.compact();
+            }
+            if (endOfStream && !parser.isComplete()) {
+                parser.endOfStream();
+            }
+            if (parser.isComplete()) {
+                Exchange completed = exchange;
+                exchange = null;
+                Response response = new Response(parser.statusCode, parser.headers.toMap(), parser.body());
+                completed.events.responseBodyEnd();
+                if (parser.keepAlive && !endOfStream) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+                    releaseConnection(this);
+                } else {
+                    close();
+                }
+                completed.succeed(response);
+            }
+        }
+
+        private void wrap(ByteBuffer source) throws IOException {
+            while (true) {
+                SSLEngineResult result = engine.wrap(source, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS engine is closed");
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Consume a handshake record from the peer.
+         * @return false if waiting for more bytes from the channel
+         */
+        private boolean unwrapHandshake() throws IOException {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        throw new EOFException("Connection closed during TLS handshake");
+                    }
+                    if (read == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    }
+                    return true;
+                case CLOSED:
+                    throw new SSLException("Connection closed during TLS handshake");
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Read from the channel into appIn, decrypting if secure.
+         * @return true if the peer closed the connection
+         */
+        private boolean readPlaintext() throws IOException {
+            if (engine == null) {
+                return channel.read(appIn) < 0;
+            }
+            if (!netIn.hasRemaining()) {
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            }
+            boolean endOfStream = channel.read(netIn) < 0;
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return true;
+                }
+                // session tickets may arrive after the handshake
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || result.bytesConsumed() == 0) {
+                    return endOfStream;
+                }
+            }
+        }
+
+        /**
+         * Write encrypted bytes in netOut to the channel.
+         * @return true if all bytes were written
+         */
+        private boolean flush() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+            if (netOut.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            return true;
+        }
+
+        private ByteBuffer enlarge(ByteBuffer buffer, int minimumSize) {
+            ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumSize));
+            buffer.flip();
+            enlarged.put(buffer);
+            return enlarged;
+        }
+
+        void fail(IOException cause) {
+            Exchange failed = exchange;
+            exchange = null;
+            close();
+            if (failed == null) {
+                return;
+            }
+            if (reused && !responding && !failed.resent && !shutdown && !failed.isAborted()
+                    && !(cause instanceof InterruptedIOException)) {
+                // the server may close a kept-alive connection any time it is idle,
+                // so send once more on a fresh connection as the platform HTTP stacks do
+                failed.resent = true;
+                failed.connection = null;
+                pendingExchanges.add(failed);
+                selector.wakeup();
+                return;
+            }
+            failed.fail(cause);
+        }
+
+        void close() {
+            activeConnections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Incremental parser of an HTTP/1.1 response.
+     * Supports fixed length, chunked and close-delimited bodies.
+     */
+    private static class ResponseParser {
+        private static final int STATUS_LINE = 0, HEADERS = 1, FIXED_BODY = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4,
+                CHUNK_END = 5, TRAILERS = 6, BODY_UNTIL_CLOSE = 7, COMPLETE = 8;
+
+        private final StringBuilder line = new StringBuilder();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final List<String> headerLines = new ArrayList<String>();
+        private final long maxBodySize;
+        private int state = STATUS_LINE;
+        private long remaining;
+        int statusCode;
+        HeaderCollector headers = new HeaderCollector();
+        boolean keepAlive = true;
+
+        ResponseParser(long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+        }
+
+        boolean isComplete() {
+            return state == COMPLETE;
+        }
+
+        byte[] body() {
+            return body.toByteArray();
+        }
+
+        void feed(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining() && state != COMPLETE) {
+                switch (state) {
+                    case FIXED_BODY:
+                    case CHUNK_DATA:
+                        int length = (int) Math.min(remaining, buffer.remaining());
+                        checkBodySize(length);
+                        body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                        buffer.position(buffer.position() + length);
+                        remaining -= length;
+                        if (remaining == 0) {
+                            state = state == FIXED_BODY ? COMPLETE : CHUNK_END;
+                        }
+                        break;
+                    case BODY_UNTIL_CLOSE:
+                        checkBodySize(buffer.remaining());
+                        body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        buffer.position(buffer.limit());
+                        break;
+                    default:
+                        char c = (char) (buffer.get() & 0xff);
+                        if (c == '\n') {
+                            onLine(line.toString());
+                            line.setLength(0);
+                        } else if (c != '\r') {
+                            line.append(c);
+                        }
+                }
+            }
+        }
+
+        // fail before the body grows over the limit, which closes the connection
+        private void checkBodySize(long length) throws ResponseTooLargeException {
+            if (body.size() + length > maxBodySize) {
+                throw new ResponseTooLargeException(maxBodySize);
+            }
+        }
+
+        void endOfStream() throws IOException {
+            if (state == BODY_UNTIL_CLOSE) {
+                state = COMPLETE;
+            } else {
+                throw new EOFException("Connection closed before the response completed");
+            }
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (state) {
+                case STATUS_LINE:
+                    String[] parts = text.split(" ", 3);
+                    if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+                        throw new IOException("Unexpected status line: " + text);
+                    }
+                    try {
+                        statusCode = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Unexpected status line: " + text);
+                    }
+                    keepAlive = parts[0].equals("HTTP/1.1");
+                    state = HEADERS;
+                    break;
+                case HEADERS:
+                    if (text.length() > 0) {
+                        headerLines.add(text);
+                    } else if (statusCode / 100 == 1) {
+                        // skip interim response such as 100 Continue
+                        headerLines.clear();
+                        state = STATUS_LINE;
+                    } else {
+                        onHeadersComplete();
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    int extension = text.indexOf(';');
+                    String size = (extension >= 0 ? text.substring(0, extension) : text).trim();
+                    try {
+                        remaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Unexpected chunk size: " + text);
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                    break;
+                case CHUNK_END:
+                    state = CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (text.length() == 0) {
+                        state = COMPLETE;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected line in state " + state);
+            }
+        }
+
+        private void onHeadersComplete() throws IOException {
+            String contentLength = null;
+            boolean chunked = false;
+            for (String header : headerLines) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                String value = header.substring(colon + 1).trim();
+                headers.add(name, value);
+                if (name.equals("content-length")) {
+                    contentLength = value;
+                } else if (name.equals("transfer-encoding")) {
+                    chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                } else if (name.equals("connection")) {
+                    String connection = value.toLowerCase(Locale.ENGLISH);
+                    if (connection.contains("close")) {
+                        keepAlive = false;
+                    } else if (connection.contains("keep-alive")) {
+                        keepAlive = true;
+                    }
+                }
+            }
+            if (statusCode == 204 || statusCode == 304) {
+                state = COMPLETE;
+            } else if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (contentLength != null) {
+                try {
+                    remaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected content length: " + contentLength);
+                }
+                checkBodySize(remaining);
+                state = remaining == 0 ? COMPLETE : FIXED_BODY;
+            } else {
+                keepAlive = false;
+                state = BODY_UNTIL_CLOSE;
+            }
+        }
+    }
+}
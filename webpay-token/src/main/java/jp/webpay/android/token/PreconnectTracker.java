@@ -0,0 +1,76 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts preconnects of a transport and whether requests found the warmed connections.
+ * A warmed connection left unused until the idle timeout, or missed by a request which had to open
+ * a new connection, counts as a miss.
+ */
+class PreconnectTracker {
+    private final long idleTimeoutNanos;
+    private boolean inProgress = false;
+    private int unused = 0;
+    private long warmedAt;
+    private long preconnects = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    PreconnectTracker(long idleTimeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * @return false if a preconnect is in progress or its connection is still waiting for a request
+     */
+    synchronized boolean begin() {
+        if (inProgress) {
+            return false;
+        }
+        if (unused > 0 && System.nanoTime() - warmedAt < idleTimeoutNanos) {
+            return false;
+        }
+        misses += unused;
+        unused = 0;
+        inProgress = true;
+        return true;
+    }
+
+    /**
+     * @param warmed    true if the preconnect opened a connection and parked it in the pool
+     */
+    synchronized void end(boolean warmed) {
+        inProgress = false;
+        if (warmed) {
+            preconnects++;
+            unused++;
+            warmedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * A request reused a connection which some preconnect opened.
+     */
+    synchronized void onWarmConnectionUsed() {
+        if (unused > 0) {
+            unused--;
+            hits++;
+        }
+    }
+
+    /**
+     * A request opened a new connection, so the warmed ones were lost or busy.
+     */
+    synchronized void onConnectionOpened() {
+        misses += unused;
+        unused = 0;
+    }
+
+    synchronized boolean hasUnusedConnection() {
+        return unused > 0;
+    }
+
+    synchronized ConnectionStats toStats(long connectionsOpened, long connectionsReused) {
+        return new ConnectionStats(connectionsOpened, connectionsReused, preconnects, hits, misses);
+    }
+}
@@ -0,0 +1,156 @@
+package jp.webpay.android.token;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs queued tasks by {@link RequestPriority} on threads of a pool, keeping one thread
+ * for {@link RequestPriority#USER_INITIATED} tasks so that they never wait behind background work.
+ * Tasks which do not implement {@link Prioritized} run as {@link RequestPriority#BACKGROUND}.
+ */
+class PriorityExecutor implements Executor {
+    /**
+     * Task which tells its priority to a {@link PriorityExecutor}.
+     */
+    interface Prioritized extends Runnable {
+        RequestPriority getPriority();
+    }
+
+    private final Executor threads;
+    private final int poolSize;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(11, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int byPriority = lhs.priority.compareTo(rhs.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    });
+    private long sequence = 0;
+    private int running = 0;
+    private int runningInBackground = 0;
+
+    /**
+     * @param threads     executor with at least poolSize threads, which runs only tasks started by this one
+     * @param poolSize    the number of tasks to run at once
+     */
+    PriorityExecutor(Executor threads, int poolSize) {
+        if (poolSize < 2) {
+            throw new IllegalArgumentException("poolSize must be at least 2 to keep a thread for user-initiated tasks");
+        }
+        this.threads = threads;
+        this.poolSize = poolSize;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException("command must not be null");
+        }
+        RequestPriority priority = command instanceof Prioritized
+                ? ((Prioritized) command).getPriority() : RequestPriority.BACKGROUND;
+        synchronized (this) {
+            queue.add(new Entry(command, priority, sequence++));
+        }
+        startTasks();
+    }
+
+    /**
+     * Remove a task which has not started, such as a cancelled request.
+     *
+     * @return true if the task was removed
+     */
+    synchronized boolean remove(Runnable command) {
+        for (Iterator<Entry> i = queue.iterator(); i.hasNext(); ) {
+            if (i.next().command == command) {
+                i.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void startTasks() {
+        while (true) {
+            final Entry entry;
+            synchronized (this) {
+                entry = poll();
+                if (entry == null) {
+                    return;
+                }
+                running++;
+                if (entry.priority != RequestPriority.USER_INITIATED) {
+                    runningInBackground++;
+                }
+            }
+            try {
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            entry.command.run();
+                        } finally {
+                            onFinished(entry);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    release(entry);
+                }
+                throw e;
+            }
+        }
+    }
+
+    // called while holding the lock, returning the next task allowed to start
+    private Entry poll() {
+        if (running >= poolSize) {
+            return null;
+        }
+        Entry head = queue.peek();
+        if (head == null) {
+            return null;
+        }
+        if (head.priority != RequestPriority.USER_INITIATED && runningInBackground >= poolSize - 1) {
+            // the last thread is kept for user-initiated tasks, which are all ahead in the queue
+            return null;
+        }
+        return queue.poll();
+    }
+
+    private void onFinished(Entry entry) {
+        synchronized (this) {
+            release(entry);
+        }
+        startTasks();
+    }
+
+    private void release(Entry entry) {
+        running--;
+        if (entry.priority != RequestPriority.USER_INITIATED) {
+            runningInBackground--;
+        }
+    }
+
+    private static class Entry {
+        private final Runnable command;
+        private final RequestPriority priority;
+        private final long sequence;
+
+        private Entry(Runnable command, RequestPriority priority, long sequence) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many requests a {@link WebPay} instance sends at once and per second,
+ * passed to {@link WebPay.Builder#rateLimit(RateLimitPolicy)}.
+ * <p>
+ * The number of requests in flight is limited adaptively: the limit grows by one while responses are
+ * faster than the latency target and the limit is in use, and is halved when WebPay answers
+ * 429 Too Many Requests or a response is slower than the target. User-initiated requests have a limit
+ * of their own, so that they never wait behind background and batch ones. A token bucket may limit the rate
+ * on top of it. A Retry-After header of a 429 response of WebPay holds back every request until then,
+ * for a minute at most.
+ * <p>
+ * Requests over the limits wait on the executor thread, up to the maximum wait,
+ * and fail with {@link ThrottledException} if they cannot be sent by then.
+ */
+public final class RateLimitPolicy {
+    /**
+     * policy with the default limits. Instances are not limited unless it is passed to
+     * {@link WebPay.Builder#rateLimit(RateLimitPolicy)}.
+     */
+    public static final RateLimitPolicy DEFAULT = new Builder().build();
+
+    private final int initialConcurrency;
+    private final int maxConcurrency;
+    private final long latencyTargetNanos;
+    private final double permitsPerSecond;
+    private final int burst;
+    private final long maxWaitNanos;
+
+    private RateLimitPolicy(Builder builder) {
+        initialConcurrency = builder.initialConcurrency;
+        maxConcurrency = builder.maxConcurrency;
+        latencyTargetNanos = builder.latencyTargetNanos;
+        permitsPerSecond = builder.permitsPerSecond;
+        burst = builder.burst;
+        maxWaitNanos = builder.maxWaitNanos;
+    }
+
+    int getInitialConcurrency() {
+        return initialConcurrency;
+    }
+
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    long getLatencyTargetNanos() {
+        return latencyTargetNanos;
+    }
+
+    /**
+     * @return permits added to the bucket per second, or 0 if the rate is not limited
+     */
+    double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public static class Builder {
+        private int initialConcurrency = 4;
+        private int maxConcurrency = 32;
+        private long latencyTargetNanos = TimeUnit.SECONDS.toNanos(3);
+        private double permitsPerSecond = 0;
+        private int burst = 0;
+        private long maxWaitNanos = TimeUnit.SECONDS.toNanos(10);
+
+        /**
+         * @param initial    the number of requests in flight to start with. Default is 4.
+         * @param max        the number of requests in flight the limit grows up to. Default is 32.
+         * @return this builder
+         */
+        public Builder concurrency(int initial, int max) {
+            if (initial < 1 || max < initial) {
+                throw new IllegalArgumentException("concurrency must satisfy 1 <= initial <= max");
+            }
+            initialConcurrency = initial;
+            maxConcurrency = max;
+            return this;
+        }
+
+        /**
+         * @param target    response time above which the concurrency limit is lowered. Default is 3 seconds.
+         * @param unit      the time unit of the target
+         * @return this builder
+         */
+        public Builder latencyTarget(long target, TimeUnit unit) {
+            if (target <= 0) {
+                throw new IllegalArgumentException("target must be positive");
+            }
+            latencyTargetNanos = unit.toNanos(target);
+            return this;
+        }
+
+        /**
+         * @param permitsPerSecond    requests sent per second on average
+         * @param burst               requests sent at once after an idle period
+         * @return this builder
+         */
+        public Builder rate(double permitsPerSecond, int burst) {
+            if (!(permitsPerSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+            }
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * @param maxWait    time a request may wait for the limits, including a Retry-After of WebPay.
+         *                   Default is 10 seconds.
+         * @param unit       the time unit of the wait
+         * @return this builder
+         */
+        public Builder maxWait(long maxWait, TimeUnit unit) {
+            if (maxWait < 0) {
+                throw new IllegalArgumentException("maxWait must not be negative");
+            }
+            maxWaitNanos = unit.toNanos(maxWait);
+            return this;
+        }
+
+        public RateLimitPolicy build() {
+            return new RateLimitPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds attempts back by the limits of a {@link RateLimitPolicy}.
+ * See the policy for the behavior.
+ */
+class RateLimiter {
+    private static final double DECREASE_RATIO = 0.5;
+    // a Retry-After longer than this, such as the hour of a misconfigured proxy, holds back requests only for this
+    static final long MAX_RETRY_AFTER_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final RateLimitPolicy policy;
+    private final Clock clock;
+    // latches of attempts waiting for a change of the limits
+    private final List<CountDownLatch> waiters = new ArrayList<CountDownLatch>();
+    private double limit;
+    private int inFlight = 0;
+    private int userInitiatedInFlight = 0;
+    // attempts started before this are not taken as a sign of overload again
+    private long decreasedAt;
+    private double tokens;
+    private long refilledAt;
+    private boolean blocked = false;
+    private long blockedUntil;
+
+    RateLimiter(RateLimitPolicy policy, Clock clock) {
+        this.policy = policy;
+        this.clock = clock;
+        limit = policy.getInitialConcurrency();
+        tokens = policy.getBurst();
+        refilledAt = clock.nanoTime();
+        decreasedAt = refilledAt;
+    }
+
+    /**
+     * Wait until an attempt may be sent. A caller which returned must report it by
+     * {@link #onComplete(RequestPriority, long, boolean, long)} or {@link #onIgnored(RequestPriority)}.
+     * User-initiated attempts are limited only by each other, so that they never wait behind background ones.
+     *
+     * @param priority       priority of the request
+     * @param abortSignal    signal of the request, which stops waiting
+     * @return time the attempt started at, to pass to {@link #onComplete(RequestPriority, long, boolean, long)}
+     * @throws ThrottledException      if the attempt cannot be sent within the maximum wait
+     * @throws InterruptedIOException  if the request was aborted meanwhile
+     */
+    long acquire(RequestPriority priority, Transport.AbortSignal abortSignal) throws IOException {
+        boolean userInitiated = priority == RequestPriority.USER_INITIATED;
+        long deadline = clock.nanoTime() + policy.getMaxWaitNanos();
+        while (true) {
+            final CountDownLatch wakeUp = new CountDownLatch(1);
+            long waitNanos;
+            synchronized (this) {
+                long now = clock.nanoTime();
+                long knownDelay = Math.max(blocked ? blockedUntil - now : 0, refill(now));
+                boolean full = (userInitiated ? userInitiatedInFlight : inFlight) >= (int) limit;
+                if (knownDelay <= 0 && !full) {
+                    inFlight++;
+                    if (userInitiated) {
+                        userInitiatedInFlight++;
+                    }
+                    if (policy.getPermitsPerSecond() > 0) {
+                        tokens -= 1;
+                    }
+                    return now;
+                }
+                if (now + knownDelay > deadline || (full && now >= deadline)) {
+                    throw new ThrottledException(TimeUnit.NANOSECONDS.toMillis(Math.max(0, knownDelay)));
+                }
+                // a full limit is freed by another attempt, which wakes this one up
+                waitNanos = full ? deadline - now : knownDelay;
+                waiters.add(wakeUp);
+            }
+            abortSignal.setAbortAction(new Runnable() {
+                @Override
+                public void run() {
+                    wakeUp.countDown();
+                }
+            });
+            try {
+                clock.await(wakeUp, waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            } finally {
+                abortSignal.setAbortAction(null);
+                synchronized (this) {
+                    waiters.remove(wakeUp);
+                }
+            }
+            if (abortSignal.isAborted()) {
+                throw new InterruptedIOException("Request is aborted");
+            }
+        }
+    }
+
+    /**
+     * @param priority           priority passed to {@link #acquire(RequestPriority, Transport.AbortSignal)}
+     * @param startedAt          value returned by {@link #acquire(RequestPriority, Transport.AbortSignal)}
+     * @param throttled          true if WebPay answered 429 Too Many Requests
+     * @param retryAfterNanos    Retry-After of the 429 response, or -1 if none. It is capped at a minute.
+     */
+    synchronized void onComplete(RequestPriority priority, long startedAt, boolean throttled, long retryAfterNanos) {
+        long now = clock.nanoTime();
+        boolean wasFull = inFlight * 2 >= limit;
+        release(priority);
+        if (retryAfterNanos > 0) {
+            long until = now + Math.min(retryAfterNanos, MAX_RETRY_AFTER_NANOS);
+            if (!blocked || blockedUntil - until < 0) {
+                blocked = true;
+                blockedUntil = until;
+            }
+        }
+        if (throttled || now - startedAt > policy.getLatencyTargetNanos()) {
+            // attempts sent before the last decrease saw the same overload
+            if (startedAt - decreasedAt >= 0) {
+                limit = Math.max(1, limit * DECREASE_RATIO);
+                decreasedAt = now;
+            }
+        } else if (wasFull) {
+            // grows by about one per round of requests, and only while the limit is in use
+            limit = Math.min(policy.getMaxConcurrency(), limit + 1 / limit);
+        }
+        wakeUpWaiters();
+    }
+
+    /**
+     * Report an attempt which tells nothing about the load of WebPay, such as a cancelled one.
+     */
+    synchronized void onIgnored(RequestPriority priority) {
+        release(priority);
+        wakeUpWaiters();
+    }
+
+    long getMaxWaitNanos() {
+        return policy.getMaxWaitNanos();
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    // called while holding the lock
+    private void release(RequestPriority priority) {
+        inFlight--;
+        if (priority == RequestPriority.USER_INITIATED) {
+            userInitiatedInFlight--;
+        }
+    }
+
+    // called while holding the lock, returning nanoseconds until a permit of the bucket is available
+    private long refill(long now) {
+        double rate = policy.getPermitsPerSecond();
+        if (rate <= 0) {
+            return 0;
+        }
+        tokens = Math.min(policy.getBurst(), tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    private void wakeUpWaiters() {
+        for (CountDownLatch waiter : waiters) {
+            waiter.countDown();
+        }
+    }
+
+    /**
+     * @param value        value of a Retry-After header, in seconds or an HTTP date
+     * @param nowMillis    current time in milliseconds since the epoch
+     * @return nanoseconds to wait, or -1 if none or invalid
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? TimeUnit.SECONDS.toNanos(seconds) : -1;
+        } catch (NumberFormatException ignored) {
+            // an HTTP date follows
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, format.parse(value).getTime() - nowMillis));
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
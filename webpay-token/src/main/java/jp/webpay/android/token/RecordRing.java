@@ -0,0 +1,107 @@
+package jp.webpay.android.token;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer of a fixed number of records which any thread adds to without locks and without waiting,
+ * overwriting the oldest records when full, and which one consumer at a time drains.
+ * Each slot holds the sequence number it was written at, so that the consumer tells a slot not written yet
+ * from one overwritten by a later round, and counts the overwritten ones as dropped.
+ */
+class RecordRing {
+    private final AtomicReferenceArray<Slot> slots;
+    private final int mask;
+    private final AtomicLong writeSequence = new AtomicLong();
+    // written only by the consumer, read by producers to tell the size
+    private volatile long readSequence = 0;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param capacity    the number of records kept, rounded up to a power of two
+     */
+    RecordRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be from 1 to 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<Slot>(size);
+        mask = size - 1;
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of records added so far, including the one just added
+     */
+    long add(TelemetryRecord record) {
+        long sequence = writeSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Slot(sequence, record));
+        return sequence + 1;
+    }
+
+    /**
+     * @return the number of records waiting to be drained, which may be out of date as soon as returned
+     */
+    int size() {
+        return (int) Math.min(writeSequence.get() - readSequence, getCapacity());
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Move records to the list, oldest first. Must not be called by two threads at once.
+     * Stops at a record whose writer has not finished yet, which the next call picks up.
+     *
+     * @param out    list to add to
+     * @param max    the maximum number of records to move
+     * @return the number of records moved
+     */
+    int drainTo(List<TelemetryRecord> out, int max) {
+        int capacity = getCapacity();
+        long read = readSequence;
+        int drained = 0;
+        while (drained < max) {
+            long written = writeSequence.get();
+            if (read >= written) {
+                break;
+            }
+            if (written - read > capacity) {
+                droppedCount.addAndGet(written - capacity - read);
+                read = written - capacity;
+            }
+            Slot slot = slots.get((int) (read & mask));
+            if (slot == null || slot.sequence < read) {
+                // claimed but not written yet
+                break;
+            }
+            if (slot.sequence == read) {
+                out.add(slot.record);
+                drained++;
+            } else {
+                droppedCount.incrementAndGet();
+            }
+            read++;
+        }
+        readSequence = read;
+        return drained;
+    }
+
+    private static class Slot {
+        final long sequence;
+        final TelemetryRecord record;
+
+        Slot(long sequence, TelemetryRecord record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+}
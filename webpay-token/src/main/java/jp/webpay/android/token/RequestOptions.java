@@ -0,0 +1,50 @@
+package jp.webpay.android.token;
+
+/**
+ * Options of one call of {@link WebPay}, such as the language of error messages,
+ * so that one instance serves callers with different options on any thread.
+ * <pre>{@code
+ * RequestOptions options = new RequestOptions.Builder().language("ja").build();
+ * webpay.createToken(rawCard, options, listener, WebPayExecutors.mainThread());
+ * }</pre>
+ * Options not set fall back to the configuration of the instance.
+ */
+public final class RequestOptions {
+    /**
+     * options which use the configuration of the instance for everything
+     */
+    public static final RequestOptions DEFAULT = new Builder().build();
+
+    private final String language;
+
+    private RequestOptions(Builder builder) {
+        language = builder.language;
+    }
+
+    /**
+     * @return language of messages in error responses, or null to use the one of the instance
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    public static class Builder {
+        private String language;
+
+        /**
+         * @param language    language of messages in error responses, "en" or "ja"
+         * @return this builder
+         */
+        public Builder language(String language) {
+            if (language == null || language.length() == 0) {
+                throw new IllegalArgumentException("language must not be empty");
+            }
+            this.language = language;
+            return this;
+        }
+
+        public RequestOptions build() {
+            return new RequestOptions(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package jp.webpay.android.token;
+
+/**
+ * Order in which the executor of {@link WebPayExecutors#getDefault()} or
+ * {@link WebPayExecutors#newPriorityExecutor(int)} starts queued requests, from the most urgent.
+ */
+public enum RequestPriority {
+    /**
+     * token creation the user is waiting for, which may use any thread of the pool
+     */
+    USER_INITIATED,
+    /**
+     * availability requests, cache refreshes and preconnects, which leave a thread for user-initiated requests
+     */
+    BACKGROUND,
+    /**
+     * token creation of {@link WebPay#createTokens(Iterable)}, which leaves a thread for user-initiated requests
+     */
+    BATCH
+}
@@ -0,0 +1,52 @@
+package jp.webpay.android.token;
+
+/**
+ * Snapshot of timing counters of requests sent by a {@link WebPay} instance.
+ * Time spent waiting for a thread of the executor is counted apart from time spent on the network.
+ */
+public class RequestStats {
+    /**
+     * number of requests which finished communication, successfully or not
+     */
+    public final long requestCount;
+    /**
+     * sum of nanoseconds from calling WebPay until the executor started each request
+     */
+    public final long totalQueueWaitNanos;
+    /**
+     * sum of nanoseconds each request took to send and receive the response
+     */
+    public final long totalNetworkNanos;
+    /**
+     * the longest queue wait in nanoseconds
+     */
+    public final long maxQueueWaitNanos;
+    /**
+     * number of attempts sent again by {@link RetryPolicy}, beyond the first attempt of each request.
+     * Network time includes all attempts and the waits between them.
+     */
+    public final long retryCount;
+    /**
+     * number of hedges sent by {@link HedgingPolicy}, which are also counted as requests
+     */
+    public final long hedgeCount;
+    /**
+     * number of hedges which answered before the request they hedged
+     */
+    public final long hedgeWinCount;
+
+    public RequestStats(long requestCount, long totalQueueWaitNanos, long totalNetworkNanos, long maxQueueWaitNanos) {
+        this(requestCount, totalQueueWaitNanos, totalNetworkNanos, maxQueueWaitNanos, 0, 0, 0);
+    }
+
+    public RequestStats(long requestCount, long totalQueueWaitNanos, long totalNetworkNanos, long maxQueueWaitNanos,
+                        long retryCount, long hedgeCount, long hedgeWinCount) {
+        this.requestCount = requestCount;
+        this.totalQueueWaitNanos = totalQueueWaitNanos;
+        this.totalNetworkNanos = totalNetworkNanos;
+        this.maxQueueWaitNanos = maxQueueWaitNanos;
+        this.retryCount = retryCount;
+        this.hedgeCount = hedgeCount;
+        this.hedgeWinCount = hedgeWinCount;
+    }
+}
@@ -0,0 +1,47 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing counters of requests of one {@link RequestPriority}, summed into {@link RequestStats}.
+ */
+class RequestTimings {
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong totalNetworkNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    void record(long queueWaitNanos, long networkNanos, int retries) {
+        requestCount.incrementAndGet();
+        retryCount.addAndGet(retries);
+        totalQueueWaitNanos.addAndGet(queueWaitNanos);
+        totalNetworkNanos.addAndGet(networkNanos);
+        long max;
+        do {
+            max = maxQueueWaitNanos.get();
+        } while (queueWaitNanos > max && !maxQueueWaitNanos.compareAndSet(max, queueWaitNanos));
+    }
+
+    /**
+     * @param timings          counters to sum
+     * @param hedgeCount       hedges sent by the requests
+     * @param hedgeWinCount    hedges which answered first
+     * @return snapshot of the sums
+     */
+    static RequestStats sum(RequestTimings[] timings, long hedgeCount, long hedgeWinCount) {
+        long requests = 0;
+        long queueWait = 0;
+        long network = 0;
+        long maxQueueWait = 0;
+        long retries = 0;
+        for (RequestTimings t : timings) {
+            requests += t.requestCount.get();
+            queueWait += t.totalQueueWaitNanos.get();
+            network += t.totalNetworkNanos.get();
+            maxQueueWait = Math.max(maxQueueWait, t.maxQueueWaitNanos.get());
+            retries += t.retryCount.get();
+        }
+        return new RequestStats(requests, queueWait, network, maxQueueWait, retries, hedgeCount, hedgeWinCount);
+    }
+}
@@ -0,0 +1,23 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+
+/**
+ * The response body is larger than the limit of the request, such as a page of a captive portal.
+ * The transport stops reading and closes the connection as soon as the size is known.
+ */
+public class ResponseTooLargeException extends IOException {
+    private final long limit;
+
+    public ResponseTooLargeException(long limit) {
+        super("Response body is larger than " + limit + " bytes");
+        this.limit = limit;
+    }
+
+    /**
+     * @return the maximum body size of the request in bytes
+     */
+    public long getLimit() {
+        return limit;
+    }
+}
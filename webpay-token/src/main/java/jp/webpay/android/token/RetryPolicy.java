@@ -0,0 +1,104 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When and how soon a failed request is sent again, passed to {@link WebPay.Builder#retryPolicy(RetryPolicy)}.
+ * <p>
+ * Only failures which are known to be transient are retried: the connection could not be established,
+ * WebPay answered 429 Too Many Requests, or a gateway answered 502, 503 or 504.
+ * Other failures, such as a read timeout or a card error, are returned as they are.
+ * Token requests carry an Idempotency-Key header which is the same for all attempts,
+ * so that a retry never creates a second token.
+ * <p>
+ * Attempts are spaced by exponential backoff with full jitter: the n-th retry waits a random time
+ * between 0 and {@code min(maxBackoff, initialBackoff * 2^(n-1))}, so that clients which failed together
+ * do not come back together. A longer Retry-After of the response is waited for instead, unless it is beyond
+ * the maximum wait of {@link RateLimitPolicy}, or the maximum backoff without one, when the response is returned.
+ */
+public final class RetryPolicy {
+    /**
+     * policy of instances built without {@link WebPay.Builder#retryPolicy(RetryPolicy)},
+     * which makes 3 attempts in total
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 250, 2000, TimeUnit.MILLISECONDS);
+    /**
+     * policy which sends each request only once
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+
+    // a larger shift would overflow, and the cap is reached long before
+    private static final int MAX_SHIFT = 30;
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    /**
+     * @param maxAttempts       the maximum number of attempts including the first one
+     * @param initialBackoff    the upper bound of the wait before the first retry
+     * @param maxBackoff        the upper bound of the wait before any retry
+     * @param unit              the time unit of the backoffs
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("backoffs must satisfy 0 <= initialBackoff <= maxBackoff");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    long getMaxBackoffNanos() {
+        return maxBackoffNanos;
+    }
+
+    /**
+     * @param cause    failure of an attempt
+     * @return true if the request was not sent, because the host could not be resolved or connected
+     */
+    public boolean isRetryable(IOException cause) {
+        return isConnectFailure(cause);
+    }
+
+    // the request never left the device, so it is safe to send anywhere
+    static boolean isConnectFailure(IOException cause) {
+        return cause instanceof ConnectException
+                || cause instanceof ConnectTimeoutException
+                || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException;
+    }
+
+    /**
+     * @param statusCode    status code of a response
+     * @return true if WebPay asked to slow down, a gateway in front of WebPay failed
+     *         or the service is temporarily unavailable
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * @param retry     number of the retry, from 1
+     * @param random    uniformly distributed value in [0, 1)
+     * @return nanoseconds to wait before the retry
+     */
+    long getBackoffNanos(int retry, double random) {
+        long ceiling = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(retry - 1, MAX_SHIFT));
+        if (ceiling < 0) {
+            ceiling = maxBackoffNanos;
+        }
+        return (long) (ceiling * random);
+    }
+}
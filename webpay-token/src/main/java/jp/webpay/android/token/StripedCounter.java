@@ -0,0 +1,36 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over cells picked by the calling thread, so that threads recording at once
+ * rarely update the same cache line. Reading sums the cells, which is slower and not atomic.
+ * LongAdder would do the same from API level 24.
+ */
+class StripedCounter {
+    private static final int STRIPES = 8;
+    // 8 longs are 64 bytes, a cache line of common CPUs
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cellIndex() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+}
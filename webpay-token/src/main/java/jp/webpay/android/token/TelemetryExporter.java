@@ -0,0 +1,327 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ships the phases of requests and snapshots of metrics to a collector of the app, such as a file
+ * or an HTTP endpoint, without slowing down checkout.
+ * <pre>{@code
+ * TelemetryExporter exporter = new TelemetryExporter.Builder(
+ *         new HttpTelemetrySink("https://collector.example.com/webpay")).build();
+ * WebPay webpay = new WebPay.Builder(WEBPAY_PUBLISHABLE_KEY).eventListener(exporter).build();
+ * exporter.addMetrics(webpay.getMetrics());
+ * }</pre>
+ * Events are copied into a ring buffer of a fixed size, which never blocks nor takes a lock on the thread
+ * of the request, and which overwrites the oldest records when the collector falls behind.
+ * A thread of the exporter sends records to the sink in batches, once a batch is buffered
+ * and at each flush interval, when snapshots of the added metrics are also recorded.
+ * Batches the sink failed to write are dropped rather than kept.
+ * <p>
+ * Records carry the ids and times of requests, class names of failures, and latency snapshots.
+ * Values of a {@link jp.webpay.android.token.model.RawCard} never reach the exporter.
+ */
+public final class TelemetryExporter extends WebPayEventListener {
+    /**
+     * the number of records buffered unless specified, about 300 requests
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * the number of records sent at once unless specified
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    /**
+     * seconds between flushes unless specified
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_SECONDS = 30;
+
+    private final TelemetrySink sink;
+    private final RecordRing ring;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    // wall clock time of a point in System.nanoTime(), to convert times of events
+    private final long originMillis = System.currentTimeMillis();
+    private final long originNanos = System.nanoTime();
+    private final List<WebPayMetrics> metrics = new CopyOnWriteArrayList<WebPayMetrics>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // held by one thread draining the ring at a time, never by threads adding to it
+    private final Object flushLock = new Object();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedBatchCount = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private TelemetryExporter(Builder builder) {
+        sink = builder.sink;
+        ring = new RecordRing(builder.capacity);
+        batchSize = Math.min(builder.batchSize, ring.getCapacity());
+        flushIntervalNanos = builder.flushIntervalNanos;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFlushes();
+            }
+        }, "WebPay telemetry");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Record snapshots of the metrics at each flush, such as {@link WebPay#getMetrics()}.
+     *
+     * @param metrics    metrics to record
+     */
+    public void addMetrics(WebPayMetrics metrics) {
+        this.metrics.add(metrics);
+    }
+
+    @Override
+    public void queueStart(long requestId, long nanoTime) {
+        record("queueStart", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void queueEnd(long requestId, long nanoTime) {
+        record("queueEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void dnsStart(long requestId, long nanoTime) {
+        record("dnsStart", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void dnsEnd(long requestId, long nanoTime) {
+        record("dnsEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void connectStart(long requestId, long nanoTime) {
+        record("connectStart", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void connectEnd(long requestId, long nanoTime) {
+        record("connectEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void secureConnectStart(long requestId, long nanoTime) {
+        record("secureConnectStart", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void secureConnectEnd(long requestId, long nanoTime) {
+        record("secureConnectEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void requestBodyEnd(long requestId, long nanoTime) {
+        record("requestBodyEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void responseStart(long requestId, long nanoTime) {
+        record("responseStart", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void responseBodyEnd(long requestId, long nanoTime) {
+        record("responseBodyEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void parseEnd(long requestId, long nanoTime) {
+        record("parseEnd", requestId, nanoTime, null);
+    }
+
+    @Override
+    public void requestEnd(long requestId, long nanoTime, Throwable cause) {
+        // only the class, since messages are not under our control
+        record("requestEnd", requestId, nanoTime, cause == null ? null : cause.getClass().getName());
+    }
+
+    @Override
+    public void callbackEnd(long requestId, long nanoTime) {
+        record("callbackEnd", requestId, nanoTime, null);
+    }
+
+    /**
+     * Record snapshots of the metrics and send all records buffered so far, on the calling thread.
+     * This blocks while the sink writes, so do not call it on the main thread.
+     */
+    public void flush() {
+        recordMetrics();
+        drain();
+    }
+
+    /**
+     * Stop the thread of the exporter after it sends the records buffered so far.
+     * Records added afterwards are not sent.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return the number of records overwritten before they were sent
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    /**
+     * @return the number of records the sink wrote
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of batches the sink failed to write, which were dropped
+     */
+    public long getFailedBatchCount() {
+        return failedBatchCount.get();
+    }
+
+    private void record(String name, long requestId, long nanoTime, String error) {
+        add(new TelemetryRecord(name, requestId, toMillis(nanoTime), error, null, null));
+    }
+
+    private void add(TelemetryRecord record) {
+        ring.add(record);
+        if (ring.size() >= batchSize && !flushRequested.get() && flushRequested.compareAndSet(false, true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private long toMillis(long nanoTime) {
+        return originMillis + TimeUnit.NANOSECONDS.toMillis(nanoTime - originNanos);
+    }
+
+    private void recordMetrics() {
+        long timeMillis = toMillis(System.nanoTime());
+        for (WebPayMetrics m : metrics) {
+            for (WebPayMetrics.Operation operation : WebPayMetrics.Operation.values()) {
+                LatencySnapshot all = m.getSnapshot(operation);
+                if (all.count == 0) {
+                    continue;
+                }
+                add(new TelemetryRecord(TelemetryRecord.METRICS, 0, timeMillis, null, operation, all));
+                for (LatencySnapshot snapshot : m.getSnapshots(operation)) {
+                    add(new TelemetryRecord(TelemetryRecord.METRICS, 0, timeMillis, null, operation, snapshot));
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        synchronized (flushLock) {
+            while (true) {
+                List<TelemetryRecord> batch = new ArrayList<TelemetryRecord>(batchSize);
+                if (ring.drainTo(batch, batchSize) == 0) {
+                    return;
+                }
+                try {
+                    sink.write(batch);
+                    sentCount.addAndGet(batch.size());
+                } catch (IOException e) {
+                    failedBatchCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failedBatchCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void runFlushes() {
+        long nextFlushAt = System.nanoTime() + flushIntervalNanos;
+        while (!closed) {
+            long remaining = nextFlushAt - System.nanoTime();
+            if (remaining > 0 && !flushRequested.get()) {
+                LockSupport.parkNanos(remaining);
+                continue;
+            }
+            flushRequested.set(false);
+            if (remaining <= 0) {
+                recordMetrics();
+                nextFlushAt = System.nanoTime() + flushIntervalNanos;
+            }
+            drain();
+        }
+        flush();
+    }
+
+    public static class Builder {
+        private final TelemetrySink sink;
+        private int capacity = DEFAULT_CAPACITY;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private long flushIntervalNanos = TimeUnit.SECONDS.toNanos(DEFAULT_FLUSH_INTERVAL_SECONDS);
+
+        /**
+         * @param sink    destination of the records
+         */
+        public Builder(TelemetrySink sink) {
+            if (sink == null) {
+                throw new NullPointerException("sink must not be null");
+            }
+            this.sink = sink;
+        }
+
+        /**
+         * @param capacity    the number of records buffered, rounded up to a power of two.
+         *                    Default is {@link #DEFAULT_CAPACITY}.
+         * @return this builder
+         */
+        public Builder capacity(int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity must be from 1 to 2^30");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param batchSize    the number of records sent at once, and buffered before a flush
+         *                     between intervals. Default is {@link #DEFAULT_BATCH_SIZE}.
+         * @return this builder
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param interval    time between flushes and snapshots of metrics.
+         *                    Default is {@link #DEFAULT_FLUSH_INTERVAL_SECONDS} seconds.
+         * @param unit        the time unit of the interval
+         * @return this builder
+         */
+        public Builder flushInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be positive");
+            }
+            flushIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * @return exporter whose thread is started
+         */
+        public TelemetryExporter build() {
+            TelemetryExporter exporter = new TelemetryExporter(this);
+            exporter.thread.start();
+            return exporter;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+
+import jp.webpay.android.token.json.JsonWriter;
+
+/**
+ * An entry {@link TelemetryExporter} sends to a {@link TelemetrySink}: a phase of a request,
+ * or a {@link LatencySnapshot} of a {@link WebPayMetrics}.
+ * Records hold only ids, times, names of exception classes and counts, never values of a card.
+ */
+public final class TelemetryRecord {
+    /**
+     * name of the records of metric snapshots
+     */
+    public static final String METRICS = "metrics";
+
+    /**
+     * name of the method of {@link WebPayEventListener} which reported the phase, such as "queueStart",
+     * or {@link #METRICS}
+     */
+    public final String name;
+    /**
+     * id of the request, or 0 for metrics
+     */
+    public final long requestId;
+    /**
+     * wall clock time of the phase or the snapshot in milliseconds
+     */
+    public final long timeMillis;
+    /**
+     * class name of the failure of "requestEnd", or null
+     */
+    public final String error;
+    /**
+     * operation of the snapshot, or null for phases
+     */
+    public final WebPayMetrics.Operation operation;
+    /**
+     * snapshot of metrics, or null for phases
+     */
+    public final LatencySnapshot snapshot;
+
+    TelemetryRecord(String name, long requestId, long timeMillis, String error,
+                    WebPayMetrics.Operation operation, LatencySnapshot snapshot) {
+        this.name = name;
+        this.requestId = requestId;
+        this.timeMillis = timeMillis;
+        this.error = error;
+        this.operation = operation;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Write this record as one JSON object.
+     */
+    void writeTo(JsonWriter writer) throws IOException {
+        writer.beginObject().name("name").value(name).name("time").value(timeMillis);
+        if (snapshot == null) {
+            writer.name("request_id").value(requestId);
+            if (error != null) {
+                writer.name("error").value(error);
+            }
+        } else {
+            writer.name("operation").value(operation.name())
+                    .name("outcome").value(snapshot.outcome)
+                    .name("count").value(snapshot.count)
+                    .name("error_count").value(snapshot.errorCount)
+                    .name("total_nanos").value(snapshot.totalNanos)
+                    .name("max_nanos").value(snapshot.maxNanos)
+                    .name("p50_nanos").value(snapshot.p50Nanos)
+                    .name("p90_nanos").value(snapshot.p90Nanos)
+                    .name("p99_nanos").value(snapshot.p99Nanos);
+        }
+        writer.endObject();
+    }
+
+    @Override
+    public String toString() {
+        if (snapshot != null) {
+            return name + " " + operation + " " + snapshot;
+        }
+        return name + " request=" + requestId + (error == null ? "" : " error=" + error);
+    }
+}
@@ -0,0 +1,16 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the records of a {@link TelemetryExporter}, such as {@link FileTelemetrySink}
+ * or {@link HttpTelemetrySink}. Called on the thread of the exporter, one batch at a time.
+ */
+public interface TelemetrySink {
+    /**
+     * @param records    batch of records in the order they were recorded
+     * @throws IOException if the batch could not be written. The batch is dropped.
+     */
+    void write(List<TelemetryRecord> records) throws IOException;
+}
@@ -0,0 +1,23 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+
+/**
+ * The request was not sent, since it could not pass the limits of {@link RateLimitPolicy}
+ * within the maximum wait.
+ */
+public class ThrottledException extends IOException {
+    private final long retryAfterMillis;
+
+    public ThrottledException(long retryAfterMillis) {
+        super("Request is throttled, retry in " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return milliseconds until the request could be sent if known, such as by a Retry-After of WebPay, or 0
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
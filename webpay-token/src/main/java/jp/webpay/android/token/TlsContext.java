@@ -0,0 +1,333 @@
+package jp.webpay.android.token;
+
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * TLS setup shared by the connections of transports.
+ * One {@link SSLContext} keeps a client session cache, so that a handshake with a host seen before
+ * resumes the session instead of a full handshake.
+ * <p>
+ * Public keys of hosts can be pinned. Pins are checked on a full handshake only, since a resumed
+ * session has the certificates which were already checked.
+ */
+public class TlsContext {
+    static final int SESSION_CACHE_SIZE = 16;
+    static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    static final String PIN_PREFIX = "sha256/";
+
+    private static TlsContext defaultContext;
+
+    private final SSLContext sslContext;
+    private final HostnameVerifier hostnameVerifier;
+    private final Map<String, Set<String>> pins;
+    // leaf certificates of sessions which passed verification, by host and creation time of the session,
+    // to tell resumed handshakes. TLS 1.3 resumes a session under a new ID and object, but keeps its creation time.
+    // Guarded by itself.
+    private final Map<String, Certificate> verifiedSessions = new LinkedHashMap<String, Certificate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Certificate> eldest) {
+            return size() > SESSION_CACHE_SIZE * 4;
+        }
+    };
+    // leaf certificates whose chains passed the pins, by host and identity of the certificate, so that a connection
+    // pool handing the same chain to every request skips hashing it again. Guarded by itself.
+    private final Map<String, Certificate> pinnedLeaves = new LinkedHashMap<String, Certificate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Certificate> eldest) {
+            return size() > SESSION_CACHE_SIZE * 4;
+        }
+    };
+    private final AtomicLong pinnedChainChecks = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedSessions = new AtomicLong();
+
+    /**
+     * @return context with the platform trust store and no pins, shared by the default transports
+     */
+    public static synchronized TlsContext getDefault() {
+        if (defaultContext == null) {
+            defaultContext = new Builder().build();
+        }
+        return defaultContext;
+    }
+
+    private TlsContext(Builder builder) {
+        try {
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, builder.trustManagers, null);
+        } catch (GeneralSecurityException e) {
+            IllegalStateException failure = new IllegalStateException("TLS is not available");
+            failure.initCause(e);
+            throw failure;
+        }
+        sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        hostnameVerifier = builder.hostnameVerifier;
+        Map<String, Set<String>> pins = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> entry : builder.pins.entrySet()) {
+            pins.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+        }
+        this.pins = Collections.unmodifiableMap(pins);
+    }
+
+    /**
+     * @return factory of sockets sharing the session cache, the same instance every time
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return sslContext.getSocketFactory();
+    }
+
+    SSLEngine createEngine(String host, int port) {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Verifier for {@link HttpsURLConnection#setHostnameVerifier(HostnameVerifier)}.
+     * Android calls it after every handshake, so it also counts handshakes and checks pins.
+     * The JDK calls it only when its own host name check fails, so that handshakes are not counted there,
+     * and a connection must check pins by {@link #checkPins(String, Certificate[])} as well.
+     *
+     * @return verifier which checks the host name and the pins
+     */
+    public HostnameVerifier getHostnameVerifier() {
+        return new HostnameVerifier() {
+            @Override
+            public boolean verify(String host, SSLSession session) {
+                try {
+                    onHandshake(host, session, false);
+                    return true;
+                } catch (SSLPeerUnverifiedException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return number of TLS handshakes completed through this context, including resumed ones
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return number of handshakes which resumed a cached session
+     */
+    public long getResumedSessionCount() {
+        return resumedSessions.get();
+    }
+
+    // number of chains hashed to check pins
+    long getPinnedChainCheckCount() {
+        return pinnedChainChecks.get();
+    }
+
+    /**
+     * Verify the session of a handshake just completed.
+     * The session is invalidated if it fails, so that it is never resumed.
+     *
+     * @param host                host name of the request
+     * @param session             negotiated session
+     * @param hostnameVerified    true if the platform has already verified the host name
+     * @throws SSLPeerUnverifiedException if the host name or the pins do not match
+     */
+    void onHandshake(String host, SSLSession session, boolean hostnameVerified) throws SSLPeerUnverifiedException {
+        handshakes.incrementAndGet();
+        String sessionKey = host.toLowerCase(Locale.US) + "@" + session.getCreationTime();
+        Certificate leaf;
+        try {
+            leaf = session.getPeerCertificates()[0];
+        } catch (SSLPeerUnverifiedException e) {
+            session.invalidate();
+            throw e;
+        }
+        boolean resumed;
+        synchronized (verifiedSessions) {
+            // the certificate tells apart full handshakes done in the same millisecond
+            resumed = leaf.equals(verifiedSessions.get(sessionKey));
+        }
+        if (resumed) {
+            resumedSessions.incrementAndGet();
+        }
+        try {
+            if (!hostnameVerified && !hostnameVerifier.verify(host, session)) {
+                throw new SSLPeerUnverifiedException("Hostname " + host + " was not verified");
+            }
+            if (!resumed) {
+                checkPins(host, session);
+            }
+        } catch (SSLPeerUnverifiedException e) {
+            session.invalidate();
+            throw e;
+        }
+        synchronized (verifiedSessions) {
+            verifiedSessions.put(sessionKey, leaf);
+        }
+    }
+
+    /**
+     * Let the engine verify the host name during the handshake.
+     * Java 7 and Android 7.0 support this. Older Android falls back to the verifier of the context.
+     *
+     * @return true if the engine verifies the host name
+     */
+    static boolean enableEndpointIdentification(SSLEngine engine) {
+        return enableEndpointIdentification(SSLEngine.class, engine);
+    }
+
+    /**
+     * @return true if the socket verifies the host name
+     * @see #enableEndpointIdentification(SSLEngine)
+     */
+    static boolean enableEndpointIdentification(SSLSocket socket) {
+        return enableEndpointIdentification(SSLSocket.class, socket);
+    }
+
+    // reflection avoids the API level check on Android
+    private static boolean enableEndpointIdentification(Class<?> type, Object engineOrSocket) {
+        try {
+            Class<?> parametersClass = Class.forName("javax.net.ssl.SSLParameters");
+            Object parameters = type.getMethod("getSSLParameters").invoke(engineOrSocket);
+            parametersClass.getMethod("setEndpointIdentificationAlgorithm", String.class).invoke(parameters, "HTTPS");
+            type.getMethod("setSSLParameters", parametersClass).invoke(engineOrSocket, parameters);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void checkPins(String host, SSLSession session) throws SSLPeerUnverifiedException {
+        if (pins.containsKey(host.toLowerCase(Locale.US))) {
+            checkPins(host, session.getPeerCertificates());
+        }
+    }
+
+    /**
+     * Check the pins of the host against a certificate chain, such as the one of
+     * {@link HttpsURLConnection#getServerCertificates()}, where the handshake cannot be hooked.
+     * A chain whose leaf certificate is the same instance as one which passed before is not hashed again,
+     * since the certificates of a session are kept as they are while its connections are pooled.
+     *
+     * @param host     host name of the request
+     * @param chain    certificates of the peer
+     * @throws SSLPeerUnverifiedException if the host has pins and none of them is in the chain
+     */
+    void checkPins(String host, Certificate[] chain) throws SSLPeerUnverifiedException {
+        Set<String> hostPins = pins.get(host.toLowerCase(Locale.US));
+        if (hostPins == null) {
+            return;
+        }
+        if (chain.length == 0) {
+            throw new SSLPeerUnverifiedException("No certificate of " + host);
+        }
+        String leafKey = host.toLowerCase(Locale.US) + "#" + System.identityHashCode(chain[0]);
+        synchronized (pinnedLeaves) {
+            if (pinnedLeaves.get(leafKey) == chain[0]) {
+                return;
+            }
+        }
+        pinnedChainChecks.incrementAndGet();
+        for (Certificate certificate : chain) {
+            if (certificate instanceof X509Certificate
+                    && hostPins.contains(pin((X509Certificate) certificate))) {
+                synchronized (pinnedLeaves) {
+                    pinnedLeaves.put(leafKey, chain[0]);
+                }
+                return;
+            }
+        }
+        throw new SSLPeerUnverifiedException("Certificate pinning failure for " + host);
+    }
+
+    /**
+     * @param certificate    certificate of a host or its CA
+     * @return pin of the public key of the certificate, in the form for {@link Builder#pin(String, String...)}
+     */
+    public static String pin(X509Certificate certificate) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getPublicKey().getEncoded());
+            return PIN_PREFIX + Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static class Builder {
+        private final Map<String, Set<String>> pins = new HashMap<String, Set<String>>();
+        private TrustManager[] trustManagers = null;
+        private HostnameVerifier hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+
+        /**
+         * Pin public keys of a host. A connection is accepted if any certificate in its chain has one of the pins.
+         *
+         * @param host    host name, such as api.webpay.jp
+         * @param pins    "sha256/" followed by base64 of the SHA-256 digest of a SubjectPublicKeyInfo
+         * @return this builder
+         */
+        public Builder pin(String host, String... pins) {
+            Set<String> hostPins = this.pins.get(host.toLowerCase(Locale.US));
+            if (hostPins == null) {
+                hostPins = new HashSet<String>();
+                this.pins.put(host.toLowerCase(Locale.US), hostPins);
+            }
+            for (String pin : pins) {
+                if (!pin.startsWith(PIN_PREFIX)) {
+                    throw new IllegalArgumentException("pin must start with " + PIN_PREFIX + ": " + pin);
+                }
+                hostPins.add(pin);
+            }
+            return this;
+        }
+
+        /**
+         * @param trustManagers    trust managers to use instead of the platform trust store
+         * @return this builder
+         */
+        public Builder trustManagers(TrustManager... trustManagers) {
+            this.trustManagers = trustManagers;
+            return this;
+        }
+
+        /**
+         * @param hostnameVerifier    verifier used where the platform does not verify host names
+         * @return this builder
+         */
+        public Builder hostnameVerifier(HostnameVerifier hostnameVerifier) {
+            if (hostnameVerifier == null) {
+                throw new IllegalArgumentException("hostnameVerifier must not be null");
+            }
+            this.hostnameVerifier = hostnameVerifier;
+            return this;
+        }
+
+        public TlsContext build() {
+            return new TlsContext(this);
+        }
+    }
+}
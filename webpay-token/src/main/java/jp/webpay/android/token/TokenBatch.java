@@ -0,0 +1,293 @@
+package jp.webpay.android.token;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import jp.webpay.android.token.model.RawCard;
+import jp.webpay.android.token.model.Token;
+
+/**
+ * Tokenization of many cards with a bounded number of requests in flight, started by
+ * {@link WebPay#createTokens(Iterator, int, Order)}. Meant for tools such as tests against a staging host,
+ * not for the checkout of an app.
+ * <p>
+ * Cards are pulled from the source only when a slot of the window is free, and a slot is freed when
+ * the caller takes the result by {@link #take()}. A slow consumer therefore stops new requests
+ * instead of letting results pile up, and a source can generate cards lazily.
+ * Requests share the connections of the transport, and run on the executor of the {@link WebPay},
+ * which needs as many threads as the window to run them all at once.
+ * <pre>{@code
+ * TokenBatch batch = webpay.createTokens(cards, 8, TokenBatch.Order.INPUT);
+ * TokenBatch.Result result;
+ * while ((result = batch.take()) != null) {
+ *     ...
+ * }
+ * TokenBatch.Stats stats = batch.getStats();
+ * }</pre>
+ */
+public final class TokenBatch {
+    /**
+     * window of {@link WebPay#createTokens(Iterable)}
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * order in which {@link #take()} returns results
+     */
+    public enum Order {
+        /**
+         * as soon as each request completes
+         */
+        COMPLETION,
+        /**
+         * in the order of the source. A slow request holds back the results after it.
+         */
+        INPUT
+    }
+
+    private final WebPay webpay;
+    private final Iterator<RawCard> source;
+    private final int concurrency;
+    private final Order order;
+    private final long startedAt;
+    // results not taken yet, keyed by index for the input order
+    private final LinkedList<Result> completed = new LinkedList<Result>();
+    private final Map<Integer, Result> completedByIndex = new HashMap<Integer, Result>();
+    private final Map<Integer, WebPayFuture<Token>> inFlight = new HashMap<Integer, WebPayFuture<Token>>();
+    private int submitted = 0;
+    private int taken = 0;
+    private boolean cancelled = false;
+    private long succeeded = 0;
+    private long failed = 0;
+    private long totalLatencyNanos = 0;
+    private long maxLatencyNanos = 0;
+    private long lastCompletedAt;
+
+    TokenBatch(WebPay webpay, Iterator<RawCard> source, int concurrency, Order order) {
+        if (source == null) {
+            throw new IllegalArgumentException("cards must not be null");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        if (order == null) {
+            throw new IllegalArgumentException("order must not be null");
+        }
+        this.webpay = webpay;
+        this.source = source;
+        this.concurrency = concurrency;
+        this.order = order;
+        this.startedAt = System.nanoTime();
+        this.lastCompletedAt = startedAt;
+    }
+
+    void start() {
+        fill();
+    }
+
+    /**
+     * Wait for the next result, blocking the current thread. Must not be called on the main thread.
+     * Only one thread may take results, since the source is read on it when a slot is freed.
+     *
+     * @return the next result, or null after all cards are tokenized or the batch is cancelled
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    public Result take() throws InterruptedException {
+        fill();
+        Result result;
+        synchronized (this) {
+            while (true) {
+                if (cancelled || taken == submitted) {
+                    return null;
+                }
+                result = order == Order.COMPLETION ? completed.poll() : completedByIndex.remove(taken);
+                if (result != null) {
+                    break;
+                }
+                wait();
+            }
+            taken++;
+        }
+        fill();
+        return result;
+    }
+
+    /**
+     * Stop pulling cards and cancel requests in flight. Results not taken yet are discarded.
+     */
+    public void cancel() {
+        WebPayFuture<?>[] futures;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            futures = inFlight.values().toArray(new WebPayFuture<?>[inFlight.size()]);
+            inFlight.clear();
+            completed.clear();
+            completedByIndex.clear();
+            notifyAll();
+        }
+        for (WebPayFuture<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * @return snapshot of counters of completed requests
+     */
+    public synchronized Stats getStats() {
+        return new Stats(succeeded, failed, lastCompletedAt - startedAt, totalLatencyNanos, maxLatencyNanos);
+    }
+
+    // starts requests for free slots, on the thread taking results
+    private void fill() {
+        while (true) {
+            synchronized (this) {
+                if (cancelled || submitted - taken >= concurrency) {
+                    return;
+                }
+            }
+            if (!source.hasNext()) {
+                return;
+            }
+            RawCard card = source.next();
+            int index;
+            synchronized (this) {
+                index = submitted++;
+            }
+            submit(index, card);
+        }
+    }
+
+    private void submit(final int index, final RawCard card) {
+        final long submittedAt = System.nanoTime();
+        WebPayFuture<Token> future;
+        try {
+            future = webpay.createTokenWithPriority(card, RequestOptions.DEFAULT, RequestPriority.BATCH);
+        } catch (RuntimeException e) {
+            // such as a null card from the source, which fails this index only
+            onComplete(new Result(index, card, null, e, System.nanoTime() - submittedAt));
+            return;
+        }
+        boolean cancelledMeanwhile;
+        synchronized (this) {
+            // cancel() may have run since the index was counted, without this future to cancel
+            cancelledMeanwhile = cancelled;
+            if (!cancelled && !future.isDone()) {
+                inFlight.put(index, future);
+            }
+        }
+        if (cancelledMeanwhile) {
+            future.cancel(true);
+            return;
+        }
+        future.addListener(new WebPayListener<Token>() {
+            @Override
+            public void onCreate(Token token) {
+                onComplete(new Result(index, card, token, null, System.nanoTime() - submittedAt));
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                onComplete(new Result(index, card, null, cause, System.nanoTime() - submittedAt));
+            }
+        }, WebPayExecutors.direct());
+    }
+
+    private synchronized void onComplete(Result result) {
+        if (cancelled) {
+            return;
+        }
+        inFlight.remove(result.index);
+        if (result.token != null) {
+            succeeded++;
+        } else {
+            failed++;
+        }
+        totalLatencyNanos += result.latencyNanos;
+        maxLatencyNanos = Math.max(maxLatencyNanos, result.latencyNanos);
+        lastCompletedAt = System.nanoTime();
+        if (order == Order.COMPLETION) {
+            completed.add(result);
+        } else {
+            completedByIndex.put(result.index, result);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Outcome of the tokenization of a card.
+     */
+    public static class Result {
+        /**
+         * position of the card in the source, from 0
+         */
+        public final int index;
+        public final RawCard card;
+        /**
+         * created token, or null if the request failed
+         */
+        public final Token token;
+        /**
+         * cause of the failure as {@link WebPayListener#onException(Throwable)} receives it,
+         * or the exception thrown when the request could not be sent, such as for a null card. Null on success.
+         */
+        public final Throwable cause;
+        /**
+         * nanoseconds from sending the request to its completion, including time waiting for the executor
+         */
+        public final long latencyNanos;
+
+        public Result(int index, RawCard card, Token token, Throwable cause, long latencyNanos) {
+            this.index = index;
+            this.card = card;
+            this.token = token;
+            this.cause = cause;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * Snapshot of counters of a batch.
+     */
+    public static class Stats {
+        public final long succeeded;
+        public final long failed;
+        /**
+         * nanoseconds from the start of the batch until the last completion
+         */
+        public final long elapsedNanos;
+        /**
+         * sum of {@link Result#latencyNanos}
+         */
+        public final long totalLatencyNanos;
+        public final long maxLatencyNanos;
+
+        public Stats(long succeeded, long failed, long elapsedNanos, long totalLatencyNanos, long maxLatencyNanos) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        /**
+         * @return completed requests per second, or 0 before any completion
+         */
+        public double getThroughput() {
+            long completed = succeeded + failed;
+            return elapsedNanos == 0 ? 0 : completed * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return average of {@link Result#latencyNanos}, or 0 before any completion
+         */
+        public long getMeanLatencyNanos() {
+            long completed = succeeded + failed;
+            return completed == 0 ? 0 : totalLatencyNanos / completed;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package jp.webpay.android.token;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP engine which sends a request to WebPay and passes the response body to a reader as it arrives.
+ * Pass an implementation to {@link WebPay.Builder#transport(Transport)} to replace the default one.
+ * <p>
+ * Implementations must be thread-safe, since one transport may serve many {@link WebPay} instances.
+ * Bundled implementations are {@link UrlConnectionTransport}, {@link ApacheTransport} and {@link NioTransport}.
+ */
+public interface Transport {
+    /**
+     * Send request and let the reader read the response, on the calling thread.
+     * Responses with error status codes are read, not thrown.
+     * Implementations should register an abort action to {@link Request#abortSignal}
+     * while the exchange is in flight, and fail with an IOException once aborted.
+     * The rest of the body the reader left is drained, so that the connection can be reused.
+     *
+     * @param request    request to send
+     * @param reader     reader of the response, called once if the response arrived
+     * @return           value the reader returned
+     * @throws IOException if the exchange or the reader failed
+     */
+    <T> T execute(Request request, ResponseReader<T> reader) throws IOException;
+
+    /**
+     * Resolve the host, connect and finish the TLS handshake, then keep the connection in the pool
+     * so that the next request to the host needs only one round trip.
+     * Does nothing if a connection to the host is already kept.
+     * Implementations without a pool may do nothing.
+     *
+     * @param url    URL of the host to connect to. The path is ignored.
+     * @throws IOException if the connection failed
+     */
+    void preconnect(String url) throws IOException;
+
+    /**
+     * @return snapshot of counters of connections this transport opened and reused
+     */
+    ConnectionStats getConnectionStats();
+
+    /**
+     * Reads a response from the stream of its body, such as a JSON model.
+     *
+     * @param <T> type of the value read
+     */
+    public interface ResponseReader<T> {
+        /**
+         * @param statusCode    HTTP status code
+         * @param headers       response headers by lower-case name. Repeated headers are joined by ", ".
+         * @param body          body of the response, which the transport closes afterwards
+         * @return value read from the response
+         * @throws IOException if reading the body failed
+         */
+        T read(int statusCode, Map<String, String> headers, InputStream body) throws IOException;
+    }
+
+    public static final class Request {
+        /**
+         * limit of response bodies unless specified, far above any response of WebPay
+         */
+        public static final long DEFAULT_MAX_RESPONSE_BODY_SIZE = 64 * 1024;
+        /**
+         * time to wait for a connection to be established unless specified
+         */
+        public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+        /**
+         * time to wait for each read of the response unless specified
+         */
+        public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+        /**
+         * "GET" or "POST"
+         */
+        public final String method;
+        /**
+         * absolute request URL
+         */
+        public final String url;
+        public final Map<String, String> headers;
+        /**
+         * json-format body encoded in UTF-8, used only in "POST", null otherwise
+         */
+        public final byte[] body;
+        /**
+         * fired when the caller cancels this request
+         */
+        public final AbortSignal abortSignal;
+        /**
+         * maximum size of the response body in bytes.
+         * Implementations fail with {@link ResponseTooLargeException} as soon as the body is known to exceed it,
+         * by Content-Length or by the bytes read so far.
+         */
+        public final long maxResponseBodySize;
+        /**
+         * milliseconds to wait for the connection. Implementations fail with {@link ConnectTimeoutException}
+         * when it elapses, so that the request is known not to have been sent.
+         */
+        public final int connectTimeoutMillis;
+        /**
+         * milliseconds to wait for each read of the response, without a limit on the whole exchange
+         */
+        public final int readTimeoutMillis;
+        /**
+         * receiver of the network phases of this request, which the transport reports as far as it can tell them
+         */
+        public final RequestEvents events;
+
+        public Request(String method, String url, Map<String, String> headers, String body) {
+            this(method, url, headers, body == null ? null : encode(body), new AbortSignal());
+        }
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body,
+                       AbortSignal abortSignal) {
+            this(method, url, headers, body, abortSignal, DEFAULT_MAX_RESPONSE_BODY_SIZE);
+        }
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body,
+                       AbortSignal abortSignal, long maxResponseBodySize) {
+            this(method, url, headers, body, abortSignal, maxResponseBodySize,
+                    DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+        }
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body,
+                       AbortSignal abortSignal, long maxResponseBodySize,
+                       int connectTimeoutMillis, int readTimeoutMillis) {
+            this(method, url, headers, body, abortSignal, maxResponseBodySize, connectTimeoutMillis, readTimeoutMillis,
+                    RequestEvents.NONE);
+        }
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body,
+                       AbortSignal abortSignal, long maxResponseBodySize,
+                       int connectTimeoutMillis, int readTimeoutMillis, RequestEvents events) {
+            if (!method.equals("GET") && !method.equals("POST")) {
+                throw new IllegalArgumentException("method must be GET or POST");
+            }
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.abortSignal = abortSignal;
+            this.maxResponseBodySize = maxResponseBodySize;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+            this.events = events;
+        }
+
+        private static byte[] encode(String body) {
+            try {
+                return body.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Tells a transport that the caller is no longer interested in the response.
+     * A transport aborts the exchange by closing its connection, so that
+     * the connection is not returned to the pool and the waiting thread is released.
+     */
+    public static final class AbortSignal {
+        private Runnable abortAction;
+        private boolean aborted = false;
+
+        /**
+         * Register the action to abort the exchange in flight, replacing the previous one.
+         * It runs immediately on the calling thread if already aborted.
+         *
+         * @param abortAction    action to run once, which may be called from any thread,
+         *                       or null after the exchange completed
+         */
+        public void setAbortAction(Runnable abortAction) {
+            synchronized (this) {
+                if (!aborted) {
+                    this.abortAction = abortAction;
+                    return;
+                }
+            }
+            if (abortAction != null) {
+                abortAction.run();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        void abort() {
+            Runnable action;
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                aborted = true;
+                action = abortAction;
+                abortAction = null;
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Passes the network phases of a request to the {@link WebPayEventListener} of its {@link WebPay} instance,
+     * stamped with the current time. Does nothing without a listener, so transports may call it unconditionally.
+     */
+    public static final class RequestEvents {
+        /**
+         * events of a request without a listener
+         */
+        public static final RequestEvents NONE = new RequestEvents(null, 0, Clock.SYSTEM);
+
+        private final WebPayEventListener listener;
+        private final long requestId;
+        private final Clock clock;
+
+        RequestEvents(WebPayEventListener listener, long requestId, Clock clock) {
+            this.listener = listener;
+            this.requestId = requestId;
+            this.clock = clock;
+        }
+
+        public void dnsStart() {
+            if (listener != null) {
+                listener.dnsStart(requestId, clock.nanoTime());
+            }
+        }
+
+        public void dnsEnd() {
+            if (listener != null) {
+                listener.dnsEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        public void connectStart() {
+            if (listener != null) {
+                listener.connectStart(requestId, clock.nanoTime());
+            }
+        }
+
+        public void connectEnd() {
+            if (listener != null) {
+                listener.connectEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        public void secureConnectStart() {
+            if (listener != null) {
+                listener.secureConnectStart(requestId, clock.nanoTime());
+            }
+        }
+
+        public void secureConnectEnd() {
+            if (listener != null) {
+                listener.secureConnectEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        public void requestBodyEnd() {
+            if (listener != null) {
+                listener.requestBodyEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        public void responseStart() {
+            if (listener != null) {
+                listener.responseStart(requestId, clock.nanoTime());
+            }
+        }
+
+        public void responseBodyEnd() {
+            if (listener != null) {
+                listener.responseBodyEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        void queueStart() {
+            if (listener != null) {
+                listener.queueStart(requestId, clock.nanoTime());
+            }
+        }
+
+        void queueEnd() {
+            if (listener != null) {
+                listener.queueEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        void parseEnd() {
+            if (listener != null) {
+                listener.parseEnd(requestId, clock.nanoTime());
+            }
+        }
+
+        void requestEnd(Throwable cause) {
+            if (listener != null) {
+                listener.requestEnd(requestId, clock.nanoTime(), cause);
+            }
+        }
+
+        void callbackEnd() {
+            if (listener != null) {
+                listener.callbackEnd(requestId, clock.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Collects response headers for {@link ResponseReader#read(int, Map, InputStream)}.
+     */
+    static final class HeaderCollector {
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        void add(String name, String value) {
+            String key = name.trim().toLowerCase(Locale.ENGLISH);
+            String previous = headers.get(key);
+            headers.put(key, previous == null ? value.trim() : previous + ", " + value.trim());
+        }
+
+        Map<String, String> toMap() {
+            return Collections.unmodifiableMap(headers);
+        }
+    }
+
+    /**
+     * Response whose whole body is in memory.
+     */
+    public static final class Response {
+        /**
+         * reader which keeps the whole body, for tools which need the raw response
+         */
+        public static final ResponseReader<Response> READER = new ResponseReader<Response>() {
+            @Override
+            public Response read(int statusCode, Map<String, String> headers, InputStream body) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = BufferPool.getDefault().acquire();
+                try {
+                    int read;
+                    while ((read = body.read(buffer)) >= 0) {
+                        bytes.write(buffer, 0, read);
+                    }
+                } finally {
+                    BufferPool.getDefault().release(buffer);
+                }
+                return new Response(statusCode, headers, bytes.toByteArray());
+            }
+        };
+
+        public final int statusCode;
+        /**
+         * response headers by lower-case name
+         */
+        public final Map<String, String> headers;
+        private final byte[] body;
+
+        public Response(int statusCode, byte[] body) {
+            this(statusCode, Collections.<String, String>emptyMap(), body);
+        }
+
+        public Response(int statusCode, Map<String, String> headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+        }
+
+        public InputStream openBody() {
+            return new ByteArrayInputStream(body);
+        }
+
+        /**
+         * @return body decoded as UTF-8
+         */
+        public String getBodyString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package jp.webpay.android.token;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport using {@link HttpURLConnection}.
+ * Connections are kept alive by the platform, as long as the response body is read to the end.
+ */
+public class UrlConnectionTransport implements Transport {
+    // the platform keeps idle connections for 5 minutes
+    static final long IDLE_TIMEOUT_SECONDS = 300;
+
+    private static UrlConnectionTransport instance;
+
+    private final TlsContext tlsContext;
+    private final CountingSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final AtomicLong secureRequests = new AtomicLong();
+    private final AtomicLong preconnectSockets = new AtomicLong();
+    private final PreconnectTracker preconnects = new PreconnectTracker(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    /**
+     * @return transport shared in the process
+     */
+    public static synchronized UrlConnectionTransport getInstance() {
+        if (instance == null) {
+            instance = new UrlConnectionTransport(TlsContext.getDefault());
+        }
+        return instance;
+    }
+
+    /**
+     * @param tlsContext    context whose session cache and pins are used for https requests
+     */
+    public UrlConnectionTransport(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+        socketFactory = new CountingSocketFactory(tlsContext.getSocketFactory());
+        hostnameVerifier = tlsContext.getHostnameVerifier();
+    }
+
+    @Override
+    public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(request.url).openConnection();
+        long createdBefore = socketFactory.created.get();
+        boolean secure = connection instanceof HttpsURLConnection;
+        if (secure) {
+            // the platform pools connections per socket factory, so always pass the same one
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+            ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
+            secureRequests.incrementAndGet();
+        }
+        // disconnecting from another thread closes the socket, failing blocked reads and writes
+        request.abortSignal.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
+        try {
+            if (request.abortSignal.isAborted()) {
+                throw new InterruptedIOException("Request is aborted");
+            }
+            connection.setConnectTimeout(request.connectTimeoutMillis);
+            connection.setReadTimeout(request.readTimeoutMillis);
+            connection.setUseCaches(false);
+            connection.setRequestMethod(request.method);
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (request.method.equals("POST")) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(request.body.length);
+                OutputStream out = connection.getOutputStream();
+                if (secure) {
+                    // connected by now, and the card must not reach a server not pinned
+                    checkPins((HttpsURLConnection) connection);
+                }
+                try {
+                    out.write(request.body);
+                } finally {
+                    out.close();
+                }
+                request.events.requestBodyEnd();
+            }
+
+            int statusCode = connection.getResponseCode();
+            // the platform tells only when the headers arrived
+            request.events.responseStart();
+            if (secure) {
+                if (!request.method.equals("POST")) {
+                    checkPins((HttpsURLConnection) connection);
+                }
+                // the platform does not tell which connection it used, so this is an estimate
+                // which may be off while other requests are in flight
+                if (socketFactory.created.get() > createdBefore) {
+                    preconnects.onConnectionOpened();
+                } else {
+                    preconnects.onWarmConnectionUsed();
+                }
+            }
+            InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            }
+            try {
+                InputStream body = new BoundedInputStream(in, connection.getContentLength(),
+                        request.maxResponseBodySize);
+                HeaderCollector headers = new HeaderCollector();
+                for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+                    // the status line has no name
+                    if (field.getKey() != null) {
+                        for (String value : field.getValue()) {
+                            headers.add(field.getKey(), value);
+                        }
+                    }
+                }
+                T result = reader.read(statusCode, headers.toMap(), body);
+                drain(body);
+                request.events.responseBodyEnd();
+                return result;
+            } catch (ResponseTooLargeException e) {
+                // closing the stream would read the rest of the body to reuse the connection
+                connection.disconnect();
+                throw e;
+            } finally {
+                in.close();
+            }
+        } catch (SocketTimeoutException e) {
+            connection.disconnect();
+            throw isConnectTimeout(e) ? new ConnectTimeoutException(e) : e;
+        } catch (IOException e) {
+            // do not return a broken connection to the pool
+            connection.disconnect();
+            throw e;
+        } catch (RuntimeException e) {
+            if (request.abortSignal.isAborted()) {
+                // the JDK may fail with NullPointerException when disconnected while reading
+                throw (InterruptedIOException) new InterruptedIOException("Request is aborted").initCause(e);
+            }
+            throw e;
+        } finally {
+            request.abortSignal.setAbortAction(null);
+        }
+    }
+
+    // HttpURLConnection tells the phase only by the message, such as "connect timed out" of the JDK
+    // and OkHttp, or "failed to connect to ..." of older Android. Calling connect() apart would tell it,
+    // but makes disconnecting from another thread unreliable on the JDK.
+    private static boolean isConnectTimeout(SocketTimeoutException e) {
+        String message = e.getMessage();
+        return message != null && message.toLowerCase(Locale.ENGLISH).contains("connect");
+    }
+
+    /**
+     * HttpURLConnection cannot connect without sending a request, so this sends a HEAD request
+     * to the root of the host and reads the response, which leaves the connection in the pool.
+     */
+    @Override
+    public void preconnect(String url) throws IOException {
+        if (!preconnects.begin()) {
+            return;
+        }
+        boolean warmed = false;
+        try {
+            URL root = new URL(new URL(url), "/");
+            HttpURLConnection connection = (HttpURLConnection) root.openConnection();
+            long createdBefore = socketFactory.created.get();
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+                ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
+            }
+            try {
+                connection.setConnectTimeout(Request.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+                connection.setReadTimeout(Request.DEFAULT_READ_TIMEOUT_MILLIS);
+                connection.setUseCaches(false);
+                connection.setRequestMethod("HEAD");
+                int statusCode = connection.getResponseCode();
+                if (connection instanceof HttpsURLConnection) {
+                    checkPins((HttpsURLConnection) connection);
+                }
+                InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    drain(in);
+                    in.close();
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+            long created = socketFactory.created.get() - createdBefore;
+            preconnectSockets.addAndGet(created);
+            warmed = created > 0;
+        } finally {
+            preconnects.end(warmed);
+        }
+    }
+
+    @Override
+    public ConnectionStats getConnectionStats() {
+        long opened = socketFactory.created.get() - preconnectSockets.get();
+        return preconnects.toStats(opened, Math.max(0, secureRequests.get() - opened));
+    }
+
+    // The JDK calls the verifier of the context only when its own host name check fails,
+    // so pins are checked on the connection, whether new or pooled.
+    private void checkPins(HttpsURLConnection connection) throws SSLPeerUnverifiedException {
+        tlsContext.checkPins(connection.getURL().getHost(), connection.getServerCertificates());
+    }
+
+    // Reading up to the end lets the platform put the connection back to its pool.
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = BufferPool.getDefault().acquire();
+        try {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Counts TLS connections the platform opens, which are the ones not reused from its pool.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final AtomicLong created = new AtomicLong();
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
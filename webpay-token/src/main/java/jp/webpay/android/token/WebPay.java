@@ -1,13 +1,35 @@
 package jp.webpay.android.token;
 
+import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Build;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jp.webpay.android.token.json.JsonReader;
+import jp.webpay.android.token.json.JsonWriter;
 import jp.webpay.android.token.model.AccountAvailability;
 import jp.webpay.android.token.model.ErrorResponse;
 import jp.webpay.android.token.model.RawCard;
@@ -16,129 +38,1193 @@ import jp.webpay.android.token.model.Token;
 public class WebPay {
 
     private static final Uri BASE_URI = Uri.parse("https://api.webpay.jp/v1");
+    static final List<Uri> DEFAULT_ENDPOINTS = Collections.singletonList(BASE_URI);
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+    private static final String SNAPSHOT_FILE_NAME = "webpay-availability";
+    private static volatile Transport defaultTransport;
+    private static volatile Executor defaultExecutor;
+    private static final AtomicLong requestIds = new AtomicLong();
+    private final String publishableKey;
+    private final List<Uri> endpoints;
     private final WebPayPublicClient client;
+    private final Executor executor;
+    private final RetryPolicy retryPolicy;
+    private final Clock clock;
+    // null unless hedging is enabled
+    private final Hedger hedger;
+    // null if disabled
+    private final CircuitBreaker circuitBreaker;
+    // null if disabled
+    private final RateLimiter rateLimiter;
+    // null unless set
+    private final WebPayEventListener eventListener;
+    private final Random random = new Random();
+    // by the ordinal of RequestPriority
+    private final RequestTimings[] timings = new RequestTimings[RequestPriority.values().length];
+    private final WebPayMetrics metrics = new WebPayMetrics();
+    // the only mutable setting, left for setLanguage
+    private volatile String language;
 
     public WebPay(String publishableKey) {
-        client = new WebPayPublicClient(BASE_URI, publishableKey);
+        this(new Builder(publishableKey));
     }
 
+    private WebPay(Builder builder) {
+        publishableKey = builder.publishableKey;
+        endpoints = builder.baseUris;
+        Transport transport = builder.transport != null ? builder.transport : getDefaultTransport();
+        client = new WebPayPublicClient(new EndpointRouter(builder.baseUris, builder.clock), builder.publishableKey,
+                transport, builder.maxResponseBodySize, builder.connectTimeoutMillis, builder.readTimeoutMillis);
+        executor = builder.executor != null ? builder.executor : getDefaultExecutor();
+        retryPolicy = builder.retryPolicy;
+        clock = builder.clock;
+        hedger = builder.hedgingPolicy != null
+                ? new Hedger(builder.hedgingPolicy, WebPayExecutors.scheduler()) : null;
+        if (builder.circuitBreakerSet) {
+            circuitBreaker = builder.circuitBreaker;
+        } else if (builder.transport != null) {
+            circuitBreaker = new CircuitBreaker.Builder().clock(clock).build();
+        } else {
+            circuitBreaker = CircuitBreaker.getShared(builder.baseUris);
+        }
+        rateLimiter = builder.rateLimitPolicy != null ? new RateLimiter(builder.rateLimitPolicy, clock) : null;
+        eventListener = builder.eventListener;
+        language = builder.language;
+        for (int i = 0; i < timings.length; i++) {
+            timings[i] = new RequestTimings();
+        }
+    }
+
+    /**
+     * Set the transport for WebPay instances built without {@link Builder#transport(Transport)},
+     * including ones created by {@link jp.webpay.android.token.ui.WebPayTokenFragment}
+     * and {@link jp.webpay.android.token.ui.CardDialogFragment}.
+     * <p>
+     * By default, HttpURLConnection is used from Android 2.3, and Apache HTTP client on Android 2.2,
+     * where HttpURLConnection is less reliable.
+     *
+     * @param transport    transport to use, or null to restore the default
+     */
+    public static void setDefaultTransport(Transport transport) {
+        defaultTransport = transport;
+    }
+
+    static Transport getDefaultTransport() {
+        Transport transport = defaultTransport;
+        if (transport != null) {
+            return transport;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+            return ApacheTransport.getInstance();
+        } else {
+            return UrlConnectionTransport.getInstance();
+        }
+    }
+
+    /**
+     * Set the executor for WebPay instances built without {@link Builder#executor(Executor)},
+     * including ones created by {@link jp.webpay.android.token.ui.WebPayTokenFragment}
+     * and {@link jp.webpay.android.token.ui.CardDialogFragment}.
+     *
+     * @param executor    executor to use, or null to restore {@link WebPayExecutors#getDefault()}
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    static Executor getDefaultExecutor() {
+        Executor executor = defaultExecutor;
+        return executor != null ? executor : WebPayExecutors.getDefault();
+    }
+
+    String getPublishableKey() {
+        return publishableKey;
+    }
+
+    List<Uri> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Counters of connections of the transport this instance uses.
+     * The transport may be shared with other instances.
+     * @return snapshot of the current counters
+     */
+    public ConnectionStats getConnectionStats() {
+        return client.getTransport().getConnectionStats();
+    }
+
+    /**
+     * Routing counters of the endpoints of this instance, in the order given to {@link Builder#endpoints(String...)}.
+     * @return snapshot of the current counters
+     */
+    public List<EndpointStats> getEndpointStats() {
+        return client.getEndpointStats();
+    }
+
+    /**
+     * Counters of the buffers responses are read into, shared by all instances.
+     * @return snapshot of the current counters
+     */
+    public static BufferPoolStats getBufferPoolStats() {
+        return BufferPool.getDefault().getStats();
+    }
+
+    /**
+     * Open a connection to WebPay in background and keep it, so that the next request
+     * skips DNS lookup, TCP and TLS handshake. Call this when a request is likely to follow,
+     * such as when a card form is shown. {@link jp.webpay.android.token.ui.CardDialogFragment}
+     * calls this once when the dialog is created.
+     * <p>
+     * Failures are ignored, since the request opens a connection anyway.
+     * See {@link ConnectionStats#preconnectHits} to know whether requests used the connection.
+     */
+    public void preconnect() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.preconnect();
+                    } catch (IOException ignored) {
+                        // the following request will try again
+                    } catch (RuntimeException ignored) {
+                        // same as above
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // the executor is busy or shut down, preconnect is optional
+        }
+    }
+
+    /**
+     * Timing counters of requests of this instance, to tell whether requests wait for the executor
+     * or for the network.
+     * @return snapshot of the current counters
+     */
+    public RequestStats getRequestStats() {
+        return RequestTimings.sum(timings,
+                hedger != null ? hedger.getHedgeCount() : 0, hedger != null ? hedger.getHedgeWinCount() : 0);
+    }
+
+    /**
+     * Timing counters of requests of the priority, to tell how long each priority waits for the executor.
+     * Hedges are counted only by {@link #getRequestStats()}.
+     * @param priority    priority of the requests, such as {@link RequestPriority#USER_INITIATED} for tokens
+     * @return snapshot of the current counters
+     */
+    public RequestStats getRequestStats(RequestPriority priority) {
+        return RequestTimings.sum(new RequestTimings[]{timings[priority.ordinal()]}, 0, 0);
+    }
+
+    /**
+     * @return latency histograms of the calls of this instance, by operation and outcome
+     */
+    public WebPayMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return breaker which fails requests fast while WebPay is unreachable, or null if disabled
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Change the language of calls without {@link RequestOptions#getLanguage()}.
+     * Concurrent calls may be sent in either language.
+     *
+     * @param language    language of messages in error responses, "en" or "ja"
+     * @deprecated set it once by {@link Builder#language(String)}, or for each call by {@link RequestOptions}
+     */
+    @Deprecated
     public void setLanguage(String language) {
-        client.setLanguage(language);
+        this.language = language;
+    }
+
+    /**
+     * Create a token, calling the listener on the main thread.
+     *
+     * @param rawCard     card to create a token from
+     * @param listener    listener to receive the token or the cause of failure
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<Token> createToken(RawCard rawCard, WebPayListener<Token> listener) {
+        return createToken(rawCard, listener, WebPayExecutors.mainThread());
+    }
+
+    /**
+     * Create a token, calling the listener on the given executor.
+     * Pass a direct executor to receive the result on the thread which ran the request,
+     * without a message to the main thread.
+     *
+     * @param rawCard             card to create a token from
+     * @param listener            listener to receive the token or the cause of failure
+     * @param callbackExecutor    executor to call the listener on
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<Token> createToken(RawCard rawCard, WebPayListener<Token> listener,
+                                           Executor callbackExecutor) {
+        checkListener(listener, callbackExecutor);
+        return createToken(rawCard).addListener(listener, callbackExecutor);
+    }
+
+    /**
+     * Start creating a token.
+     *
+     * @param rawCard    card to create a token from
+     * @return future completed on the thread which ran the request
+     */
+    public WebPayFuture<Token> createToken(RawCard rawCard) {
+        return createTokenWithPriority(rawCard, RequestOptions.DEFAULT, RequestPriority.USER_INITIATED);
+    }
+
+    /**
+     * Create a token with the options of this call, calling the listener on the main thread.
+     *
+     * @param rawCard     card to create a token from
+     * @param options     options of this call, such as the language
+     * @param listener    listener to receive the token or the cause of failure
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<Token> createToken(RawCard rawCard, RequestOptions options, WebPayListener<Token> listener) {
+        return createToken(rawCard, options, listener, WebPayExecutors.mainThread());
+    }
+
+    /**
+     * Create a token with the options of this call, calling the listener on the given executor.
+     *
+     * @param rawCard             card to create a token from
+     * @param options             options of this call, such as the language
+     * @param listener            listener to receive the token or the cause of failure
+     * @param callbackExecutor    executor to call the listener on
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<Token> createToken(RawCard rawCard, RequestOptions options, WebPayListener<Token> listener,
+                                           Executor callbackExecutor) {
+        checkListener(listener, callbackExecutor);
+        return createTokenWithPriority(rawCard, options, RequestPriority.USER_INITIATED)
+                .addListener(listener, callbackExecutor);
     }
 
-    public void createToken(final RawCard rawCard, WebPayListener<Token> listener) {
+    WebPayFuture<Token> createTokenWithPriority(final RawCard rawCard, final RequestOptions options,
+                                                final RequestPriority priority) {
         if (rawCard == null) {
             throw new IllegalArgumentException("rawCard must not be null");
         }
-        new RequestTask<Token>(listener) {
+        if (hedger == null) {
+            return submitTokenRequest(rawCard, options, priority, true);
+        }
+        final long startedAt = System.nanoTime();
+        // attempts are not recorded by themselves, so that a hedged call counts once
+        return hedger.call(new Hedger.Attempt<Token>() {
+            @Override
+            public WebPayFuture<Token> start() {
+                return submitTokenRequest(rawCard, options, priority, false);
+            }
+        }, new WebPayListener<Token>() {
+            @Override
+            public void onCreate(Token token) {
+                metrics.recordSuccess(WebPayMetrics.Operation.CREATE_TOKEN, System.nanoTime() - startedAt);
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                recordFailure(WebPayMetrics.Operation.CREATE_TOKEN, cause, System.nanoTime() - startedAt);
+            }
+        });
+    }
+
+    // Each call of this, such as a hedge, has its own Idempotency-Key, since WebPay rejects a key while
+    // a request with it is in flight. Retries of the call share the key, so that WebPay answers them
+    // with the token it already created.
+    private WebPayFuture<Token> submitTokenRequest(final RawCard rawCard, RequestOptions options,
+                                                   RequestPriority priority, boolean recordsMetrics) {
+        final Map<String, String> headers = Collections.singletonMap("Idempotency-Key", UUID.randomUUID().toString());
+        RequestTask<Token> task = new RequestTask<Token>(WebPayMetrics.Operation.CREATE_TOKEN, priority, options) {
+            @Override
+            TaskResult<Token> sendRequest(Transport.AbortSignal abortSignal,
+                                          Transport.RequestEvents events) throws IOException {
+                return client.request("POST", "tokens", encode(rawCard), language, headers, abortSignal, events, this);
+            }
+
+            @Override
+            Token readModel(JsonReader reader) throws IOException, JSONException {
+                return Token.readJson(reader);
+            }
+        };
+        task.recordsMetrics = recordsMetrics;
+        return task.submit();
+    }
+
+    private void recordFailure(WebPayMetrics.Operation operation, Throwable cause, long nanos) {
+        if (cause instanceof ErrorResponseException) {
+            metrics.recordError(operation, ((ErrorResponseException) cause).getResponse(), nanos);
+        } else if (cause instanceof JSONException) {
+            metrics.recordJSONException(operation, nanos);
+        } else if (cause instanceof IOException) {
+            metrics.recordIOException(operation, nanos);
+        }
+    }
+
+    /**
+     * Create a token, blocking the current thread. Must not be called on the main thread.
+     * The request is cancelled if it does not complete in time.
+     *
+     * @param rawCard    card to create a token from
+     * @param timeout    the maximum time to wait
+     * @param unit       the time unit of the timeout
+     * @return created token
+     * @throws ErrorResponseException if WebPay returned an error response
+     * @throws IOException            if the communication failed
+     * @throws JSONException          if the response could not be parsed
+     * @throws TimeoutException       if the request did not complete in time
+     * @throws InterruptedException   if the current thread was interrupted while waiting
+     */
+    public Token createTokenSync(RawCard rawCard, long timeout, TimeUnit unit)
+            throws IOException, JSONException, TimeoutException, InterruptedException {
+        return createTokenSync(rawCard, RequestOptions.DEFAULT, timeout, unit);
+    }
+
+    /**
+     * Create a token with the options of this call, blocking the current thread.
+     * Must not be called on the main thread. The request is cancelled if it does not complete in time.
+     *
+     * @param rawCard    card to create a token from
+     * @param options    options of this call, such as the language
+     * @param timeout    the maximum time to wait
+     * @param unit       the time unit of the timeout
+     * @return created token
+     * @throws ErrorResponseException if WebPay returned an error response
+     * @throws IOException            if the communication failed
+     * @throws JSONException          if the response could not be parsed
+     * @throws TimeoutException       if the request did not complete in time
+     * @throws InterruptedException   if the current thread was interrupted while waiting
+     */
+    public Token createTokenSync(RawCard rawCard, RequestOptions options, long timeout, TimeUnit unit)
+            throws IOException, JSONException, TimeoutException, InterruptedException {
+        return await(createTokenWithPriority(rawCard, options, RequestPriority.USER_INITIATED), timeout, unit);
+    }
+
+    /**
+     * Start creating tokens of the cards, {@link TokenBatch#DEFAULT_CONCURRENCY} at once,
+     * returning results in completion order.
+     *
+     * @param cards    cards to create tokens from
+     * @return batch to take results from
+     */
+    public TokenBatch createTokens(Iterable<RawCard> cards) {
+        return createTokens(cards, TokenBatch.DEFAULT_CONCURRENCY, TokenBatch.Order.COMPLETION);
+    }
+
+    /**
+     * Start creating tokens of the cards.
+     *
+     * @param cards          cards to create tokens from
+     * @param concurrency    the maximum number of requests in flight and results not taken
+     * @param order          order to return results in
+     * @return batch to take results from
+     */
+    public TokenBatch createTokens(Iterable<RawCard> cards, int concurrency, TokenBatch.Order order) {
+        if (cards == null) {
+            throw new IllegalArgumentException("cards must not be null");
+        }
+        return createTokens(cards.iterator(), concurrency, order);
+    }
+
+    /**
+     * Start creating tokens of cards pulled from the iterator as slots of the window are freed,
+     * so that the source may generate cards on demand.
+     * The iterator is read on this thread and on the thread taking results, one at a time.
+     *
+     * @param cards          source of cards to create tokens from
+     * @param concurrency    the maximum number of requests in flight and results not taken
+     * @param order          order to return results in
+     * @return batch to take results from
+     */
+    public TokenBatch createTokens(Iterator<RawCard> cards, int concurrency, TokenBatch.Order order) {
+        TokenBatch batch = new TokenBatch(this, cards, concurrency, order);
+        batch.start();
+        return batch;
+    }
+
+    /**
+     * Retrieve card types and currencies of the account, calling the listener on the main thread.
+     *
+     * @param listener    listener to receive the availability or the cause of failure
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<AccountAvailability> retrieveAvailability(WebPayListener<AccountAvailability> listener) {
+        return retrieveAvailability(listener, WebPayExecutors.mainThread());
+    }
+
+    /**
+     * Retrieve card types and currencies of the account, calling the listener on the given executor.
+     *
+     * @param listener            listener to receive the availability or the cause of failure
+     * @param callbackExecutor    executor to call the listener on
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<AccountAvailability> retrieveAvailability(WebPayListener<AccountAvailability> listener,
+                                                                  Executor callbackExecutor) {
+        checkListener(listener, callbackExecutor);
+        return retrieveAvailability().addListener(listener, callbackExecutor);
+    }
+
+    /**
+     * Start retrieving card types and currencies of the account.
+     *
+     * @return future completed on the thread which ran the request
+     */
+    public WebPayFuture<AccountAvailability> retrieveAvailability() {
+        return retrieveAvailabilityWithOptions(RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Retrieve card types and currencies of the account with the options of this call,
+     * calling the listener on the main thread.
+     *
+     * @param options     options of this call, such as the language
+     * @param listener    listener to receive the availability or the cause of failure
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<AccountAvailability> retrieveAvailability(RequestOptions options,
+                                                                  WebPayListener<AccountAvailability> listener) {
+        return retrieveAvailability(options, listener, WebPayExecutors.mainThread());
+    }
+
+    /**
+     * Retrieve card types and currencies of the account with the options of this call,
+     * calling the listener on the given executor.
+     *
+     * @param options             options of this call, such as the language
+     * @param listener            listener to receive the availability or the cause of failure
+     * @param callbackExecutor    executor to call the listener on
+     * @return handle to cancel the request
+     */
+    public WebPayFuture<AccountAvailability> retrieveAvailability(RequestOptions options,
+                                                                  WebPayListener<AccountAvailability> listener,
+                                                                  Executor callbackExecutor) {
+        checkListener(listener, callbackExecutor);
+        return retrieveAvailabilityWithOptions(options).addListener(listener, callbackExecutor);
+    }
+
+    private WebPayFuture<AccountAvailability> retrieveAvailabilityWithOptions(RequestOptions options) {
+        return new RequestTask<AccountAvailability>(WebPayMetrics.Operation.RETRIEVE_AVAILABILITY,
+                RequestPriority.BACKGROUND, options) {
             @Override
-            WebPayPublicClient.Result sendRequest() throws IOException {
-                return client.request("POST", "tokens", rawCard.toJson().toString());
+            TaskResult<AccountAvailability> sendRequest(Transport.AbortSignal abortSignal,
+                                                        Transport.RequestEvents events) throws IOException {
+                return client.request("GET", "account/availability", null, language, NO_HEADERS,
+                        abortSignal, events, this);
             }
 
             @Override
-            Token parseResponse(JSONObject json) throws JSONException {
-                return Token.fromJson(json);
+            AccountAvailability readModel(JsonReader reader) throws IOException, JSONException {
+                return AccountAvailability.readJson(reader);
             }
-        }.execute();
+        }.submit();
+    }
+
+    /**
+     * Get card types and currencies of the account from the cache shared in the process,
+     * calling the listener on the main thread.
+     *
+     * @param listener    listener to receive the availability or the cause of failure
+     * @return handle to stop waiting, which does not cancel a request shared with other callers
+     * @see #getAvailability()
+     */
+    public WebPayFuture<AccountAvailability> getAvailability(WebPayListener<AccountAvailability> listener) {
+        return getAvailability(listener, WebPayExecutors.mainThread());
+    }
+
+    /**
+     * Get card types and currencies of the account from the cache shared in the process,
+     * calling the listener on the given executor.
+     *
+     * @param listener            listener to receive the availability or the cause of failure
+     * @param callbackExecutor    executor to call the listener on
+     * @return handle to stop waiting, which does not cancel a request shared with other callers
+     * @see #getAvailability()
+     */
+    public WebPayFuture<AccountAvailability> getAvailability(WebPayListener<AccountAvailability> listener,
+                                                             Executor callbackExecutor) {
+        checkListener(listener, callbackExecutor);
+        return getAvailability().addListener(listener, callbackExecutor);
+    }
+
+    /**
+     * Get card types and currencies of the account from the cache shared in the process,
+     * which is keyed by publishable key.
+     * A cached value is returned at once. If it is older than 5 minutes, a request refreshes it in background.
+     * Otherwise, a request is sent, and callers while it is in flight share it.
+     *
+     * @return future completed with the cached value, or on the thread which ran the request
+     */
+    public WebPayFuture<AccountAvailability> getAvailability() {
+        return AvailabilityCache.getInstance().get(this);
+    }
+
+    /**
+     * Save availability cached by {@link #getAvailability()} to a file in the cache directory of the app,
+     * and load the one saved by the last process, so that the first screen shows card types without waiting.
+     * The loaded value is revalidated by a conditional request on the first use, which costs
+     * a 304 response if the availability is unchanged.
+     * {@link jp.webpay.android.token.ui.WebPayTokenFragment} calls this when created.
+     * Calls after the first are ignored.
+     *
+     * @param context    context of the app, which reads the file on this thread
+     */
+    public static void enableAvailabilitySnapshot(Context context) {
+        File file = new File(context.getCacheDir(), SNAPSHOT_FILE_NAME);
+        AvailabilityCache.getInstance().attachSnapshot(new AvailabilitySnapshot(file));
+    }
+
+    /**
+     * Look up availability cached by {@link #getAvailability()}, without sending a request.
+     * Only values of instances with the default endpoints are found.
+     *
+     * @param publishableKey    publishable key of the account
+     * @return cached availability, or null if none
+     */
+    public static AccountAvailability peekAvailability(String publishableKey) {
+        return AvailabilityCache.getInstance().peek(publishableKey, DEFAULT_ENDPOINTS);
+    }
+
+    /**
+     * Discard availability cached by {@link #getAvailability()}, such as after the account is changed.
+     */
+    public static void clearAvailabilityCache() {
+        AvailabilityCache.getInstance().clear();
     }
 
-    public void retrieveAvailability(WebPayListener<AccountAvailability> listener) {
-        new RequestTask<AccountAvailability>(listener) {
+    /**
+     * Retrieve availability with the validators of a cached one, for {@link AvailabilityCache}.
+     *
+     * @param etag            entity tag of the cached response, or null
+     * @param lastModified    Last-Modified of the cached response, or null
+     * @return future of the response, whose value is null if not modified
+     */
+    WebPayFuture<AvailabilityCache.Fetched> fetchAvailability(String etag, String lastModified) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return new RequestTask<AvailabilityCache.Fetched>(WebPayMetrics.Operation.RETRIEVE_AVAILABILITY,
+                RequestPriority.BACKGROUND, RequestOptions.DEFAULT) {
+            @Override
+            TaskResult<AvailabilityCache.Fetched> sendRequest(Transport.AbortSignal abortSignal,
+                                                              Transport.RequestEvents events) throws IOException {
+                return client.request("GET", "account/availability", null, language, headers,
+                        abortSignal, events, this);
+            }
+
             @Override
-            WebPayPublicClient.Result sendRequest() throws IOException {
-                return client.request("GET", "account/availability", null);
+            AvailabilityCache.Fetched readModel(JsonReader reader) throws IOException, JSONException {
+                return new AvailabilityCache.Fetched(AccountAvailability.readJson(reader),
+                        responseHeaders.get("etag"), responseHeaders.get("last-modified"));
             }
 
             @Override
-            AccountAvailability parseResponse(JSONObject json) throws JSONException {
-                return AccountAvailability.fromJson(json);
+            AvailabilityCache.Fetched readNotModified() {
+                return new AvailabilityCache.Fetched(null,
+                        responseHeaders.get("etag"), responseHeaders.get("last-modified"));
             }
-        }.execute();
+        }.submit();
+    }
+
+    /**
+     * Retrieve card types and currencies of the account, blocking the current thread.
+     * Must not be called on the main thread.
+     * The request is cancelled if it does not complete in time.
+     *
+     * @param timeout    the maximum time to wait
+     * @param unit       the time unit of the timeout
+     * @return availability of the account
+     * @throws ErrorResponseException if WebPay returned an error response
+     * @throws IOException            if the communication failed
+     * @throws JSONException          if the response could not be parsed
+     * @throws TimeoutException       if the request did not complete in time
+     * @throws InterruptedException   if the current thread was interrupted while waiting
+     */
+    public AccountAvailability retrieveAvailabilitySync(long timeout, TimeUnit unit)
+            throws IOException, JSONException, TimeoutException, InterruptedException {
+        return await(retrieveAvailability(), timeout, unit);
     }
 
-    private abstract static class RequestTask<T> extends AsyncTask<Void, Void, TaskResult<T>> {
-        private final WebPayListener<T> listener;
+    // the card is small, so it is written to a buffer to send with Content-Length
+    private static byte[] encode(RawCard rawCard) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        JsonWriter writer = new JsonWriter(bytes);
+        rawCard.writeJson(writer);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static void checkListener(WebPayListener<?> listener, Executor callbackExecutor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (callbackExecutor == null) {
+            throw new IllegalArgumentException("callbackExecutor must not be null");
+        }
+    }
 
-        private RequestTask(WebPayListener<T> listener) {
-            if (listener == null) {
-                throw new IllegalArgumentException("listener must not be null");
+    private static <T> T await(WebPayFuture<T> future, long timeout, TimeUnit unit)
+            throws IOException, JSONException, TimeoutException, InterruptedException {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            this.listener = listener;
+            throw new AssertionError(cause);
         }
+    }
 
-        abstract WebPayPublicClient.Result sendRequest() throws IOException;
+    /**
+     * Builder of a WebPay instance.
+     * <pre>{@code
+     * WebPay webpay = new WebPay.Builder(WEBPAY_PUBLISHABLE_KEY)
+     *         .transport(new NioTransport())
+     *         .build();
+     * }</pre>
+     */
+    public static class Builder {
+        private final String publishableKey;
+        private Transport transport;
+        private Executor executor;
+        private List<Uri> baseUris = DEFAULT_ENDPOINTS;
+        private long maxResponseBodySize = Transport.Request.DEFAULT_MAX_RESPONSE_BODY_SIZE;
+        private int connectTimeoutMillis = Transport.Request.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int readTimeoutMillis = Transport.Request.DEFAULT_READ_TIMEOUT_MILLIS;
+        private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+        private Clock clock = Clock.SYSTEM;
+        private HedgingPolicy hedgingPolicy;
+        private CircuitBreaker circuitBreaker;
+        private boolean circuitBreakerSet = false;
+        private RateLimitPolicy rateLimitPolicy;
+        private WebPayEventListener eventListener;
+        private String language = WebPayPublicClient.DEFAULT_LANGUAGE;
 
-        abstract T parseResponse(JSONObject json) throws JSONException;
+        /**
+         * @param publishableKey    WebPay publishable key to generate token
+         */
+        public Builder(String publishableKey) {
+            this.publishableKey = publishableKey;
+        }
 
-        @Override
-        protected TaskResult<T> doInBackground(Void... params) {
-            try {
-                WebPayPublicClient.Result result;
-                try {
-                    result = sendRequest();
-                } catch (IOException e) {
-                    return new TaskResult<T>(e);
+        /**
+         * @param executor    executor to run requests, which may block its threads.
+         *                    Default is the one set by {@link WebPay#setDefaultExecutor(Executor)}.
+         *                    Listeners are called on the main thread regardless of it,
+         *                    unless a callback executor is given.
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param transport    HTTP engine to send requests.
+         *                     Default is the one set by {@link WebPay#setDefaultTransport(Transport)}.
+         * @return this builder
+         */
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param baseUris    base URIs of the API, such as a regional edge, a proxy or a local stub server.
+         *                    Each request goes to the one with the lowest response time and fewest recent failures,
+         *                    and to the next one if the connection could not be established.
+         *                    Default is https://api.webpay.jp/v1.
+         * @return this builder
+         */
+        public Builder endpoints(String... baseUris) {
+            if (baseUris == null || baseUris.length == 0) {
+                throw new IllegalArgumentException("baseUris must not be empty");
+            }
+            List<Uri> uris = new ArrayList<Uri>(baseUris.length);
+            for (String baseUri : baseUris) {
+                Uri uri = baseUri == null ? null : Uri.parse(baseUri);
+                if (uri == null || !("https".equals(uri.getScheme()) || "http".equals(uri.getScheme()))
+                        || uri.getHost() == null) {
+                    throw new IllegalArgumentException("baseUris must be absolute http or https URIs: " + baseUri);
                 }
-                if (result.statusCode >= 200 && result.statusCode < 300) {
-                    try {
-                        return new TaskResult<T>(parseResponse(new JSONObject(result.responseBody)));
-                    } catch (JSONException e) {
-                        return new TaskResult<T>(e);
-                    }
-                } else {
-                    try {
-                        ErrorResponse error = ErrorResponse.fromJson(result.statusCode, new JSONObject(result.responseBody));
-                        return new TaskResult<T>(error);
-                    } catch (JSONException e) {
-                        return new TaskResult<T>(e);
-                    }
+                uris.add(uri);
+            }
+            this.baseUris = uris;
+            return this;
+        }
+
+        /**
+         * @param maxResponseBodySize    maximum size of a response body in bytes.
+         *                               Larger responses, such as pages of captive portals, fail with
+         *                               {@link ResponseTooLargeException} before they are read.
+         *                               Default is {@link Transport.Request#DEFAULT_MAX_RESPONSE_BODY_SIZE}.
+         * @return this builder
+         */
+        public Builder maxResponseBodySize(long maxResponseBodySize) {
+            if (maxResponseBodySize <= 0) {
+                throw new IllegalArgumentException("maxResponseBodySize must be positive");
+            }
+            this.maxResponseBodySize = maxResponseBodySize;
+            return this;
+        }
+
+        /**
+         * @param timeout    time to wait for a connection to WebPay, after which the attempt fails with
+         *                   {@link ConnectTimeoutException} and may be retried.
+         *                   Default is {@link Transport.Request#DEFAULT_CONNECT_TIMEOUT_MILLIS} milliseconds.
+         * @param unit       the time unit of the timeout
+         * @return this builder
+         */
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            connectTimeoutMillis = toTimeoutMillis(timeout, unit);
+            return this;
+        }
+
+        /**
+         * @param timeout    time to wait for each read of the response, after which the request fails
+         *                   with {@link java.net.SocketTimeoutException} without a retry,
+         *                   since the request may have reached WebPay.
+         *                   Default is {@link Transport.Request#DEFAULT_READ_TIMEOUT_MILLIS} milliseconds.
+         * @param unit       the time unit of the timeout
+         * @return this builder
+         */
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            readTimeoutMillis = toTimeoutMillis(timeout, unit);
+            return this;
+        }
+
+        /**
+         * @param retryPolicy    policy to send failed requests again.
+         *                       Default is {@link RetryPolicy#DEFAULT}. Pass {@link RetryPolicy#NONE} to disable.
+         * @return this builder
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            if (retryPolicy == null) {
+                throw new IllegalArgumentException("retryPolicy must not be null");
+            }
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * @param hedgingPolicy    policy to send a slow token request again on another connection,
+         *                         or null to disable, which is the default.
+         *                         A hedge runs on the executor, which needs a free thread for it.
+         * @return this builder
+         */
+        public Builder hedging(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        /**
+         * @param circuitBreaker    breaker to fail requests with {@link CircuitOpenException} while WebPay
+         *                          is unreachable, or null to disable. Default is the one shared by instances
+         *                          of the same endpoints, or a new one for an instance with its own transport.
+         * @return this builder
+         */
+        public Builder circuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            circuitBreakerSet = true;
+            return this;
+        }
+
+        /**
+         * @param rateLimitPolicy    limits of requests in flight and per second,
+         *                           such as {@link RateLimitPolicy#DEFAULT}, or null to disable, which is the default
+         * @return this builder
+         */
+        public Builder rateLimit(RateLimitPolicy rateLimitPolicy) {
+            this.rateLimitPolicy = rateLimitPolicy;
+            return this;
+        }
+
+        /**
+         * @param eventListener    listener to receive the phases of each request, such as {@link ChromeTraceExporter},
+         *                         or null to disable, which is the default
+         * @return this builder
+         */
+        public Builder eventListener(WebPayEventListener eventListener) {
+            this.eventListener = eventListener;
+            return this;
+        }
+
+        /**
+         * @param language    language of messages in error responses, "en" or "ja". Default is "en".
+         *                    {@link RequestOptions} may change it for each call.
+         * @return this builder
+         */
+        public Builder language(String language) {
+            if (language == null || language.length() == 0) {
+                throw new IllegalArgumentException("language must not be empty");
+            }
+            this.language = language;
+            return this;
+        }
+
+        Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        private static int toTimeoutMillis(long timeout, TimeUnit unit) {
+            long millis = unit.toMillis(timeout);
+            if (millis <= 0 || millis > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("timeout must be from 1 millisecond to Integer.MAX_VALUE milliseconds");
+            }
+            return (int) millis;
+        }
+
+        public WebPay build() {
+            return new WebPay(this);
+        }
+    }
+
+    // the longest Retry-After to wait for in a retry, beyond which the response is returned
+    private long getMaxRetryAfterNanos() {
+        if (rateLimiter != null) {
+            return rateLimiter.getMaxWaitNanos();
+        }
+        return Math.max(retryPolicy.getMaxBackoffNanos(), RateLimitPolicy.DEFAULT.getMaxWaitNanos());
+    }
+
+    /**
+     * Runs a request on the executor and reads its response as a stream.
+     */
+    private abstract class RequestTask<T>
+            implements PriorityExecutor.Prioritized, Transport.ResponseReader<TaskResult<T>> {
+        private final WebPayMetrics.Operation operation;
+        private final RequestPriority priority;
+        // Accept-Language of every attempt, fixed when the call is made
+        final String language;
+        private final Transport.AbortSignal abortSignal = new Transport.AbortSignal();
+        private final WebPayFuture<T> future = new WebPayFuture<T>() {
+            @Override
+            void onCancelled() {
+                abortSignal.abort();
+                // free the queue slot instead of waiting for a thread to skip the task
+                if (executor instanceof PriorityExecutor) {
+                    ((PriorityExecutor) executor).remove(RequestTask.this);
+                } else if (executor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) executor).remove(RequestTask.this);
                 }
-            } catch (RuntimeException e) {
-                return new TaskResult<T>(e);
             }
+
+            @Override
+            void onFinished(Throwable cause) {
+                events.requestEnd(cause);
+            }
+
+            @Override
+            void onListenerCalled() {
+                events.callbackEnd();
+            }
+        };
+        private final Transport.RequestEvents events;
+        private long submittedAt;
+        // number of the attempt in flight, from 1
+        private int attempt = 0;
+        // Retry-After of the last response, or -1 if none
+        private long retryAfterNanos = -1;
+        // true if the last response was a 429 of WebPay itself, not of a proxy or captive portal on the way
+        private boolean throttledByWebPay = false;
+        // headers of the response being read
+        Map<String, String> responseHeaders = NO_HEADERS;
+        // false for an attempt of a hedged call, which is recorded once for all attempts
+        boolean recordsMetrics = true;
+
+        RequestTask(WebPayMetrics.Operation operation, RequestPriority priority, RequestOptions options) {
+            this.operation = operation;
+            this.priority = priority;
+            language = options.getLanguage() != null ? options.getLanguage() : WebPay.this.language;
+            events = eventListener == null ? Transport.RequestEvents.NONE
+                    : new Transport.RequestEvents(eventListener, requestIds.incrementAndGet(), clock);
         }
 
         @Override
-        protected void onCancelled() {
-            listener.onException(new RuntimeException("Communication task is not expected to be cancelled"));
+        public RequestPriority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Send the request, reading the response by this task.
+         */
+        abstract TaskResult<T> sendRequest(Transport.AbortSignal abortSignal,
+                                           Transport.RequestEvents events) throws IOException;
+
+        abstract T readModel(JsonReader reader) throws IOException, JSONException;
+
+        /**
+         * Read 304 Not Modified, which only a conditional request receives.
+         * @return the model, or null to read it as an error
+         */
+        T readNotModified() {
+            return null;
+        }
+
+        WebPayFuture<T> submit() {
+            submittedAt = System.nanoTime();
+            events.queueStart();
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                future.fail(e);
+            }
+            return future;
         }
 
         @Override
-        protected void onPostExecute(TaskResult<T> result) {
+        public void run() {
+            if (future.isDone()) {
+                // cancelled while waiting for the executor
+                return;
+            }
+            events.queueEnd();
+            TaskResult<T> result = perform();
+            recordMetrics(result);
             if (result.model != null) {
-                listener.onCreate(result.model);
+                future.complete(result.model);
             } else if (result.error != null) {
-                listener.onException(new ErrorResponseException(result.error));
+                future.fail(new ErrorResponseException(result.error));
             } else if (result.cause != null) {
-                listener.onException(result.cause);
+                future.fail(result.cause);
             } else {
                 throw new AssertionError("Incomplete result");
             }
         }
+
+        private void recordMetrics(TaskResult<T> result) {
+            if (!recordsMetrics || abortSignal.isAborted()) {
+                // cancelled, which tells nothing about WebPay
+                return;
+            }
+            long nanos = System.nanoTime() - submittedAt;
+            if (result.model != null) {
+                metrics.recordSuccess(operation, nanos);
+            } else if (result.error != null) {
+                metrics.recordError(operation, result.error, nanos);
+            } else if (result.cause instanceof JSONException) {
+                metrics.recordJSONException(operation, nanos);
+            } else if (result.cause instanceof IOException) {
+                metrics.recordIOException(operation, nanos);
+            }
+        }
+
+        private TaskResult<T> perform() {
+            try {
+                long startedAt = System.nanoTime();
+                try {
+                    while (true) {
+                        attempt++;
+                        TaskResult<T> result = sendAttempt();
+                        if (!shouldRetry(result)) {
+                            return result;
+                        }
+                        if (!backOff()) {
+                            return new TaskResult<T>(new InterruptedIOException("Request is aborted"));
+                        }
+                    }
+                } finally {
+                    timings[priority.ordinal()].record(startedAt - submittedAt, System.nanoTime() - startedAt,
+                            attempt - 1);
+                }
+            } catch (RuntimeException e) {
+                return new TaskResult<T>(e);
+            }
+        }
+
+        private TaskResult<T> sendAttempt() {
+            responseHeaders = NO_HEADERS;
+            retryAfterNanos = -1;
+            throttledByWebPay = false;
+            if (rateLimiter == null) {
+                return sendThroughBreaker();
+            }
+            long startedAt;
+            try {
+                startedAt = rateLimiter.acquire(priority, abortSignal);
+            } catch (IOException e) {
+                return new TaskResult<T>(e);
+            }
+            TaskResult<T> result = null;
+            try {
+                result = sendThroughBreaker();
+                return result;
+            } finally {
+                if (result == null || abortSignal.isAborted() || result.cause instanceof CircuitOpenException) {
+                    rateLimiter.onIgnored(priority);
+                } else {
+                    rateLimiter.onComplete(priority, startedAt, result.getStatusCode() == 429,
+                            throttledByWebPay ? retryAfterNanos : -1);
+                }
+            }
+        }
+
+        private TaskResult<T> sendThroughBreaker() {
+            if (circuitBreaker == null) {
+                return sendRequestCatching();
+            }
+            try {
+                circuitBreaker.acquire();
+            } catch (CircuitOpenException e) {
+                return new TaskResult<T>(e);
+            }
+            long attemptStartedAt = clock.nanoTime();
+            TaskResult<T> result = null;
+            try {
+                result = sendRequestCatching();
+                return result;
+            } finally {
+                if (result == null || abortSignal.isAborted()) {
+                    // cancelled or broken by a bug, which tells nothing about WebPay
+                    circuitBreaker.onIgnored();
+                } else {
+                    circuitBreaker.onComplete(result.isFailure(), clock.nanoTime() - attemptStartedAt);
+                }
+            }
+        }
+
+        private TaskResult<T> sendRequestCatching() {
+            try {
+                return sendRequest(abortSignal, events);
+            } catch (IOException e) {
+                return new TaskResult<T>(e);
+            }
+        }
+
+        private boolean shouldRetry(TaskResult<T> result) {
+            if (attempt >= retryPolicy.getMaxAttempts() || abortSignal.isAborted()) {
+                return false;
+            }
+            if (result.retryableStatusCode != 0) {
+                return true;
+            }
+            return result.cause instanceof IOException && retryPolicy.isRetryable((IOException) result.cause);
+        }
+
+        // waits until the next attempt, returning false if cancelled meanwhile
+        private boolean backOff() {
+            long nanos = Math.max(retryPolicy.getBackoffNanos(attempt, random.nextDouble()), retryAfterNanos);
+            final CountDownLatch wakeUp = new CountDownLatch(1);
+            abortSignal.setAbortAction(new Runnable() {
+                @Override
+                public void run() {
+                    wakeUp.countDown();
+                }
+            });
+            try {
+                clock.await(wakeUp, nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                abortSignal.setAbortAction(null);
+            }
+            return !abortSignal.isAborted();
+        }
+
+        // models are built while the body arrives, without the whole body as a string
+        @Override
+        public TaskResult<T> read(int statusCode, Map<String, String> headers, InputStream body) throws IOException {
+            responseHeaders = headers;
+            if (statusCode == 429 || statusCode == 503) {
+                retryAfterNanos = RateLimiter.parseRetryAfter(headers.get("retry-after"), System.currentTimeMillis());
+            }
+            String contentType = headers.get("content-type");
+            throttledByWebPay = statusCode == 429 && contentType != null && contentType.startsWith("application/json");
+            if (retryPolicy.isRetryable(statusCode) && attempt < retryPolicy.getMaxAttempts()
+                    && retryAfterNanos <= getMaxRetryAfterNanos()) {
+                // the body of a gateway error is not read, and the last attempt reads it as an error
+                return TaskResult.retryable(statusCode);
+            }
+            if (statusCode == 304) {
+                T model = readNotModified();
+                if (model != null) {
+                    events.parseEnd();
+                    return new TaskResult<T>(model);
+                }
+            }
+            byte[] buffer = BufferPool.getDefault().acquire();
+            JsonReader reader = new JsonReader(body, buffer);
+            try {
+                if (statusCode >= 200 && statusCode < 300) {
+                    return new TaskResult<T>(readModel(reader));
+                } else {
+                    return new TaskResult<T>(ErrorResponse.readJson(statusCode, reader));
+                }
+            } catch (JSONException e) {
+                return new TaskResult<T>(e);
+            } finally {
+                BufferPool.getDefault().release(buffer);
+                events.parseEnd();
+            }
+        }
     }
 
     private static class TaskResult<T> {
         private final T model;
         private final ErrorResponse error;
         private final Throwable cause;
+        // status code of a response to try again, or 0
+        private final int retryableStatusCode;
 
         private TaskResult(T model) {
-            this.model = model;
-            this.error = null;
-            this.cause = null;
+            this(model, null, null, 0);
         }
 
         private TaskResult(ErrorResponse error) {
-            this.model = null;
-            this.error = error;
-            this.cause = null;
+            this(null, error, null, 0);
         }
 
         private TaskResult(Throwable cause) {
-            this.model = null;
-            this.error = null;
+            this(null, null, cause, 0);
+        }
+
+        private TaskResult(T model, ErrorResponse error, Throwable cause, int retryableStatusCode) {
+            this.model = model;
+            this.error = error;
             this.cause = cause;
+            this.retryableStatusCode = retryableStatusCode;
+        }
+
+        private static <T> TaskResult<T> retryable(int statusCode) {
+            return new TaskResult<T>(null, null, null, statusCode);
+        }
+
+        private int getStatusCode() {
+            return retryableStatusCode != 0 ? retryableStatusCode : error != null ? error.statusCode : 0;
+        }
+
+        // whether WebPay could not answer, while errors of cards and requests are answers.
+        // 429 Too Many Requests is an answer as well, so that throttling of a batch does not fail checkouts.
+        private boolean isFailure() {
+            int statusCode = getStatusCode();
+            return statusCode != 0 ? statusCode >= 500 : cause != null;
         }
     }
 }
@@ -0,0 +1,92 @@
+package jp.webpay.android.token;
+
+/**
+ * Receives the phases of each request, to tell where its time goes.
+ * Pass an implementation to {@link WebPay.Builder#eventListener(WebPayEventListener)}.
+ * <p>
+ * Each method receives the id of the request, unique in the process, and the time of the phase
+ * in {@link System#nanoTime()}. A request may make several attempts, each of which repeats the network
+ * phases with the same id. Phases a transport cannot observe are not reported: {@link NioTransport}
+ * reports all of them, while {@link UrlConnectionTransport} and {@link ApacheTransport} do not report
+ * DNS lookup, connection and TLS handshake, which the platform does internally.
+ * <p>
+ * Methods are called on the threads running the phase, including the I/O thread of a transport,
+ * so implementations must be thread-safe and return quickly. Every method does nothing by default.
+ * Without a listener, requests do not even read the clock.
+ *
+ * @see ChromeTraceExporter
+ */
+public abstract class WebPayEventListener {
+    /**
+     * The request is submitted to the executor.
+     */
+    public void queueStart(long requestId, long nanoTime) {
+    }
+
+    /**
+     * A thread of the executor started running the request.
+     */
+    public void queueEnd(long requestId, long nanoTime) {
+    }
+
+    public void dnsStart(long requestId, long nanoTime) {
+    }
+
+    public void dnsEnd(long requestId, long nanoTime) {
+    }
+
+    /**
+     * A new connection is being established. Requests on a pooled connection skip this and the TLS handshake.
+     */
+    public void connectStart(long requestId, long nanoTime) {
+    }
+
+    public void connectEnd(long requestId, long nanoTime) {
+    }
+
+    public void secureConnectStart(long requestId, long nanoTime) {
+    }
+
+    public void secureConnectEnd(long requestId, long nanoTime) {
+    }
+
+    /**
+     * The request line, headers and body are written to the connection.
+     */
+    public void requestBodyEnd(long requestId, long nanoTime) {
+    }
+
+    /**
+     * The first byte of the response arrived, or its headers for transports which cannot tell the byte.
+     */
+    public void responseStart(long requestId, long nanoTime) {
+    }
+
+    /**
+     * The whole response body is read. Transports which stream the body into the parser
+     * report this after {@link #parseEnd(long, long)}.
+     */
+    public void responseBodyEnd(long requestId, long nanoTime) {
+    }
+
+    /**
+     * Reading the model or the error from the response body finished.
+     */
+    public void parseEnd(long requestId, long nanoTime) {
+    }
+
+    /**
+     * The result of the request is available to {@link WebPayFuture#get()}.
+     *
+     * @param cause    cause of the failure, or null if succeeded
+     */
+    public void requestEnd(long requestId, long nanoTime, Throwable cause) {
+    }
+
+    /**
+     * A listener added to the future of the request returned, on its callback executor.
+     * Called once for each listener.
+     */
+    public void callbackEnd(long requestId, long nanoTime) {
+    }
+}
@@ -0,0 +1,149 @@
+package jp.webpay.android.token;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors to run WebPay requests, passed to {@link WebPay.Builder#executor(Executor)}.
+ * Requests block their thread while communicating with WebPay.
+ */
+public final class WebPayExecutors {
+    static final int POOL_SIZE = 2;
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static Executor defaultExecutor;
+    private static ScheduledExecutorService scheduler;
+
+    private WebPayExecutors() {
+    }
+
+    /**
+     * Pool used when no executor is given, owned by this library and shared in the process.
+     * Unlike {@link android.os.AsyncTask#execute}, requests do not wait for other tasks of the app.
+     * It runs up to {@link #POOL_SIZE} requests at once by {@link RequestPriority}, so that a token
+     * creation is neither queued behind nor kept from a thread by availability requests or batches.
+     *
+     * @return shared executor
+     */
+    public static synchronized Executor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = newPriorityExecutor(POOL_SIZE);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Pool which starts queued requests by {@link RequestPriority}, keeping one thread for
+     * {@link RequestPriority#USER_INITIATED} requests. Other tasks run as {@link RequestPriority#BACKGROUND}.
+     * Its threads end when idle.
+     *
+     * @param poolSize    the number of requests to run at once, at least 2
+     * @return new executor
+     */
+    public static Executor newPriorityExecutor(int poolSize) {
+        if (poolSize < 2) {
+            throw new IllegalArgumentException("poolSize must be at least 2");
+        }
+        ThreadPoolExecutor threads = new ThreadPoolExecutor(poolSize, poolSize,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "WebPay #" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            allowCoreThreadTimeOut(threads);
+        }
+        return new PriorityExecutor(threads, poolSize);
+    }
+
+    /**
+     * Executor which posts to the main looper, where listeners are called by default.
+     *
+     * @return new executor
+     */
+    public static Executor mainThread() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Executor which runs the task on the calling thread, such as the thread which ran the request.
+     * Listeners on it must return quickly.
+     *
+     * @return shared executor
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Timer thread shared in the process, which only starts work on other executors.
+     */
+    static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WebPay scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void allowCoreThreadTimeOut(ThreadPoolExecutor executor) {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executor which starts a virtual thread per request.
+     * Available only on a JVM supporting virtual threads (Java 21 or later), not on Android.
+     *
+     * @return new executor, which should be shut down by the caller
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static Executor newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (Exception e) {
+            UnsupportedOperationException unsupported =
+                    new UnsupportedOperationException("Virtual threads are not supported on this runtime");
+            unsupported.initCause(e);
+            throw unsupported;
+        }
+    }
+}
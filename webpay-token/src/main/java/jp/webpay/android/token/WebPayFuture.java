@@ -0,0 +1,182 @@
+package jp.webpay.android.token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a WebPay request.
+ * Wait for it by {@link #get()}, or register listeners by {@link #addListener(WebPayListener, Executor)}.
+ * <p>
+ * A failed request completes with the same cause a listener receives in
+ * {@link WebPayListener#onException(Throwable)}, wrapped in {@link ExecutionException} by {@code get}.
+ *
+ * @param <T> type of the result model
+ */
+public class WebPayFuture<T> implements Future<T> {
+    private final CountDownLatch completion = new CountDownLatch(1);
+    private final List<Registration<T>> registrations = new ArrayList<Registration<T>>();
+    private boolean done = false;
+    private T model;
+    private Throwable cause;
+
+    WebPayFuture() {
+    }
+
+    /**
+     * Call the listener with the result on the executor.
+     * If this future is already done, the listener is called immediately through the executor.
+     *
+     * @param listener    listener to call once
+     * @param executor    executor to call the listener on, such as {@link WebPayExecutors#mainThread()}
+     * @return this future
+     */
+    public WebPayFuture<T> addListener(WebPayListener<T> listener, Executor executor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        Registration<T> registration = new Registration<T>(listener, executor);
+        synchronized (this) {
+            if (!done) {
+                registrations.add(registration);
+                return this;
+            }
+        }
+        registration.notifyResult(this, model, cause);
+        return this;
+    }
+
+    boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    boolean fail(Throwable failure) {
+        return finish(null, failure);
+    }
+
+    private boolean finish(T result, Throwable failure) {
+        List<Registration<T>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            model = result;
+            cause = failure;
+            toNotify = new ArrayList<Registration<T>>(registrations);
+            registrations.clear();
+        }
+        completion.countDown();
+        onFinished(failure);
+        for (Registration<T> registration : toNotify) {
+            registration.notifyResult(this, result, failure);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the request. If it is waiting for the executor, it is removed from the queue.
+     * If it is in flight, its connection is closed right away.
+     * Listeners receive {@link CancellationException} in {@link WebPayListener#onException(Throwable)}.
+     *
+     * @param mayInterruptIfRunning    ignored, since requests are aborted by closing the connection
+     * @return false if the request has already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!fail(new CancellationException("Request is cancelled"))) {
+            return false;
+        }
+        onCancelled();
+        return true;
+    }
+
+    /**
+     * Called after this future is cancelled, to abort the request.
+     */
+    void onCancelled() {
+    }
+
+    /**
+     * Called once when this future is done, before listeners are notified.
+     *
+     * @param failure    cause of the failure, or null if completed
+     */
+    void onFinished(Throwable failure) {
+    }
+
+    /**
+     * Called on the callback executor after each listener returned.
+     */
+    void onListenerCalled() {
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cause instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        completion.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completion.await(timeout, unit)) {
+            throw new TimeoutException("Request did not complete in " + timeout + " " + unit);
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (cause instanceof CancellationException) {
+            throw (CancellationException) cause;
+        } else if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return model;
+    }
+
+    private static class Registration<T> {
+        private final WebPayListener<T> listener;
+        private final Executor executor;
+
+        private Registration(WebPayListener<T> listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        private void notifyResult(final WebPayFuture<T> future, final T model, final Throwable cause) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (cause == null) {
+                            listener.onCreate(model);
+                        } else {
+                            listener.onException(cause);
+                        }
+                    } finally {
+                        future.onListenerCalled();
+                    }
+                }
+            });
+        }
+    }
+}
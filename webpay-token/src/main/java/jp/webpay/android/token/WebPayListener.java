@@ -4,6 +4,12 @@ public interface WebPayListener<T> {
 
     public abstract void onCreate(T result);
 
+    /**
+     * Called when the request failed.
+     * @param cause    {@link ErrorResponseException} for an error response from WebPay,
+     *                 {@link java.util.concurrent.CancellationException} if the request was cancelled,
+     *                 or the exception raised in communication
+     */
     public abstract void onException(Throwable cause);
 
 }
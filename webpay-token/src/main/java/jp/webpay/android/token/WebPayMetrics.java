@@ -0,0 +1,181 @@
+package jp.webpay.android.token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.webpay.android.token.model.ErrorResponse;
+
+/**
+ * Latency histograms of the calls of a {@link WebPay} instance, by operation and by outcome,
+ * to read percentiles and error rates in the app without another library.
+ * <pre>{@code
+ * LatencySnapshot tokens = webpay.getMetrics().getSnapshot(WebPayMetrics.Operation.CREATE_TOKEN);
+ * Log.i(TAG, "p99 " + tokens.p99Nanos / 1000000 + "ms, errors " + tokens.getErrorRate());
+ * }</pre>
+ * Outcomes are {@link #SUCCESS}, {@link #IO_EXCEPTION}, {@link #JSON_EXCEPTION},
+ * and "error:" followed by the type and code of an {@link ErrorResponse}, such as "error:card_error/card_declined".
+ * Cancelled calls and ones broken by a RuntimeException are not recorded.
+ * Each outcome keeps about 2KB, and recording allocates nothing
+ * except for the first error response of a type and code.
+ */
+public final class WebPayMetrics {
+    public static final String SUCCESS = "success";
+    public static final String IO_EXCEPTION = "IOException";
+    public static final String JSON_EXCEPTION = "JSONException";
+    /**
+     * outcome of the snapshot which sums all outcomes
+     */
+    public static final String ALL = "all";
+
+    /**
+     * Calls whose latencies are recorded.
+     */
+    public enum Operation {
+        CREATE_TOKEN,
+        /**
+         * requests of card types and currencies,
+         * including the ones refreshing the cache of {@link WebPay#getAvailability()}
+         */
+        RETRIEVE_AVAILABILITY
+    }
+
+    private final Series[] series = new Series[Operation.values().length];
+
+    WebPayMetrics() {
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new Series();
+        }
+    }
+
+    void recordSuccess(Operation operation, long nanos) {
+        series[operation.ordinal()].success.record(nanos);
+    }
+
+    void recordError(Operation operation, ErrorResponse error, long nanos) {
+        series[operation.ordinal()].getErrorHistogram(error.type, error.code).record(nanos);
+    }
+
+    void recordIOException(Operation operation, long nanos) {
+        series[operation.ordinal()].ioException.record(nanos);
+    }
+
+    void recordJSONException(Operation operation, long nanos) {
+        series[operation.ordinal()].jsonException.record(nanos);
+    }
+
+    /**
+     * @param operation    operation to read
+     * @return snapshot of all calls of the operation, whose {@link LatencySnapshot#outcome} is {@link #ALL}
+     */
+    public LatencySnapshot getSnapshot(Operation operation) {
+        Series s = series[operation.ordinal()];
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        long count = 0;
+        long errorCount = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        for (Outcome outcome : s.getOutcomes()) {
+            LatencyHistogram histogram = outcome.histogram;
+            histogram.addTo(counts);
+            long outcomeCount = histogram.getCount();
+            count += outcomeCount;
+            if (!outcome.name.equals(SUCCESS)) {
+                errorCount += outcomeCount;
+            }
+            totalNanos += histogram.getTotalNanos();
+            maxNanos = Math.max(maxNanos, histogram.getMaxNanos());
+        }
+        return toSnapshot(ALL, counts, count, errorCount, totalNanos, maxNanos);
+    }
+
+    /**
+     * @param operation    operation to read
+     * @return snapshots of each outcome the operation had, starting with {@link #SUCCESS}
+     */
+    public List<LatencySnapshot> getSnapshots(Operation operation) {
+        List<LatencySnapshot> snapshots = new ArrayList<LatencySnapshot>();
+        for (Outcome outcome : series[operation.ordinal()].getOutcomes()) {
+            LatencyHistogram histogram = outcome.histogram;
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+            histogram.addTo(counts);
+            snapshots.add(toSnapshot(outcome.name, counts, count, outcome.name.equals(SUCCESS) ? 0 : count,
+                    histogram.getTotalNanos(), histogram.getMaxNanos()));
+        }
+        return snapshots;
+    }
+
+    private static LatencySnapshot toSnapshot(String outcome, long[] counts, long count, long errorCount,
+                                              long totalNanos, long maxNanos) {
+        return new LatencySnapshot(outcome, count, errorCount, totalNanos, maxNanos,
+                LatencyHistogram.percentileNanos(counts, 0.5),
+                LatencyHistogram.percentileNanos(counts, 0.9),
+                LatencyHistogram.percentileNanos(counts, 0.99));
+    }
+
+    /**
+     * Histograms of the outcomes of one operation.
+     */
+    private static class Series {
+        // maps do not accept null, which type and code of an error may be
+        private static final String NONE = "";
+
+        final LatencyHistogram success = new LatencyHistogram();
+        final LatencyHistogram ioException = new LatencyHistogram();
+        final LatencyHistogram jsonException = new LatencyHistogram();
+        // by type and then by code, so that looking up a known error needs no key to be built
+        private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> errors =
+                new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>>();
+
+        LatencyHistogram getErrorHistogram(String type, String code) {
+            String typeKey = type == null ? NONE : type;
+            String codeKey = code == null ? NONE : code;
+            ConcurrentHashMap<String, LatencyHistogram> byCode = errors.get(typeKey);
+            if (byCode == null) {
+                ConcurrentHashMap<String, LatencyHistogram> created = new ConcurrentHashMap<String, LatencyHistogram>();
+                byCode = errors.putIfAbsent(typeKey, created);
+                if (byCode == null) {
+                    byCode = created;
+                }
+            }
+            LatencyHistogram histogram = byCode.get(codeKey);
+            if (histogram == null) {
+                LatencyHistogram created = new LatencyHistogram();
+                histogram = byCode.putIfAbsent(codeKey, created);
+                if (histogram == null) {
+                    histogram = created;
+                }
+            }
+            return histogram;
+        }
+
+        List<Outcome> getOutcomes() {
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            outcomes.add(new Outcome(SUCCESS, success));
+            for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> byType : errors.entrySet()) {
+                for (Map.Entry<String, LatencyHistogram> byCode : byType.getValue().entrySet()) {
+                    String name = "error:" + byType.getKey() + "/" + byCode.getKey();
+                    outcomes.add(new Outcome(name, byCode.getValue()));
+                }
+            }
+            outcomes.add(new Outcome(IO_EXCEPTION, ioException));
+            outcomes.add(new Outcome(JSON_EXCEPTION, jsonException));
+            return outcomes;
+        }
+    }
+
+    private static class Outcome {
+        final String name;
+        final LatencyHistogram histogram;
+
+        Outcome(String name, LatencyHistogram histogram) {
+            this.name = name;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -3,80 +3,173 @@ package jp.webpay.android.token;
 import android.net.Uri;
 import android.os.Build;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Communicate with WebPay server using Apache HTTP client
-  */
+ * Communicate with WebPay server through a {@link Transport}.
+ * Immutable, so that any thread may send requests without locking.
+ */
 class WebPayPublicClient {
-    private final Uri baseUri;
-    private final String apiKey;
-    private String language = "en";
+    static final String DEFAULT_LANGUAGE = "en";
+    // languages whose headers are kept, far more than WebPay supports
+    private static final int MAX_CACHED_LANGUAGES = 8;
+
+    private final EndpointRouter router;
+    private final Transport transport;
+    private final long maxResponseBodySize;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Map<String, String> getHeaders;
+    private final Map<String, String> postHeaders;
+    // headers with Accept-Language, by language
+    private final ConcurrentHashMap<String, Map<String, String>> getHeadersByLanguage =
+            new ConcurrentHashMap<String, Map<String, String>>();
+    private final ConcurrentHashMap<String, Map<String, String>> postHeadersByLanguage =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    WebPayPublicClient(Uri baseUri, String apiKey, Transport transport) {
+        this(baseUri, apiKey, transport, Transport.Request.DEFAULT_MAX_RESPONSE_BODY_SIZE);
+    }
+
+    WebPayPublicClient(Uri baseUri, String apiKey, Transport transport, long maxResponseBodySize) {
+        this(baseUri, apiKey, transport, maxResponseBodySize, Transport.Request.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                Transport.Request.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    WebPayPublicClient(Uri baseUri, String apiKey, Transport transport, long maxResponseBodySize,
+                       int connectTimeoutMillis, int readTimeoutMillis) {
+        this(new EndpointRouter(Collections.singletonList(baseUri), Clock.SYSTEM), apiKey, transport,
+                maxResponseBodySize, connectTimeoutMillis, readTimeoutMillis);
+    }
 
-    WebPayPublicClient(Uri baseUri, String apiKey) {
-        this.baseUri = baseUri;
-        this.apiKey = apiKey;
+    WebPayPublicClient(EndpointRouter router, String apiKey, Transport transport, long maxResponseBodySize,
+                       int connectTimeoutMillis, int readTimeoutMillis) {
+        this.router = router;
+        this.transport = transport;
+        this.maxResponseBodySize = maxResponseBodySize;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Authorization", "Bearer " + apiKey);
+        headers.put("User-Agent", "WebPayTokenAndroid/" + BuildConfig.VERSION_NAME + " Android/" + Build.VERSION.RELEASE);
+        getHeaders = Collections.unmodifiableMap(new HashMap<String, String>(headers));
+        headers.put("Content-Type", "application/json");
+        postHeaders = Collections.unmodifiableMap(headers);
     }
 
-    public void setLanguage(String language) {
-        this.language = language;
+    Result request(String method, String path, String jsonBody) throws IOException {
+        byte[] body = jsonBody == null ? null : jsonBody.getBytes("UTF-8");
+        Transport.Response response = request(method, path, body, DEFAULT_LANGUAGE,
+                Collections.<String, String>emptyMap(), new Transport.AbortSignal(), Transport.RequestEvents.NONE,
+                Transport.Response.READER);
+        return new Result(response.statusCode, response.getBodyString());
     }
 
     /**
-     * Send request to WebPay host
+     * Send request to the healthiest WebPay endpoint, and to the next one if it could not be connected
      * The caller should take care of exceptions
      * @param method        "GET" or "POST"
      * @param path          request path starts from /v*
-     * @param jsonBody      json-format body string used only in "POST".
-     * @return              pair of response code and body if request completed
+     * @param jsonBody      json-format body encoded in UTF-8, used only in "POST".
+     * @param language      language of error messages, sent as Accept-Language
+     * @param extraHeaders  headers of this request, such as validators of a conditional request
+     * @param abortSignal   signal to abort the request when cancelled
+     * @param events        receiver of the network phases of the request
+     * @param reader        reader of the response stream
+     * @return              value read by the reader if request completed
      * @throws IOException
      */
-    Result request(String method, String path, String jsonBody) throws IOException {
-        Uri.Builder builder = baseUri.buildUpon()
-                .appendEncodedPath(path);
-        HttpRequestBase request;
-        if (method.equals("GET")) {
-            request = new HttpGet(builder.build().toString());
-        } else if (method.equals("POST")) {
-            HttpPost postRequest = new HttpPost(builder.build().toString());
-            postRequest.setHeader("Content-Type", "application/json");
-            postRequest.setEntity(new StringEntity(jsonBody, "UTF-8"));
-            request = postRequest;
-        } else {
-            throw new IllegalArgumentException("method must be GET or POST");
+    <T> T request(String method, String path, byte[] jsonBody, String language, Map<String, String> extraHeaders,
+                  Transport.AbortSignal abortSignal, Transport.RequestEvents events,
+                  Transport.ResponseReader<T> reader) throws IOException {
+        Map<String, String> headers = getHeaders(method, language);
+        if (!extraHeaders.isEmpty()) {
+            headers = new HashMap<String, String>(headers);
+            headers.putAll(extraHeaders);
+        }
+
+        List<EndpointRouter.Endpoint> endpoints = router.route();
+        for (int i = 0; ; i++) {
+            EndpointRouter.Endpoint endpoint = endpoints.get(i);
+            String url = endpoint.baseUri.buildUpon().appendEncodedPath(path).build().toString();
+            StatusRecordingReader<T> recordingReader = new StatusRecordingReader<T>(reader);
+            endpoint.onRequest();
+            long startedAt = router.nanoTime();
+            try {
+                T result = transport.execute(new Transport.Request(method, url, headers, jsonBody, abortSignal,
+                        maxResponseBodySize, connectTimeoutMillis, readTimeoutMillis, events), recordingReader);
+                endpoint.onResponse(router.nanoTime() - startedAt, recordingReader.statusCode >= 500);
+                return result;
+            } catch (IOException e) {
+                if (abortSignal.isAborted()) {
+                    throw e;
+                }
+                // a request which never left the device is safe to send to another endpoint
+                boolean failOver = i + 1 < endpoints.size() && RetryPolicy.isConnectFailure(e);
+                endpoint.onFailure(failOver);
+                if (!failOver) {
+                    throw e;
+                }
+            }
         }
-        request.setHeader("Accept-Language", language);
-        request.setHeader("Authorization", "Bearer " + apiKey);
-        request.setHeader("User-Agent", "WebPayTokenAndroid/" + BuildConfig.VERSION_NAME + " Android/" + Build.VERSION.RELEASE);
+    }
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+    /**
+     * Open a connection to WebPay host in advance
+     * @throws IOException
+     */
+    void preconnect() throws IOException {
+        transport.preconnect(router.route().get(0).baseUri.toString());
+    }
 
-        try {
-            return httpClient.execute(request, new ResponseHandler<Result>() {
-                @Override
-                public Result handleResponse(HttpResponse response) throws IOException {
-                    int statusCode = response.getStatusLine().getStatusCode();
-                    String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+    List<EndpointStats> getEndpointStats() {
+        return router.getStats();
+    }
 
-                    return new Result(statusCode, body);
-                }
-            });
-        } finally {
-            httpClient.getConnectionManager().shutdown();
+    /**
+     * @return headers common to the requests of the method in the language, built once
+     */
+    private Map<String, String> getHeaders(String method, String language) {
+        boolean post = method.equals("POST");
+        ConcurrentHashMap<String, Map<String, String>> byLanguage = post ? postHeadersByLanguage : getHeadersByLanguage;
+        Map<String, String> headers = byLanguage.get(language);
+        if (headers == null) {
+            Map<String, String> built = new HashMap<String, String>(post ? postHeaders : getHeaders);
+            built.put("Accept-Language", language);
+            headers = Collections.unmodifiableMap(built);
+            if (byLanguage.size() < MAX_CACHED_LANGUAGES) {
+                byLanguage.putIfAbsent(language, headers);
+            }
         }
+        return headers;
+    }
+
+    Transport getTransport() {
+        return transport;
     }
 
-    public String getLanguage() {
-        return language;
+    /**
+     * Remembers the status code, to tell server errors of an endpoint.
+     */
+    private static class StatusRecordingReader<T> implements Transport.ResponseReader<T> {
+        private final Transport.ResponseReader<T> reader;
+        private volatile int statusCode = 0;
+
+        StatusRecordingReader(Transport.ResponseReader<T> reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public T read(int statusCode, Map<String, String> headers, InputStream body) throws IOException {
+            this.statusCode = statusCode;
+            return reader.read(statusCode, headers, body);
+        }
     }
 
     static class Result {
@@ -0,0 +1,471 @@
+package jp.webpay.android.token.json;
+
+import org.json.JSONException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a JSON document in UTF-8 from a stream, one token at a time, without building a tree.
+ * Models read themselves from it by {@code readJson}, skipping fields they do not know.
+ * <p>
+ * Malformed input and values of unexpected types fail with {@link JSONException},
+ * like {@link org.json.JSONObject} does. {@link android.util.JsonReader} is not used
+ * since it requires API level 11, and bytes are decoded here since an
+ * {@link java.io.InputStreamReader} would allocate a buffer of 8KB for a small response.
+ */
+public final class JsonReader implements Closeable {
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    // bytes consumed before the buffer, to tell the position of a syntax error
+    private long bufferStart = 0;
+    private int[] stack = new int[8];
+    private int stackSize = 1;
+    // the token returned by peek and not consumed yet, and its text for names, strings and literals
+    private JsonToken peeked;
+    private String peekedText;
+    private final StringBuilder builder = new StringBuilder();
+
+    public JsonReader(InputStream in) {
+        this(in, new byte[512]);
+    }
+
+    /**
+     * @param in        stream to read
+     * @param buffer    buffer to read the stream into, such as one borrowed from a pool,
+     *                  which must not be used by others until this reader is done
+     */
+    public JsonReader(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buffer = buffer;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Use this for a field a model requires, after reading all fields.
+     *
+     * @param name     name of the field
+     * @param value    value read, or null if the field was missing
+     * @return the value
+     * @throws JSONException if the value is null
+     */
+    public static <T> T required(String name, T value) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+        return value;
+    }
+
+    public JsonToken peek() throws IOException, JSONException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c;
+        switch (stack[stackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                return readValue();
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace(false) != -1) {
+                    throw syntaxError("Expected end of document");
+                }
+                return peeked = JsonToken.END_DOCUMENT;
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                if (nextNonWhitespace(true) == ']') {
+                    return peeked = JsonToken.END_ARRAY;
+                }
+                pos--;
+                return readValue();
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace(true);
+                if (c == ']') {
+                    return peeked = JsonToken.END_ARRAY;
+                } else if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                return readValue();
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace(true);
+                if (c == '}') {
+                    return peeked = JsonToken.END_OBJECT;
+                }
+                if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace(true);
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected name");
+                }
+                peekedText = readString();
+                stack[stackSize - 1] = DANGLING_NAME;
+                return peeked = JsonToken.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace(true) != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                return readValue();
+            default:
+                throw new IllegalStateException("Reader is closed");
+        }
+    }
+
+    public void beginObject() throws IOException, JSONException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException, JSONException {
+        expect(JsonToken.END_OBJECT);
+        stackSize--;
+    }
+
+    public void beginArray() throws IOException, JSONException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException, JSONException {
+        expect(JsonToken.END_ARRAY);
+        stackSize--;
+    }
+
+    /**
+     * @return true if the current object or array has another element
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException, JSONException {
+        expect(JsonToken.NAME);
+        return peekedText;
+    }
+
+    /**
+     * @return string, or text of a number or boolean like {@link org.json.JSONObject#getString(String)},
+     * or null for JSON null
+     */
+    public String nextString() throws IOException, JSONException {
+        JsonToken token = peek();
+        if (token == JsonToken.NULL) {
+            peeked = null;
+            return null;
+        }
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER && token != JsonToken.BOOLEAN) {
+            throw typeMismatch("a string", token);
+        }
+        peeked = null;
+        return peekedText;
+    }
+
+    /**
+     * @return number, which may be written as a string like {@link org.json.JSONObject#getLong(String)}
+     */
+    public long nextLong() throws IOException, JSONException {
+        String text = nextNumberText();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(text);
+            } catch (NumberFormatException notNumber) {
+                throw new JSONException("Expected a number but was " + text);
+            }
+        }
+    }
+
+    public int nextInt() throws IOException, JSONException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new JSONException("Expected an int but was " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return boolean, which may be written as a string like {@link org.json.JSONObject#getBoolean(String)}
+     */
+    public boolean nextBoolean() throws IOException, JSONException {
+        JsonToken token = peek();
+        if (token != JsonToken.BOOLEAN && token != JsonToken.STRING) {
+            throw typeMismatch("a boolean", token);
+        }
+        if (peekedText.equalsIgnoreCase("true")) {
+            peeked = null;
+            return true;
+        } else if (peekedText.equalsIgnoreCase("false")) {
+            peeked = null;
+            return false;
+        }
+        throw new JSONException("Expected a boolean but was " + peekedText);
+    }
+
+    public void nextNull() throws IOException, JSONException {
+        expect(JsonToken.NULL);
+    }
+
+    /**
+     * Skip the next value, including all elements of an object or array.
+     */
+    public void skipValue() throws IOException, JSONException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                beginObject();
+                depth++;
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                beginArray();
+                depth++;
+            } else if (token == JsonToken.END_OBJECT) {
+                endObject();
+                depth--;
+            } else if (token == JsonToken.END_ARRAY) {
+                endArray();
+                depth--;
+            } else if (token == JsonToken.END_DOCUMENT) {
+                throw syntaxError("Expected a value");
+            } else {
+                peeked = null;
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = null;
+        stack[0] = -1;
+        stackSize = 1;
+        in.close();
+    }
+
+    private String nextNumberText() throws IOException, JSONException {
+        JsonToken token = peek();
+        if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+            throw typeMismatch("a number", token);
+        }
+        peeked = null;
+        return peekedText;
+    }
+
+    private void expect(JsonToken expected) throws IOException, JSONException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw typeMismatch(expected.name(), token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private JsonToken readValue() throws IOException, JSONException {
+        int c = nextNonWhitespace(true);
+        switch (c) {
+            case '{':
+                return peeked = JsonToken.BEGIN_OBJECT;
+            case '[':
+                return peeked = JsonToken.BEGIN_ARRAY;
+            case '"':
+                peekedText = readString();
+                return peeked = JsonToken.STRING;
+            default:
+                pos--;
+                peekedText = readLiteral();
+                if (peekedText.equals("true") || peekedText.equals("false")) {
+                    return peeked = JsonToken.BOOLEAN;
+                } else if (peekedText.equals("null")) {
+                    return peeked = JsonToken.NULL;
+                } else if (isNumber(peekedText)) {
+                    return peeked = JsonToken.NUMBER;
+                }
+                throw syntaxError("Unexpected value " + peekedText);
+        }
+    }
+
+    // after the opening quote
+    private String readString() throws IOException, JSONException {
+        builder.setLength(0);
+        while (true) {
+            int b = nextByte("Unterminated string");
+            if (b == '"') {
+                return builder.toString();
+            } else if (b == '\\') {
+                builder.append(readEscape());
+            } else if (b < 0x80) {
+                builder.append((char) b);
+            } else {
+                readMultiByte(b);
+            }
+        }
+    }
+
+    private void readMultiByte(int first) throws IOException, JSONException {
+        int following;
+        int codePoint;
+        if ((first & 0xe0) == 0xc0) {
+            following = 1;
+            codePoint = first & 0x1f;
+        } else if ((first & 0xf0) == 0xe0) {
+            following = 2;
+            codePoint = first & 0x0f;
+        } else if ((first & 0xf8) == 0xf0) {
+            following = 3;
+            codePoint = first & 0x07;
+        } else {
+            throw syntaxError("Invalid UTF-8");
+        }
+        for (int i = 0; i < following; i++) {
+            int b = nextByte("Unterminated string");
+            if ((b & 0xc0) != 0x80) {
+                throw syntaxError("Invalid UTF-8");
+            }
+            codePoint = (codePoint << 6) | (b & 0x3f);
+        }
+        builder.appendCodePoint(codePoint);
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        int c = nextByte("Unterminated escape sequence");
+        switch (c) {
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextByte("Unterminated escape sequence"), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid escape sequence");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                return (char) c;
+        }
+    }
+
+    private int nextByte(String eofMessage) throws IOException, JSONException {
+        if (pos == limit && !fill()) {
+            throw syntaxError(eofMessage);
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private String readLiteral() throws IOException {
+        builder.setLength(0);
+        while (pos < limit || fill()) {
+            char c = (char) (buffer[pos] & 0xff);
+            if (c == ',' || c == ':' || c == ']' || c == '}' || c == '[' || c == '{' || c == '"'
+                    || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            builder.append(c);
+            pos++;
+        }
+        return builder.toString();
+    }
+
+    private static boolean isNumber(String text) {
+        int i = 0;
+        int length = text.length();
+        if (i < length && text.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < length && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i == digits) {
+            return false;
+        }
+        if (i < length && text.charAt(i) == '.') {
+            int fraction = ++i;
+            while (i < length && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == fraction) {
+                return false;
+            }
+        }
+        if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            int exponent = i;
+            while (i < length && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private int nextNonWhitespace(boolean throwOnEof) throws IOException, JSONException {
+        while (pos < limit || fill()) {
+            int c = buffer[pos++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        if (throwOnEof) {
+            throw syntaxError("End of input");
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += limit;
+        pos = 0;
+        limit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        limit = read;
+        return true;
+    }
+
+    private JSONException typeMismatch(String expected, JsonToken token) {
+        return new JSONException("Expected " + expected + " but was " + token);
+    }
+
+    // the position is of the last character read, counted from 0 like org.json
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + Math.max(0, bufferStart + pos - 1));
+    }
+}
@@ -0,0 +1,17 @@
+package jp.webpay.android.token.json;
+
+/**
+ * Kind of the next token of a {@link JsonReader}.
+ */
+public enum JsonToken {
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+}
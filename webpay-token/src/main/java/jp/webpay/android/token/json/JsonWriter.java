@@ -0,0 +1,205 @@
+package jp.webpay.android.token.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a JSON document to a stream in UTF-8, one token at a time.
+ * The output is compact and escaped like {@link org.json.JSONObject#toString()} on Android,
+ * so that request bodies are the same bytes as before.
+ * <p>
+ * Bytes are written to the stream one by one, so pass a buffered stream.
+ * {@link android.util.JsonWriter} is not used since it requires API level 11,
+ * and an {@link java.io.OutputStreamWriter} would allocate a buffer of 8KB for a body of 100 bytes.
+ */
+public final class JsonWriter implements Closeable {
+    private static final int EMPTY = 0;
+    private static final int NONEMPTY = 1;
+    private static final int DANGLING_NAME = 2;
+
+    private final OutputStream out;
+    private int[] stack = new int[8];
+    private int stackSize = 1;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+        stack[0] = EMPTY;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        if (stack[stackSize - 1] == NONEMPTY) {
+            out.write(',');
+        }
+        string(name);
+        out.write(':');
+        stack[stackSize - 1] = DANGLING_NAME;
+        return this;
+    }
+
+    /**
+     * @param value    string to write, or null to write JSON null
+     * @return this writer
+     */
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        ascii("null");
+        return this;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        beforeValue();
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = EMPTY;
+        out.write(bracket);
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        if (stackSize <= 1 || stack[stackSize - 1] == DANGLING_NAME) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        stackSize--;
+        out.write(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        int scope = stack[stackSize - 1];
+        if (scope == NONEMPTY && stackSize > 1) {
+            out.write(',');
+        } else if (scope == NONEMPTY) {
+            throw new IllegalStateException("JSON must have only one top-level value");
+        }
+        stack[stackSize - 1] = NONEMPTY;
+    }
+
+    private void ascii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            out.write(text.charAt(i));
+        }
+    }
+
+    // same escapes as org.json.JSONStringer on Android, including the slash
+    private void string(String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '\t':
+                    ascii("\\t");
+                    break;
+                case '\b':
+                    ascii("\\b");
+                    break;
+                case '\n':
+                    ascii("\\n");
+                    break;
+                case '\r':
+                    ascii("\\r");
+                    break;
+                case '\f':
+                    ascii("\\f");
+                    break;
+                default:
+                    if (c <= 0x1f) {
+                        ascii(c < 0x10 ? "\\u000" + Integer.toHexString(c) : "\\u00" + Integer.toHexString(c));
+                    } else {
+                        i = utf8(value, i);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Encode the character at the index like {@link String#getBytes(String)},
+     * replacing an unpaired surrogate with '?'.
+     *
+     * @return index of the last character encoded, which is the next one for a surrogate pair
+     */
+    private int utf8(String value, int index) throws IOException {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            out.write(c);
+        } else if (c < 0x800) {
+            out.write(0xc0 | (c >> 6));
+            out.write(0x80 | (c & 0x3f));
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+            out.write(0xe0 | (c >> 12));
+            out.write(0x80 | ((c >> 6) & 0x3f));
+            out.write(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            out.write(0xf0 | (codePoint >> 18));
+            out.write(0x80 | ((codePoint >> 12) & 0x3f));
+            out.write(0x80 | ((codePoint >> 6) & 0x3f));
+            out.write(0x80 | (codePoint & 0x3f));
+            return index + 1;
+        } else {
+            out.write('?');
+        }
+        return index;
+    }
+}
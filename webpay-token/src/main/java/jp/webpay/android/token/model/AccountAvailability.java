@@ -4,9 +4,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import jp.webpay.android.token.json.JsonReader;
+
 public class AccountAvailability {
     public final List<String> currenciesSupported;
     public final List<CardType> cardTypesSupported;
@@ -27,6 +32,76 @@ public class AccountAvailability {
         return new AccountAvailability(currenciesSupported, cardTypesSupported);
     }
 
+    /**
+     * Read availability from the stream, in the same format as {@link #fromJson(JSONObject)}.
+     */
+    public static AccountAvailability readJson(JsonReader reader) throws IOException, JSONException {
+        ArrayList<String> currenciesSupported = null;
+        ArrayList<CardType> cardTypesSupported = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("currencies_supported")) {
+                currenciesSupported = new ArrayList<String>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    currenciesSupported.add(reader.nextString());
+                }
+                reader.endArray();
+            } else if (name.equals("card_types_supported")) {
+                cardTypesSupported = new ArrayList<CardType>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    cardTypesSupported.add(CardType.byName(reader.nextString()));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new AccountAvailability(
+                JsonReader.required("currencies_supported", currenciesSupported),
+                JsonReader.required("card_types_supported", cardTypesSupported));
+    }
+
+    /**
+     * Write availability in a compact binary form, read by {@link #readFrom(DataInput)}.
+     * Card types are written by name, so that the form does not depend on the order of {@link CardType}.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(currenciesSupported.size());
+        for (String currency : currenciesSupported) {
+            out.writeUTF(currency);
+        }
+        out.writeInt(cardTypesSupported.size());
+        for (CardType cardType : cardTypesSupported) {
+            out.writeUTF(cardType.getName());
+        }
+    }
+
+    /**
+     * @throws IOException if the input is truncated or has an unknown card type
+     */
+    public static AccountAvailability readFrom(DataInput in) throws IOException {
+        int currencyCount = in.readInt();
+        ArrayList<String> currenciesSupported = new ArrayList<String>(Math.min(currencyCount, 16));
+        for (int i = 0; i < currencyCount; i++) {
+            currenciesSupported.add(in.readUTF());
+        }
+        int cardTypeCount = in.readInt();
+        ArrayList<CardType> cardTypesSupported = new ArrayList<CardType>(Math.min(cardTypeCount, 16));
+        for (int i = 0; i < cardTypeCount; i++) {
+            String name = in.readUTF();
+            try {
+                cardTypesSupported.add(CardType.byName(name));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown card type " + name);
+            }
+        }
+        return new AccountAvailability(currenciesSupported, cardTypesSupported);
+    }
+
     AccountAvailability(List<String> currenciesSupported, List<CardType> cardTypesSupported) {
         this.currenciesSupported = currenciesSupported;
         this.cardTypesSupported = cardTypesSupported;
@@ -3,6 +3,10 @@ package jp.webpay.android.token.model;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
+import jp.webpay.android.token.json.JsonReader;
+
 public class ErrorResponse {
     public final int statusCode;
     /**
@@ -20,6 +24,46 @@ public class ErrorResponse {
                 error.optString("param", null));
     }
 
+    /**
+     * Read an error from the stream, in the same format as {@link #fromJson(int, JSONObject)}.
+     */
+    public static ErrorResponse readJson(int statusCode, JsonReader reader) throws IOException, JSONException {
+        ErrorResponse error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("error")) {
+                error = readError(statusCode, reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return JsonReader.required("error", error);
+    }
+
+    private static ErrorResponse readError(int statusCode, JsonReader reader) throws IOException, JSONException {
+        String type = null, causedBy = null, code = null, message = null, param = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("type")) {
+                type = reader.nextString();
+            } else if (name.equals("caused_by")) {
+                causedBy = reader.nextString();
+            } else if (name.equals("code")) {
+                code = reader.nextString();
+            } else if (name.equals("message")) {
+                message = reader.nextString();
+            } else if (name.equals("param")) {
+                param = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new ErrorResponse(statusCode, type, causedBy, code, message, param);
+    }
+
     public ErrorResponse(int statusCode, String type, String causedBy, String code, String message, String param) {
         this.statusCode = statusCode;
         this.type = type;
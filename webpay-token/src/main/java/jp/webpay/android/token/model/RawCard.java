@@ -3,8 +3,10 @@ package jp.webpay.android.token.model;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.List;
 
+import jp.webpay.android.token.json.JsonWriter;
 import jp.webpay.android.token.validator.CardNumberValidator;
 import jp.webpay.android.token.validator.CvcValidator;
 import jp.webpay.android.token.validator.ExpiryValidator;
@@ -59,6 +61,33 @@ public class RawCard {
         }
     }
 
+    /**
+     * Write the same JSON as {@link #toJson()}, without building the object tree.
+     * Fields which are not set are omitted.
+     *
+     * @param writer    writer to write the request body to
+     * @throws IOException if the writer failed
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject().name("card").beginObject();
+        if (number != null) {
+            writer.name("number").value(number);
+        }
+        if (expMonth != null) {
+            writer.name("exp_month").value(expMonth);
+        }
+        if (expYear != null) {
+            writer.name("exp_year").value(expYear);
+        }
+        if (cvc != null) {
+            writer.name("cvc").value(cvc);
+        }
+        if (name != null) {
+            writer.name("name").value(name);
+        }
+        writer.endObject().endObject();
+    }
+
     public boolean cvcIsValid() {
         return CvcValidator.isValid(cvc);
     }
@@ -3,6 +3,10 @@ package jp.webpay.android.token.model;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
+import jp.webpay.android.token.json.JsonReader;
+
 public class StoredCard {
     public final String object;
     public final String fingerprint;
@@ -26,6 +30,51 @@ public class StoredCard {
                 json.getString("last4"));
     }
 
+    /**
+     * Read a card from the stream, in the same format as {@link #fromJson(JSONObject)}.
+     */
+    public static StoredCard readJson(JsonReader reader) throws IOException, JSONException {
+        String object = null, fingerprint = null, name = null, country = null, type = null,
+                cvcCheck = null, last4 = null;
+        Integer expYear = null, expMonth = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("object")) {
+                object = reader.nextString();
+            } else if (field.equals("exp_year")) {
+                expYear = reader.nextInt();
+            } else if (field.equals("exp_month")) {
+                expMonth = reader.nextInt();
+            } else if (field.equals("fingerprint")) {
+                fingerprint = reader.nextString();
+            } else if (field.equals("name")) {
+                name = reader.nextString();
+            } else if (field.equals("country")) {
+                country = reader.nextString();
+            } else if (field.equals("type")) {
+                type = reader.nextString();
+            } else if (field.equals("cvc_check")) {
+                cvcCheck = reader.nextString();
+            } else if (field.equals("last4")) {
+                last4 = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new StoredCard(
+                JsonReader.required("object", object),
+                JsonReader.required("exp_year", expYear),
+                JsonReader.required("exp_month", expMonth),
+                JsonReader.required("fingerprint", fingerprint),
+                JsonReader.required("name", name),
+                JsonReader.required("country", country),
+                CardType.byName(JsonReader.required("type", type)),
+                JsonReader.required("cvc_check", cvcCheck),
+                JsonReader.required("last4", last4));
+    }
+
     StoredCard(String object, Integer expYear, Integer expMonth, String fingerprint,
                       String name, String country, CardType type, String cvcCheck, String last4) {
         this.object = object;
@@ -3,6 +3,10 @@ package jp.webpay.android.token.model;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
+import jp.webpay.android.token.json.JsonReader;
+
 public class Token {
     public final String id, object;
     public final Boolean livemode;
@@ -20,6 +24,43 @@ public class Token {
                 json.getBoolean("used"));
     }
 
+    /**
+     * Read a token from the stream, in the same format as {@link #fromJson(JSONObject)}.
+     */
+    public static Token readJson(JsonReader reader) throws IOException, JSONException {
+        String id = null, object = null;
+        Boolean livemode = null, used = null;
+        StoredCard card = null;
+        Long created = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                id = reader.nextString();
+            } else if (name.equals("object")) {
+                object = reader.nextString();
+            } else if (name.equals("livemode")) {
+                livemode = reader.nextBoolean();
+            } else if (name.equals("card")) {
+                card = StoredCard.readJson(reader);
+            } else if (name.equals("created")) {
+                created = reader.nextLong();
+            } else if (name.equals("used")) {
+                used = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Token(
+                JsonReader.required("id", id),
+                JsonReader.required("object", object),
+                JsonReader.required("livemode", livemode),
+                JsonReader.required("card", card),
+                JsonReader.required("created", created),
+                JsonReader.required("used", used));
+    }
+
     Token(String id, String object, Boolean livemode, StoredCard card, Long created, Boolean used) {
         this.id = id;
         this.object = object;
@@ -5,9 +5,12 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.annotation.StringRes;
 import android.support.v4.app.DialogFragment;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.ContextThemeWrapper;
 import android.view.KeyEvent;
 import android.view.View;
@@ -25,8 +28,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import jp.webpay.android.token.CircuitOpenException;
 import jp.webpay.android.token.ErrorResponseException;
 import jp.webpay.android.token.R;
+import jp.webpay.android.token.RequestOptions;
 import jp.webpay.android.token.WebPay;
 import jp.webpay.android.token.WebPayListener;
 import jp.webpay.android.token.model.CardType;
@@ -50,6 +55,8 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
     private static final String ARG_PUBLISHABLE_KEY = "publishableKey";
     private static final String ARG_SUPPORTED_CARD_TYPES = "supportedCardTypes";
     private static final String TAG = "webpay:CardDialogFragment";
+    private static final String STATE_TOKEN_REQUEST = "tokenRequest";
+    private static final String STATE_FUNNEL = "funnel";
     private static final Map<CardType, Integer> CARD_TYPE_TO_DRAWABLE = new HashMap<CardType, Integer>() {{
         put(CardType.VISA, R.drawable.card_visa);
         put(CardType.AMERICAN_EXPRESS, R.drawable.card_amex);
@@ -57,11 +64,38 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
         put(CardType.JCB, R.drawable.card_jcb);
         put(CardType.DINERS_CLUB, R.drawable.card_diners);
     }};
+    private static volatile CheckoutFunnelSink sCheckoutFunnelSink;
     private WebPay mWebPay;
+    private PendingTokenRequest mTokenRequest;
     private WebPayTokenCompleteListener mListener;
     private Throwable mLastException;
     private ArrayList<CardType> mSupportedCardTypes;
     private @StringRes int mSendButtonTitle = R.string.card_send;
+    private CheckoutFunnel mFunnel;
+    private boolean mWatchingFields = false;
+    // whether the state was saved since the fragment started, so that it may be recreated
+    private boolean mStateSaved = false;
+    private final WebPayListener<Token> mTokenReceiver = new WebPayListener<Token>() {
+        @Override
+        public void onCreate(Token result) {
+            mTokenRequest = null;
+            reachStage(CheckoutStage.TOKEN_RECEIVED);
+            switchIndicatorVisibility(false);
+            mListener.onTokenCreated(result);
+            getDialog().dismiss();
+        }
+
+        @Override
+        public void onException(Throwable cause) {
+            mTokenRequest = null;
+            if (mFunnel != null) {
+                mFunnel.fail(cause);
+            }
+            switchIndicatorVisibility(false);
+            mLastException = cause;
+            showWebPayErrorAlert(cause);
+        }
+    };
 
     /**
      * Use this factory method to create a new instance of this fragment
@@ -72,7 +106,8 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
      *
      * @param publishableKey        WebPay publishable key to generate token
      * @param supportedCardTypes    supported card types retrieved from availability API. Use
-     *                              {@link WebPay#retrieveAvailability(jp.webpay.android.token.WebPayListener)}.
+     *                              {@link WebPay#getAvailability(jp.webpay.android.token.WebPayListener)},
+     *                              or {@link WebPay#peekAvailability(String)} to use a cached one at once.
      *                              Pass null if you do not need to show and check supported card types.
      * @return A new instance of dialog fragment
      */
@@ -97,6 +132,17 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
 
     }
 
+    /**
+     * Time the stages of each checkout in dialogs shown after this call, from the dialog shown
+     * through typing the card and the token request until it is dismissed, and pass one record per showing.
+     * Nothing is timed by default.
+     *
+     * @param sink    receiver of the timings, or null to stop timing
+     */
+    public static void setCheckoutFunnelSink(CheckoutFunnelSink sink) {
+        sCheckoutFunnelSink = sink;
+    }
+
     /**
      * Set send button title string resource id.
      * Default is {@code jp.webpay.android.R.string.card_send}, which is "Pay with card".
@@ -132,6 +178,27 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
                 mSupportedCardTypes.add(CardType.valueOf(name));
             }
         }
+        if (savedInstanceState == null) {
+            // warm up a connection while the user types the card, once per dialog rather than on every start
+            mWebPay.preconnect();
+        } else {
+            // a request sent before rotation goes on for this instance
+            mTokenRequest = PendingTokenRequest.find(savedInstanceState.getString(STATE_TOKEN_REQUEST));
+            // so is the checkout session, timed from when the dialog was first shown
+            mFunnel = CheckoutFunnel.restore(savedInstanceState.getString(STATE_FUNNEL));
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mTokenRequest != null) {
+            outState.putString(STATE_TOKEN_REQUEST, mTokenRequest.getKey());
+        }
+        if (mFunnel != null && !mFunnel.isEnded()) {
+            outState.putString(STATE_FUNNEL, mFunnel.keep());
+        }
+        mStateSaved = true;
     }
 
     // using "null" for inflate is correct according to
@@ -147,11 +214,24 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
     @Override
     public void onStart() {
         super.onStart();
+        mStateSaved = false;
 
         final AlertDialog dialog = (AlertDialog) getDialog();
         if (dialog == null)
             return;
 
+        CheckoutFunnelSink funnelSink = sCheckoutFunnelSink;
+        if (mFunnel == null && funnelSink != null) {
+            mFunnel = new CheckoutFunnel(funnelSink, System.nanoTime());
+        }
+        if (mFunnel != null && !mWatchingFields) {
+            mWatchingFields = true;
+            watchFieldValidity(dialog, R.id.cardNumberField, CheckoutStage.NUMBER_VALID);
+            watchFieldValidity(dialog, R.id.cardExpiryField, CheckoutStage.EXPIRY_VALID);
+            watchFieldValidity(dialog, R.id.cardCvcField, CheckoutStage.CVC_VALID);
+            watchFieldValidity(dialog, R.id.cardNameField, CheckoutStage.NAME_VALID);
+        }
+
         Button sendButton = (Button) dialog.findViewById(R.id.button_submit);
         sendButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -165,6 +245,7 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
         cancelButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                endFunnel(CheckoutSession.Outcome.CANCELLED);
                 dialog.dismiss();
                 mListener.onCancelled(mLastException);
             }
@@ -194,6 +275,20 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
             }
         });
         showAvailableCardTypes();
+
+        if (mTokenRequest != null) {
+            switchIndicatorVisibility(true);
+            mTokenRequest.attach(mTokenReceiver);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        // a result arriving meanwhile is passed on the next start
+        if (mTokenRequest != null) {
+            mTokenRequest.detach();
+        }
     }
 
     @Override
@@ -222,6 +317,86 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
         mListener = null;
     }
 
+    // dismissing the dialog or finishing the activity also destroys this fragment.
+    // abort the request so that it does not hold a thread and a connection for nobody,
+    // but leave it to the instance recreated on a configuration change such as rotation.
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mTokenRequest != null && (isRemoving() || getActivity() == null || getActivity().isFinishing())) {
+            mTokenRequest.cancel();
+            mTokenRequest = null;
+        }
+        if (!isBeingRecreated()) {
+            endFunnel(CheckoutSession.Outcome.ABANDONED);
+        }
+    }
+
+    @Override
+    public void onCancel(DialogInterface dialog) {
+        super.onCancel(dialog);
+        endFunnel(CheckoutSession.Outcome.CANCELLED);
+    }
+
+    @Override
+    public void onDismiss(DialogInterface dialog) {
+        super.onDismiss(dialog);
+        if (isBeingRecreated()) {
+            // the dialog is dismissed with the view on a configuration change, not by the user
+            return;
+        }
+        if (mFunnel != null && mFunnel.hasReached(CheckoutStage.TOKEN_RECEIVED)) {
+            endFunnel(CheckoutSession.Outcome.TOKEN_CREATED);
+        } else {
+            endFunnel(CheckoutSession.Outcome.ABANDONED);
+        }
+    }
+
+    // a fragment whose state was saved is recreated unless it is removed or the activity finishes
+    private boolean isBeingRecreated() {
+        return mStateSaved && !isRemoving() && getActivity() != null && !getActivity().isFinishing();
+    }
+
+    private void reachStage(CheckoutStage stage) {
+        if (mFunnel != null) {
+            mFunnel.reach(stage, System.nanoTime());
+        }
+    }
+
+    private void endFunnel(CheckoutSession.Outcome outcome) {
+        if (mFunnel != null) {
+            mFunnel.end(outcome, System.nanoTime());
+        }
+    }
+
+    // fields are validated only on blur and submit, so check the value on each change until it is first valid
+    private void watchFieldValidity(Dialog dialog, int fieldId, final CheckoutStage stage) {
+        final BaseCardField field = (BaseCardField) dialog.findViewById(fieldId);
+        final boolean numberField = field instanceof NumberField;
+        field.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mFunnel == null || mFunnel.isEnded()) {
+                    return;
+                }
+                if (numberField) {
+                    reachStage(CheckoutStage.FIRST_KEYSTROKE);
+                }
+                if (!mFunnel.hasReached(stage) && field.isCurrentValueValid()) {
+                    reachStage(stage);
+                }
+            }
+        });
+    }
+
     private void hideSoftKeyboard() {
         View currentFocus = getDialog().getCurrentFocus();
         if(currentFocus !=null) {
@@ -252,28 +427,19 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
     }
 
     private void sendCardInfoToWebPay() {
+        if (mFunnel != null) {
+            mFunnel.submit(System.nanoTime());
+        }
         RawCard card = createValidCardFromForm();
         if (card == null) {
             return;
         }
         hideSoftKeyboard();
         switchIndicatorVisibility(true);
-        updateRequestLanguage();
-        mWebPay.createToken(card, new WebPayListener<Token>() {
-            @Override
-            public void onCreate(Token result) {
-                switchIndicatorVisibility(false);
-                mListener.onTokenCreated(result);
-                getDialog().dismiss();
-            }
-
-            @Override
-            public void onException(Throwable cause) {
-                switchIndicatorVisibility(false);
-                mLastException = cause;
-                showWebPayErrorAlert(cause);
-            }
-        });
+        reachStage(CheckoutStage.TOKEN_REQUESTED);
+        mTokenRequest = PendingTokenRequest.create();
+        mTokenRequest.setFuture(mWebPay.createToken(card, requestOptions(), mTokenRequest));
+        mTokenRequest.attach(mTokenReceiver);
     }
 
     private void switchIndicatorVisibility(boolean visible) {
@@ -286,12 +452,10 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
         }
     }
 
-    private void updateRequestLanguage() {
-        if (getResources().getConfiguration().locale.getISO3Language().equals("jpn")) {
-            mWebPay.setLanguage("ja");
-        } else {
-            mWebPay.setLanguage("en");
-        }
+    // error messages in the language of the UI
+    private RequestOptions requestOptions() {
+        String language = getResources().getConfiguration().locale.getISO3Language().equals("jpn") ? "ja" : "en";
+        return new RequestOptions.Builder().language(language).build();
     }
 
     /**
@@ -320,6 +484,8 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
             if (response.causedBy.equals("buyer")) {
                 message = response.message;
             }
+        } else if (cause instanceof CircuitOpenException) {
+            message = getString(R.string.service_unavailable_message);
         }
 
         if (message == null) {
@@ -334,6 +500,9 @@ public class CardDialogFragment extends DialogFragment implements NumberField.On
 
     @Override
     public void onCardTypeChange(CardType cardType) {
+        if (cardType != null) {
+            reachStage(CheckoutStage.CARD_TYPE_DETECTED);
+        }
         NumberField numberFiled = (NumberField) getDialog().findViewById(R.id.cardNumberField);
         int iconDrawableId = (cardType == null) ? 0 : CARD_TYPE_TO_DRAWABLE.get(cardType).intValue();
         numberFiled.setCompoundDrawablesWithIntrinsicBounds(0, 0, iconDrawableId, 0);
@@ -0,0 +1,91 @@
+package jp.webpay.android.token.ui;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Records the stages of one session of {@link CardDialogFragment} on the main thread,
+ * and passes them to the sink when the session ends.
+ * A session goes on in the instance recreated on a configuration change such as rotation.
+ */
+class CheckoutFunnel {
+    // sessions of fragments whose state was saved, by key saved in the instance state
+    private static final Map<String, CheckoutFunnel> keptFunnels = new HashMap<String, CheckoutFunnel>();
+
+    private final String key = UUID.randomUUID().toString();
+    private final CheckoutFunnelSink sink;
+    private final long[] stageNanos = new long[CheckoutStage.values().length];
+    private final long shownAt;
+    private int submitCount = 0;
+    private int errorCount = 0;
+    private String lastError;
+    private boolean ended = false;
+
+    CheckoutFunnel(CheckoutFunnelSink sink, long nanoTime) {
+        this.sink = sink;
+        Arrays.fill(stageNanos, -1);
+        shownAt = nanoTime;
+        stageNanos[CheckoutStage.DIALOG_SHOWN.ordinal()] = 0;
+    }
+
+    /**
+     * Time the stage unless it was reached already.
+     */
+    void reach(CheckoutStage stage, long nanoTime) {
+        int index = stage.ordinal();
+        if (stageNanos[index] < 0) {
+            stageNanos[index] = Math.max(0, nanoTime - shownAt);
+        }
+    }
+
+    boolean hasReached(CheckoutStage stage) {
+        return stageNanos[stage.ordinal()] >= 0;
+    }
+
+    void submit(long nanoTime) {
+        submitCount++;
+        reach(CheckoutStage.SUBMIT_TAPPED, nanoTime);
+    }
+
+    void fail(Throwable cause) {
+        errorCount++;
+        lastError = cause.getClass().getName();
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Keep this session for the instance recreated from the saved state, until it ends.
+     *
+     * @return key to save in the instance state
+     */
+    String keep() {
+        keptFunnels.put(key, this);
+        return key;
+    }
+
+    /**
+     * @param key    key of {@link #keep()}
+     * @return the session, or null if it ended or was lost with the process
+     */
+    static CheckoutFunnel restore(String key) {
+        return key != null ? keptFunnels.get(key) : null;
+    }
+
+    /**
+     * Pass the session to the sink. Later calls do nothing.
+     */
+    void end(CheckoutSession.Outcome outcome, long nanoTime) {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        keptFunnels.remove(key);
+        reach(CheckoutStage.DIALOG_DISMISSED, nanoTime);
+        sink.onSessionEnd(new CheckoutSession(outcome, submitCount, errorCount, lastError, stageNanos.clone()));
+    }
+}
@@ -0,0 +1,14 @@
+package jp.webpay.android.token.ui;
+
+/**
+ * Receives the timings of each checkout in {@link CardDialogFragment}, to aggregate time to token
+ * against conversion. Set one by {@link CardDialogFragment#setCheckoutFunnelSink(CheckoutFunnelSink)}.
+ */
+public interface CheckoutFunnelSink {
+    /**
+     * Called on the main thread once per session, when the dialog is dismissed or the fragment destroyed.
+     *
+     * @param session    timings of the session, which holds no values of the card
+     */
+    public void onSessionEnd(CheckoutSession session);
+}
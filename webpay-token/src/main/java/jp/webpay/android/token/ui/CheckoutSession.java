@@ -0,0 +1,86 @@
+package jp.webpay.android.token.ui;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of one showing of {@link CardDialogFragment}, from the dialog shown until it is dismissed,
+ * passed to {@link CheckoutFunnelSink}.
+ * Times are read from {@link System#nanoTime()}, so they are not affected by changes of the wall clock.
+ */
+public final class CheckoutSession {
+    /**
+     * How a session ended.
+     */
+    public enum Outcome {
+        TOKEN_CREATED,
+        /**
+         * by the cancel button, which calls {@link WebPayTokenCompleteListener#onCancelled(Throwable)},
+         * or by the back key
+         */
+        CANCELLED,
+        /**
+         * dismissed without a token nor a cancellation, such as when the activity finished or was recreated
+         */
+        ABANDONED
+    }
+
+    public final Outcome outcome;
+    /**
+     * the number of times the buyer tapped send
+     */
+    public final int submitCount;
+    /**
+     * the number of token requests which failed
+     */
+    public final int errorCount;
+    /**
+     * class name of the last failure of a token request, or null
+     */
+    public final String lastError;
+    // nanoseconds from DIALOG_SHOWN by stage ordinal, negative if not reached
+    private final long[] stageNanos;
+
+    CheckoutSession(Outcome outcome, int submitCount, int errorCount, String lastError, long[] stageNanos) {
+        this.outcome = outcome;
+        this.submitCount = submitCount;
+        this.errorCount = errorCount;
+        this.lastError = lastError;
+        this.stageNanos = stageNanos;
+    }
+
+    /**
+     * @param stage    stage to read
+     * @return true if the stage was reached in this session
+     */
+    public boolean hasReached(CheckoutStage stage) {
+        return stageNanos[stage.ordinal()] >= 0;
+    }
+
+    /**
+     * @param stage    stage to read
+     * @return nanoseconds from the dialog shown until the stage was first reached, or -1 if it was not
+     */
+    public long getElapsedNanos(CheckoutStage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * @return compact form such as "TOKEN_CREATED submits=1 errors=0 DIALOG_SHOWN=0ms FIRST_KEYSTROKE=1520ms ..."
+     * with the stages reached
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(outcome).append(" submits=").append(submitCount).append(" errors=").append(errorCount);
+        if (lastError != null) {
+            builder.append(" lastError=").append(lastError);
+        }
+        for (CheckoutStage stage : CheckoutStage.values()) {
+            if (hasReached(stage)) {
+                builder.append(' ').append(stage).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(getElapsedNanos(stage))).append("ms");
+            }
+        }
+        return builder.toString();
+    }
+}
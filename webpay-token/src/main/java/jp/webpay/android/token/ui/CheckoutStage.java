@@ -0,0 +1,31 @@
+package jp.webpay.android.token.ui;
+
+/**
+ * Stages of a checkout in {@link CardDialogFragment}, in the order a buyer usually reaches them.
+ * Each stage is timed the first time it is reached in a session.
+ */
+public enum CheckoutStage {
+    DIALOG_SHOWN,
+    /**
+     * the first change of the text in the card number field
+     */
+    FIRST_KEYSTROKE,
+    /**
+     * the brand of the card is told from the number typed so far
+     */
+    CARD_TYPE_DETECTED,
+    NUMBER_VALID,
+    EXPIRY_VALID,
+    CVC_VALID,
+    NAME_VALID,
+    /**
+     * the send button or the send action of the keyboard, whether the form was valid or not
+     */
+    SUBMIT_TAPPED,
+    /**
+     * the form was valid and the token request was started
+     */
+    TOKEN_REQUESTED,
+    TOKEN_RECEIVED,
+    DIALOG_DISMISSED
+}
@@ -0,0 +1,118 @@
+package jp.webpay.android.token.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import jp.webpay.android.token.WebPayFuture;
+import jp.webpay.android.token.WebPayListener;
+import jp.webpay.android.token.model.Token;
+
+/**
+ * Token request of {@link CardDialogFragment} which outlives the fragment when it is recreated,
+ * such as on rotation. The result is held until a fragment attaches, and passed to it.
+ * Used on the main thread only.
+ */
+class PendingTokenRequest implements WebPayListener<Token> {
+    // requests in flight or not yet delivered, by key saved in the instance state of the fragment
+    private static final Map<String, PendingTokenRequest> sRequests = new HashMap<String, PendingTokenRequest>();
+
+    private final String mKey;
+    private WebPayFuture<Token> mFuture;
+    private WebPayListener<Token> mReceiver;
+    private boolean mDone = false;
+    private Token mToken;
+    private Throwable mCause;
+
+    private PendingTokenRequest(String key) {
+        mKey = key;
+    }
+
+    /**
+     * @return new request, which must be passed as the listener of the token request
+     * and then given its future by {@link #setFuture(WebPayFuture)}
+     */
+    static PendingTokenRequest create() {
+        PendingTokenRequest request = new PendingTokenRequest(UUID.randomUUID().toString());
+        sRequests.put(request.mKey, request);
+        return request;
+    }
+
+    /**
+     * @param key    key of {@link #getKey()}
+     * @return the request, or null if it was delivered, cancelled or lost with the process
+     */
+    static PendingTokenRequest find(String key) {
+        return key != null ? sRequests.get(key) : null;
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    void setFuture(WebPayFuture<Token> future) {
+        mFuture = future;
+    }
+
+    /**
+     * Pass the result to the receiver, at once if it has arrived.
+     */
+    void attach(WebPayListener<Token> receiver) {
+        mReceiver = receiver;
+        if (mDone) {
+            deliver();
+        }
+    }
+
+    /**
+     * Hold the result until another receiver attaches.
+     */
+    void detach() {
+        mReceiver = null;
+    }
+
+    /**
+     * Abort the request, whose result is never delivered.
+     */
+    void cancel() {
+        sRequests.remove(mKey);
+        mReceiver = null;
+        if (mFuture != null) {
+            mFuture.cancel(true);
+        }
+    }
+
+    @Override
+    public void onCreate(Token result) {
+        finish(result, null);
+    }
+
+    @Override
+    public void onException(Throwable cause) {
+        finish(null, cause);
+    }
+
+    private void finish(Token token, Throwable cause) {
+        if (!sRequests.containsKey(mKey)) {
+            // cancelled
+            return;
+        }
+        mDone = true;
+        mToken = token;
+        mCause = cause;
+        if (mReceiver != null) {
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        sRequests.remove(mKey);
+        WebPayListener<Token> receiver = mReceiver;
+        mReceiver = null;
+        if (mCause == null) {
+            receiver.onCreate(mToken);
+        } else {
+            receiver.onException(mCause);
+        }
+    }
+}
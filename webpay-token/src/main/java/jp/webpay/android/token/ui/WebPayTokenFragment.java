@@ -13,6 +13,7 @@ import java.util.List;
 
 import jp.webpay.android.token.R;
 import jp.webpay.android.token.WebPay;
+import jp.webpay.android.token.WebPayFuture;
 import jp.webpay.android.token.WebPayListener;
 import jp.webpay.android.token.model.AccountAvailability;
 import jp.webpay.android.token.model.CardType;
@@ -33,7 +34,9 @@ public class WebPayTokenFragment extends Fragment implements WebPayTokenComplete
 
     private WebPayTokenCompleteListener mListener;
     private String mPublishableKey;
+    private WebPay mWebPay;
     private List<CardType> mCardTypesSupported;
+    private WebPayFuture<AccountAvailability> mAvailabilityRequest;
     private Button mOpenButton;
     private boolean mHaveToken = false;
     private @StringRes int mOpenButtonTitle = R.string.token_fragment_open_dialog;
@@ -96,6 +99,14 @@ public class WebPayTokenFragment extends Fragment implements WebPayTokenComplete
             throw new IllegalArgumentException("WebPayTokenFragment requires publishableKey to present. " +
                     "You can find the key starts with \"test_public_\" in WebPay settings page.");
         }
+        mWebPay = new WebPay(mPublishableKey);
+        // availability is cached in the process and in a file, so card types are shown at once
+        // after the fragment is recreated or the app is restarted
+        WebPay.enableAvailabilitySnapshot(getActivity());
+        AccountAvailability cached = WebPay.peekAvailability(mPublishableKey);
+        if (cached != null) {
+            mCardTypesSupported = cached.cardTypesSupported;
+        }
         retrieveAvailability();
     }
 
@@ -107,6 +118,8 @@ public class WebPayTokenFragment extends Fragment implements WebPayTokenComplete
         mOpenButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                // start connecting before the dialog appears. the dialog skips it if a connection is kept.
+                mWebPay.preconnect();
                 // cardTypesSupported is best-effort. Continue even if null.
                 CardDialogFragment fragment = CardDialogFragment.newInstance(mPublishableKey, mCardTypesSupported);
                 fragment.setSendButtonTitle(mCardDialogSendButtonTitle);
@@ -136,6 +149,15 @@ public class WebPayTokenFragment extends Fragment implements WebPayTokenComplete
         mListener = null;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mAvailabilityRequest != null) {
+            mAvailabilityRequest.cancel(true);
+            mAvailabilityRequest = null;
+        }
+    }
+
     // Delegate OnCompleteListener from CardDialogFragment to mListener,
     // while setting views to reflect current token status.
     @Override
@@ -151,14 +173,16 @@ public class WebPayTokenFragment extends Fragment implements WebPayTokenComplete
     }
 
     private void retrieveAvailability() {
-        new WebPay(mPublishableKey).retrieveAvailability(new WebPayListener<AccountAvailability>() {
+        mAvailabilityRequest = mWebPay.getAvailability(new WebPayListener<AccountAvailability>() {
             @Override
             public void onCreate(AccountAvailability result) {
+                mAvailabilityRequest = null;
                 mCardTypesSupported = result.cardTypesSupported;
             }
 
             @Override
             public void onException(Throwable cause) {
+                mAvailabilityRequest = null;
                 // ignore failures
                 // card types supported is not necessary for creating a token
             }
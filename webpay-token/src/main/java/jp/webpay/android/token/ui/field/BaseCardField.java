@@ -15,6 +15,7 @@ import jp.webpay.android.token.model.RawCard;
 public abstract class BaseCardField extends EditText
         implements View.OnFocusChangeListener {
     private boolean mValid = false;
+    private KeystrokeTracer mKeystrokeTracer;
 
     public BaseCardField(Context context) {
         super(context);
@@ -59,7 +60,7 @@ public abstract class BaseCardField extends EditText
      * @return true if the field is valid
      */
     public boolean validate() {
-        mValid = validateCurrentValue();
+        mValid = tracedValidateCurrentValue();
         if (mValid || getText().toString().equals("")) {
             setError(null);
         } else {
@@ -70,6 +71,40 @@ public abstract class BaseCardField extends EditText
 
     protected abstract boolean validateCurrentValue();
 
+    /**
+     * Check the current value without updating {@link #isValid()} nor showing an error,
+     * such as while the user is typing. Call {@link #validate()} before {@link #updateCard(RawCard)} as usual.
+     * @return true if the current value is valid
+     */
+    public boolean isCurrentValueValid() {
+        return tracedValidateCurrentValue();
+    }
+
+    private boolean tracedValidateCurrentValue() {
+        if (mKeystrokeTracer == null) {
+            return validateCurrentValue();
+        }
+        long startedAt = System.nanoTime();
+        boolean valid = validateCurrentValue();
+        mKeystrokeTracer.record(KeystrokeTracer.Phase.VALIDATE, startedAt);
+        return valid;
+    }
+
+    /**
+     * Trace the time spent on keystrokes and validation of this field, for debugging.
+     * @param tracer    tracer to record to, or null to stop tracing
+     */
+    public void setKeystrokeTracer(KeystrokeTracer tracer) {
+        mKeystrokeTracer = tracer;
+    }
+
+    /**
+     * @return tracer of this field, or null if not traced
+     */
+    public KeystrokeTracer getKeystrokeTracer() {
+        return mKeystrokeTracer;
+    }
+
     public boolean isValid() {
         return mValid;
     }
@@ -0,0 +1,171 @@
+package jp.webpay.android.token.ui.field;
+
+import android.os.Debug;
+
+import jp.webpay.android.token.LatencyHistogram;
+import jp.webpay.android.token.LatencySnapshot;
+
+/**
+ * Debugging aid which records how long a card field spends on each keystroke, to find the cause of input jank
+ * on slow devices. Attach one to each field to trace by {@link BaseCardField#setKeystrokeTracer(KeystrokeTracer)}.
+ * <pre>{@code
+ * if (BuildConfig.DEBUG) {
+ *     numberField.setKeystrokeTracer(new KeystrokeTracer(true));
+ * }
+ * // later
+ * Log.d(TAG, numberField.getKeystrokeTracer().toString());
+ * }</pre>
+ * Keystrokes are traced in {@link MultiColumnCardField}, such as {@link NumberField} and {@link ExpiryField},
+ * while validation is traced in every field. Fields without a tracer do not read the clock.
+ * <p>
+ * Allocations are counted on Dalvik and ART with {@link Debug#startAllocCounting()},
+ * which slows down every allocation of the process, so do not leave it on in release builds.
+ * Other runtimes do not count them.
+ */
+public class KeystrokeTracer {
+    /**
+     * Parts of a keystroke, each of which has a histogram.
+     */
+    public enum Phase {
+        /**
+         * the whole keystroke in the field, from the change of the text until it is formatted
+         */
+        KEYSTROKE,
+        /**
+         * building the formatted text, including pattern matching for the card type
+         */
+        FORMAT,
+        /**
+         * replacing the text with the formatted one, including layout and other text watchers
+         */
+        SET_TEXT,
+        /**
+         * checking the value, whether on blur, on submit or while typing
+         */
+        VALIDATE,
+        /**
+         * listeners called by the field, such as {@link NumberField.OnCardTypeChangeListener}
+         */
+        LISTENERS
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    private final boolean countingAllocations;
+    // written only on the main thread
+    private volatile long allocationCount = 0;
+    private volatile long maxAllocations = 0;
+    private long keystrokeAllocationsAtStart;
+    private long listenerNanos = 0;
+    private long listenerNanosAtFormat;
+
+    /**
+     * @param countAllocations    true to count allocations of each keystroke where the runtime supports it
+     */
+    public KeystrokeTracer(boolean countAllocations) {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        countingAllocations = countAllocations && isAllocationCountingSupported();
+        if (countingAllocations) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    /**
+     * @return true if Debug of this runtime counts allocations of each thread
+     */
+    public static boolean isAllocationCountingSupported() {
+        // ART also calls itself Dalvik
+        return "Dalvik".equals(System.getProperty("java.vm.name"));
+    }
+
+    /**
+     * @param phase    phase to read
+     * @return nanoseconds spent in the phase by calls, whose {@link LatencySnapshot#outcome} is the name of the phase
+     */
+    public LatencySnapshot getSnapshot(Phase phase) {
+        return histograms[phase.ordinal()].getSnapshot(phase.name());
+    }
+
+    public long getKeystrokeCount() {
+        return histograms[Phase.KEYSTROKE.ordinal()].getCount();
+    }
+
+    /**
+     * @return true if allocations are counted
+     */
+    public boolean isCountingAllocations() {
+        return countingAllocations;
+    }
+
+    /**
+     * @return the number of objects allocated in all keystrokes, or 0 if allocations are not counted
+     */
+    public long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return the largest number of objects allocated in one keystroke, or 0 if allocations are not counted
+     */
+    public long getMaxAllocations() {
+        return maxAllocations;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            LatencySnapshot snapshot = getSnapshot(phase);
+            builder.append(phase).append(" count=").append(snapshot.count)
+                    .append(" p50=").append(snapshot.p50Nanos / 1000).append("us")
+                    .append(" p99=").append(snapshot.p99Nanos / 1000).append("us")
+                    .append(" max=").append(snapshot.maxNanos / 1000).append("us\n");
+        }
+        if (countingAllocations) {
+            builder.append("allocations total=").append(allocationCount).append(" max=").append(maxAllocations);
+        }
+        return builder.toString();
+    }
+
+    long beginKeystroke() {
+        if (countingAllocations) {
+            keystrokeAllocationsAtStart = Debug.getThreadAllocCount();
+        }
+        return System.nanoTime();
+    }
+
+    void endKeystroke(long startedAt) {
+        record(Phase.KEYSTROKE, startedAt);
+        if (countingAllocations) {
+            long allocations = Debug.getThreadAllocCount() - keystrokeAllocationsAtStart;
+            allocationCount += allocations;
+            if (allocations > maxAllocations) {
+                maxAllocations = allocations;
+            }
+        }
+    }
+
+    long beginFormat() {
+        listenerNanosAtFormat = listenerNanos;
+        return System.nanoTime();
+    }
+
+    /**
+     * Record formatting, except for listeners it called, which are recorded by themselves.
+     */
+    void endFormat(long startedAt) {
+        long nanos = System.nanoTime() - startedAt - (listenerNanos - listenerNanosAtFormat);
+        histograms[Phase.FORMAT.ordinal()].record(nanos);
+    }
+
+    void endListeners(long startedAt) {
+        long nanos = System.nanoTime() - startedAt;
+        listenerNanos += nanos;
+        histograms[Phase.LISTENERS.ordinal()].record(nanos);
+    }
+
+    void record(Phase phase, long startedAt) {
+        histograms[phase.ordinal()].record(System.nanoTime() - startedAt);
+    }
+}
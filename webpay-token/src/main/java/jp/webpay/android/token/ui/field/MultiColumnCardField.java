@@ -12,6 +12,7 @@ import android.util.AttributeSet;
 public abstract class MultiColumnCardField extends BaseCardField implements TextWatcher {
     private final String mSeparator;
     private boolean mDeletingSeparator;
+    private long mKeystrokeStartedAt;
 
     public MultiColumnCardField(Context context, String separator) {
         super(context);
@@ -42,6 +43,10 @@ public abstract class MultiColumnCardField extends BaseCardField implements Text
 
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        KeystrokeTracer tracer = getKeystrokeTracer();
+        if (tracer != null) {
+            mKeystrokeStartedAt = tracer.beginKeystroke();
+        }
         // user trying to delete a separator
         char lastChar = mSeparator.charAt(mSeparator.length() - 1);
         mDeletingSeparator =
@@ -56,8 +61,22 @@ public abstract class MultiColumnCardField extends BaseCardField implements Text
             // Here, remove the rest of separators and previous column's last letter.
             string = string.substring(0, string.length() - mSeparator.length());
         }
+        KeystrokeTracer tracer = getKeystrokeTracer();
+        if (tracer == null) {
+            changeText(formatVisibleText(string));
+            return;
+        }
+        long formatStartedAt = tracer.beginFormat();
         String visibleText = formatVisibleText(string);
+        tracer.endFormat(formatStartedAt);
+        long setTextStartedAt = System.nanoTime();
         changeText(visibleText);
+        tracer.record(KeystrokeTracer.Phase.SET_TEXT, setTextStartedAt);
+        // not started if the tracer was set in the middle of the change
+        if (mKeystrokeStartedAt != 0) {
+            tracer.endKeystroke(mKeystrokeStartedAt);
+            mKeystrokeStartedAt = 0;
+        }
     }
 
     @Override
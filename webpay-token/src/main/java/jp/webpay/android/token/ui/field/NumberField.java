@@ -113,7 +113,12 @@ public class NumberField extends MultiColumnCardField {
         if (!isSame) {
             mCurrentCardType = cardType;
             if (mOnCardTypeChangeListener != null) {
+                KeystrokeTracer tracer = getKeystrokeTracer();
+                long startedAt = tracer == null ? 0 : System.nanoTime();
                 mOnCardTypeChangeListener.onCardTypeChange(cardType);
+                if (tracer != null) {
+                    tracer.endListeners(startedAt);
+                }
             }
         }
     }
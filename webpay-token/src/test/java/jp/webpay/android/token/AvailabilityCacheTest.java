@@ -0,0 +1,289 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.webpay.android.token.model.AccountAvailability;
+import jp.webpay.android.token.model.CardType;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class AvailabilityCacheTest {
+    private ExecutorService executor;
+    private CountingTransport transport;
+    private WebPay webpay;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        transport = new CountingTransport();
+        webpay = new WebPay.Builder("test_public_dummykey").executor(executor).transport(transport)
+                .circuitBreaker(null).build();
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        transport.gate.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void returnsCachedValueWithinTtl() throws Exception {
+        transport.gate.countDown();
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+
+        AccountAvailability first = cache.get(webpay).get(1, TimeUnit.SECONDS);
+        AccountAvailability second = cache.get(webpay).get(1, TimeUnit.SECONDS);
+
+        assertSame(first, second);
+        assertSame(first, cache.peek("test_public_dummykey", WebPay.DEFAULT_ENDPOINTS));
+        assertThat(first.cardTypesSupported, contains(CardType.VISA, CardType.MASTERCARD));
+        assertEquals(1, transport.requestCount.get());
+    }
+
+    @Test
+    public void concurrentCallersShareOneRequest() throws Exception {
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+        List<WebPayFuture<AccountAvailability>> futures = new ArrayList<WebPayFuture<AccountAvailability>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(cache.get(webpay));
+        }
+        assertNull(cache.peek("test_public_dummykey", WebPay.DEFAULT_ENDPOINTS));
+
+        transport.gate.countDown();
+        for (WebPayFuture<AccountAvailability> future : futures) {
+            assertEquals(2, future.get(1, TimeUnit.SECONDS).cardTypesSupported.size());
+        }
+        assertEquals(1, transport.requestCount.get());
+    }
+
+    @Test
+    public void cancellingCallerKeepsSharedRequest() throws Exception {
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+        WebPayFuture<AccountAvailability> cancelled = cache.get(webpay);
+        WebPayFuture<AccountAvailability> waiting = cache.get(webpay);
+        cancelled.cancel(true);
+
+        transport.gate.countDown();
+        assertEquals(2, waiting.get(1, TimeUnit.SECONDS).cardTypesSupported.size());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, transport.requestCount.get());
+    }
+
+    @Test
+    public void returnsStaleValueWhileRefreshing() throws Exception {
+        transport.gate.countDown();
+        AvailabilityCache cache = new AvailabilityCache(0, 60000);
+        AccountAvailability first = cache.get(webpay).get(1, TimeUnit.SECONDS);
+
+        assertSame(first, cache.get(webpay).get(1, TimeUnit.SECONDS));
+        transport.awaitRequests(2);
+    }
+
+    @Test
+    public void failureIsNotCached() throws Exception {
+        transport.gate.countDown();
+        transport.failing = true;
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+        try {
+            cache.get(webpay).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+
+        transport.failing = false;
+        assertEquals(2, cache.get(webpay).get(1, TimeUnit.SECONDS).cardTypesSupported.size());
+        assertEquals(2, transport.requestCount.get());
+    }
+
+    @Test
+    public void snapshotIsLoadedInNextProcess() throws Exception {
+        transport.gate.countDown();
+        File file = folder.newFile("availability");
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+        cache.attachSnapshot(new AvailabilitySnapshot(file));
+        cache.get(webpay).get(1, TimeUnit.SECONDS);
+
+        AvailabilityCache next = new AvailabilityCache(60000, 60000);
+        next.attachSnapshot(new AvailabilitySnapshot(file));
+        AccountAvailability loaded = next.peek("test_public_dummykey", WebPay.DEFAULT_ENDPOINTS);
+        assertThat(loaded.cardTypesSupported, contains(CardType.VISA, CardType.MASTERCARD));
+        assertThat(loaded.currenciesSupported, contains("jpy"));
+        assertEquals(1, transport.requestCount.get());
+    }
+
+    @Test
+    public void instancesWithOtherEndpointsDoNotShareValues() throws Exception {
+        transport.gate.countDown();
+        File file = folder.newFile("availability");
+        WebPay proxied = new WebPay.Builder("test_public_dummykey").endpoints("https://proxy.example.com/v1")
+                .executor(executor).transport(transport).circuitBreaker(null).build();
+        AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+        cache.attachSnapshot(new AvailabilitySnapshot(file));
+
+        cache.get(proxied).get(1, TimeUnit.SECONDS);
+        assertNull(cache.peek("test_public_dummykey", WebPay.DEFAULT_ENDPOINTS));
+        cache.get(webpay).get(1, TimeUnit.SECONDS);
+        assertEquals(2, transport.requestCount.get());
+
+        AvailabilityCache next = new AvailabilityCache(60000, 60000);
+        next.attachSnapshot(new AvailabilitySnapshot(file));
+        assertNotNull(next.peek("test_public_dummykey", WebPay.DEFAULT_ENDPOINTS));
+        assertNotNull(next.peek("test_public_dummykey", proxied.getEndpoints()));
+        assertNull(next.peek("test_public_dummykey",
+                Collections.singletonList(Uri.parse("https://edge.example.com/v1"))));
+    }
+
+    @Test
+    public void brokenSnapshotIsIgnored() throws Exception {
+        File file = folder.newFile("availability");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{0, 0, 0, 2, 0, 0, 0, 5, 0});
+        out.close();
+
+        assertTrue(new AvailabilitySnapshot(file).load().isEmpty());
+    }
+
+    @Test
+    public void revalidatesWithEntityTag() throws Exception {
+        StubServer server = new StubServer();
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        try {
+            WebPay stubbed = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                    .transport(new RedirectingTransport(server.getBaseUri())).build();
+            File file = folder.newFile("availability");
+            String body = "{\"currencies_supported\":[\"jpy\"],\"card_types_supported\":[\"JCB\"]}";
+            server.enqueueWithETag("\"v1\"", body);
+            server.enqueueWithETag("\"v1\"", body);
+
+            AvailabilityCache cache = new AvailabilityCache(60000, 60000);
+            cache.attachSnapshot(new AvailabilitySnapshot(file));
+            AccountAvailability first = cache.get(stubbed).get(1, TimeUnit.SECONDS);
+            assertNull(server.takeRequest().getHeader("If-None-Match"));
+
+            // the next process shows the saved value at once and revalidates it
+            AvailabilityCache next = new AvailabilityCache(60000, 60000);
+            next.attachSnapshot(new AvailabilitySnapshot(file));
+            AccountAvailability loaded = next.get(stubbed).get(1, TimeUnit.SECONDS);
+            assertThat(loaded.cardTypesSupported, contains(CardType.JCB));
+            assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+            // not modified, so the loaded value is kept and fresh now
+            assertSame(loaded, next.get(stubbed).get(1, TimeUnit.SECONDS));
+            assertNull(server.takeRequest());
+            assertThat(first.cardTypesSupported, contains(CardType.JCB));
+        } finally {
+            server.shutdown();
+            Robolectric.getFakeHttpLayer().interceptHttpRequests(true);
+        }
+    }
+
+    /**
+     * Sends requests for WebPay to the stub server.
+     */
+    private static class RedirectingTransport implements Transport {
+        private final String baseUri;
+
+        RedirectingTransport(String baseUri) {
+            this.baseUri = baseUri;
+        }
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            String url = request.url.replace("https://api.webpay.jp/v1", baseUri);
+            return UrlConnectionTransport.getInstance().execute(new Request(request.method, url, request.headers,
+                    request.body, request.abortSignal), reader);
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+
+    /**
+     * Answers availability once the gate is opened, counting requests.
+     */
+    private static class CountingTransport implements Transport {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger requestCount = new AtomicInteger();
+        volatile boolean failing = false;
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            synchronized (this) {
+                requestCount.incrementAndGet();
+                notifyAll();
+            }
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+            if (failing) {
+                throw new IOException("Connection reset");
+            }
+            String body = "{\"currencies_supported\":[\"jpy\"],\"card_types_supported\":[\"Visa\",\"MasterCard\"]}";
+            return reader.read(200, Collections.<String, String>emptyMap(),
+                    new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+
+        synchronized void awaitRequests(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (requestCount.get() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, requestCount.get());
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
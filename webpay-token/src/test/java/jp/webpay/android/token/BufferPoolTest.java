@@ -0,0 +1,41 @@
+package jp.webpay.android.token;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+    @Test
+    public void reusesReleasedBuffer() {
+        BufferPool pool = new BufferPool(2);
+        byte[] buffer = pool.acquire();
+        assertEquals(BufferPool.BUFFER_SIZE, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire());
+
+        BufferPoolStats stats = pool.getStats();
+        assertEquals(2, stats.acquisitions);
+        assertEquals(1, stats.hits);
+        assertEquals(0.5, stats.getHitRate(), 0);
+    }
+
+    @Test
+    public void tracksHighWaterMark() {
+        BufferPool pool = new BufferPool(2);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        BufferPoolStats stats = pool.getStats();
+        assertEquals(3, stats.highWaterBuffers);
+        assertEquals(3 * BufferPool.BUFFER_SIZE, stats.getHighWaterBytes());
+        // the third buffer is left to the GC
+        assertEquals(2, stats.pooledBuffers);
+    }
+}
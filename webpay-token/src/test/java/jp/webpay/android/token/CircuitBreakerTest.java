@@ -0,0 +1,290 @@
+package jp.webpay.android.token;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class CircuitBreakerTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+    private static final String CARD_ERROR_BODY = "{\"error\":{\"message\":\"This card cannot be used.\","
+            + "\"type\":\"card_error\",\"caused_by\":\"buyer\",\"code\":\"card_declined\"}}";
+    private static final String SERVER_ERROR_BODY = "{\"error\":{\"message\":\"Internal error\","
+            + "\"type\":\"api_error\",\"caused_by\":\"service\"}}";
+    private static final String TOO_MANY_REQUESTS_BODY = "{\"error\":{\"message\":\"Too many requests\","
+            + "\"type\":\"api_error\",\"caused_by\":\"service\"}}";
+
+    private final VirtualClock clock = new VirtualClock();
+    private final RecordingListener listener = new RecordingListener();
+
+    @Test
+    public void opensWhenFailureRateReachesThreshold() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 5; i++) {
+            recordSuccess(breaker);
+        }
+        for (int i = 0; i < 4; i++) {
+            recordFailure(breaker);
+        }
+        // 4 failures in 9 calls are below the minimum of calls
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        recordFailure(breaker);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(Collections.singletonList(CircuitBreaker.State.OPEN), listener.states);
+        try {
+            breaker.acquire();
+            fail("CircuitOpenException is expected");
+        } catch (CircuitOpenException e) {
+            assertEquals(30000, e.getRemainingCooldownMillis());
+        }
+    }
+
+    @Test
+    public void oldOutcomesLeaveTheWindow() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 4; i++) {
+            recordFailure(breaker);
+        }
+        for (int i = 0; i < 20; i++) {
+            recordSuccess(breaker);
+        }
+        // the window of 20 only holds successes now
+        for (int i = 0; i < 9; i++) {
+            recordFailure(breaker);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire();
+            breaker.onComplete(false, TimeUnit.SECONDS.toNanos(10));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void probesAfterCooldownCloseTheBreaker() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+
+        clock.advance(30, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.acquire();
+        breaker.acquire();
+        try {
+            // only 2 probes are let through
+            breaker.acquire();
+            fail("CircuitOpenException is expected");
+        } catch (CircuitOpenException e) {
+            assertEquals(0, e.getRemainingCooldownMillis());
+        }
+        breaker.onComplete(false, 0);
+        breaker.onComplete(false, 0);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(listOf(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED),
+                listener.states);
+        // failures before opening are forgotten
+        recordFailure(breaker);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        clock.advance(30, TimeUnit.SECONDS);
+
+        breaker.acquire();
+        breaker.onComplete(true, 0);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(30000, breaker.getRemainingCooldownMillis());
+    }
+
+    @Test
+    public void ignoredProbeReleasesItsPermit() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        clock.advance(30, TimeUnit.SECONDS);
+
+        breaker.acquire();
+        breaker.acquire();
+        breaker.onIgnored();
+        breaker.acquire();
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void resetCloses() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        breaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+    }
+
+    @Test
+    public void instancesShareBreakerOnlyForSameEndpointsAndTransport() {
+        WebPay production = new WebPay("test_public_dummykey");
+        WebPay other = new WebPay.Builder("test_public_otherkey").build();
+        WebPay staging = new WebPay.Builder("test_public_dummykey").endpoints("https://staging.example.com/v1").build();
+        WebPay stubbed = new WebPay.Builder("test_public_dummykey").transport(new CountingTransport()).build();
+
+        assertSame(CircuitBreaker.getDefault(), production.getCircuitBreaker());
+        assertSame(production.getCircuitBreaker(), other.getCircuitBreaker());
+        assertNotSame(production.getCircuitBreaker(), staging.getCircuitBreaker());
+        assertSame(staging.getCircuitBreaker(), new WebPay.Builder("test_public_dummykey")
+                .endpoints("https://staging.example.com/v1").build().getCircuitBreaker());
+        assertNotSame(production.getCircuitBreaker(), stubbed.getCircuitBreaker());
+        assertNull(new WebPay.Builder("test_public_dummykey").circuitBreaker(null).build().getCircuitBreaker());
+    }
+
+    @Test
+    public void webPayFailsFastWhileOpen() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        CountingTransport transport = new CountingTransport();
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).retryPolicy(RetryPolicy.NONE).circuitBreaker(breaker).clock(clock).build();
+
+        // card errors are answers of WebPay
+        transport.statusCode = 402;
+        transport.body = CARD_ERROR_BODY;
+        for (int i = 0; i < 10; i++) {
+            expectFailure(webpay, ErrorResponseException.class);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        transport.statusCode = 500;
+        transport.body = SERVER_ERROR_BODY;
+        for (int i = 0; i < 10; i++) {
+            expectFailure(webpay, ErrorResponseException.class);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        expectFailure(webpay, CircuitOpenException.class);
+        assertEquals(20, transport.count);
+
+        clock.advance(30, TimeUnit.SECONDS);
+        transport.statusCode = 201;
+        transport.body = TOKEN_BODY;
+        webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+        webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void tooManyRequestsDoNotOpen() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        CountingTransport transport = new CountingTransport();
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).circuitBreaker(breaker).clock(clock).build();
+
+        // asking to slow down is an answer of WebPay, whether retried or returned
+        transport.statusCode = 429;
+        transport.body = TOO_MANY_REQUESTS_BODY;
+        for (int i = 0; i < 10; i++) {
+            expectFailure(webpay, ErrorResponseException.class);
+        }
+        assertEquals(30, transport.count);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private CircuitBreaker createBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker.Builder().clock(clock).build();
+        breaker.addStateListener(listener, new SynchronousExecutor());
+        return breaker;
+    }
+
+    private CircuitBreaker openBreaker() throws CircuitOpenException {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 10; i++) {
+            recordFailure(breaker);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void recordSuccess(CircuitBreaker breaker) throws CircuitOpenException {
+        breaker.acquire();
+        breaker.onComplete(false, 0);
+    }
+
+    private static void recordFailure(CircuitBreaker breaker) throws CircuitOpenException {
+        breaker.acquire();
+        breaker.onComplete(true, 0);
+    }
+
+    private static void expectFailure(WebPay webpay, Class<? extends Throwable> type) throws Exception {
+        try {
+            webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(type));
+        }
+    }
+
+    private static List<CircuitBreaker.State> listOf(CircuitBreaker.State... states) {
+        List<CircuitBreaker.State> list = new ArrayList<CircuitBreaker.State>();
+        Collections.addAll(list, states);
+        return list;
+    }
+
+    private static class RecordingListener implements CircuitBreaker.StateListener {
+        final List<CircuitBreaker.State> states = new ArrayList<CircuitBreaker.State>();
+
+        @Override
+        public void onStateChanged(CircuitBreaker breaker, CircuitBreaker.State state) {
+            states.add(state);
+        }
+    }
+
+    /**
+     * Answers every request with the same response.
+     */
+    private static class CountingTransport implements Transport {
+        int statusCode;
+        String body;
+        int count = 0;
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            count++;
+            return reader.read(statusCode, Collections.<String, String>emptyMap(),
+                    new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package jp.webpay.android.token;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.Token;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class HedgerTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+
+    private ExecutorService executor;
+    private StallingTransport transport;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        transport = new StallingTransport();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void latencyWindowTakesPercentileOfRecentSamples() {
+        LatencyWindow window = new LatencyWindow(10);
+        assertEquals(-1, window.getPercentile(0.5, 1));
+        for (int i = 1; i <= 20; i++) {
+            window.record(i);
+        }
+        // only 11..20 are kept
+        assertEquals(15, window.getPercentile(0.5, 10));
+        assertEquals(19, window.getPercentile(0.9, 10));
+        assertEquals(20, window.getPercentile(0.99, 10));
+        assertEquals(-1, window.getPercentile(0.5, 11));
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndHedgeWins() throws Exception {
+        WebPay webpay = createWebPay(new HedgingPolicy(0.9, 0.1));
+        warmUp(webpay);
+
+        transport.stallNext();
+        Token token = webpay.createToken(ApiSample.testCard).get(2, TimeUnit.SECONDS);
+
+        assertEquals("tok_3ybc93ckR01qeKx", token.id);
+        RequestStats stats = webpay.getRequestStats();
+        assertEquals(1, stats.hedgeCount);
+        assertEquals(1, stats.hedgeWinCount);
+        // the stalled request is cancelled, and the hedge did not reuse its key while it was in flight
+        assertTrue(transport.stalledAborted.await(1, TimeUnit.SECONDS));
+        int last = transport.requests.size() - 1;
+        assertNotEquals(transport.requests.get(last - 1).headers.get("Idempotency-Key"),
+                transport.requests.get(last).headers.get("Idempotency-Key"));
+    }
+
+    @Test
+    public void hedgedCallIsRecordedOnceInMetrics() throws Exception {
+        WebPay webpay = createWebPay(new HedgingPolicy(0.9, 0.1));
+        warmUp(webpay);
+
+        transport.delayNext(300);
+        transport.failConcurrent();
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(2, TimeUnit.SECONDS).id);
+
+        assertEquals(1, webpay.getRequestStats().hedgeCount);
+        LatencySnapshot snapshot = webpay.getMetrics().getSnapshot(WebPayMetrics.Operation.CREATE_TOKEN);
+        assertEquals(HedgingPolicy.MIN_SAMPLES + 1, snapshot.count);
+        assertEquals(0, snapshot.errorCount);
+    }
+
+    @Test
+    public void hedgesAreCappedByRatio() throws Exception {
+        WebPay webpay = createWebPay(new HedgingPolicy(0.9, 0));
+        warmUp(webpay);
+
+        transport.delayNext(200);
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(2, TimeUnit.SECONDS).id);
+
+        assertEquals(0, webpay.getRequestStats().hedgeCount);
+        assertEquals(HedgingPolicy.MIN_SAMPLES + 1, transport.requests.size());
+    }
+
+    @Test
+    public void noHedgeBeforeEnoughSamples() throws Exception {
+        WebPay webpay = createWebPay(new HedgingPolicy(0.5, 1));
+
+        transport.delayNext(200);
+        webpay.createToken(ApiSample.testCard).get(2, TimeUnit.SECONDS);
+
+        assertEquals(0, webpay.getRequestStats().hedgeCount);
+    }
+
+    @Test
+    public void failureIsReturnedWhenNoHedgeIsInFlight() throws Exception {
+        WebPay webpay = createWebPay(new HedgingPolicy(0.9, 0.1));
+        transport.failNext();
+        try {
+            webpay.createToken(ApiSample.testCard).get(2, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+        assertEquals(0, webpay.getRequestStats().hedgeCount);
+    }
+
+    private WebPay createWebPay(HedgingPolicy policy) {
+        return new WebPay.Builder("test_public_dummykey").executor(executor).transport(transport)
+                .retryPolicy(RetryPolicy.NONE).hedging(policy).circuitBreaker(null).build();
+    }
+
+    private static void warmUp(WebPay webpay) throws Exception {
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Answers at once, except for the next request when told to stall, delay or fail it.
+     */
+    private static class StallingTransport implements Transport {
+        final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+        final CountDownLatch stalledAborted = new CountDownLatch(1);
+        private boolean stallNext = false;
+        private long delayNext = 0;
+        private boolean failNext = false;
+        private boolean failConcurrent = false;
+        private int inFlight = 0;
+
+        synchronized void stallNext() {
+            stallNext = true;
+        }
+
+        synchronized void delayNext(long millis) {
+            delayNext = millis;
+        }
+
+        synchronized void failNext() {
+            failNext = true;
+        }
+
+        synchronized void failConcurrent() {
+            failConcurrent = true;
+        }
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            boolean stall;
+            long delay;
+            boolean failing;
+            synchronized (this) {
+                requests.add(request);
+                if (failConcurrent && inFlight > 0) {
+                    failConcurrent = false;
+                    throw new IOException("Connection reset");
+                }
+                inFlight++;
+                stall = stallNext;
+                delay = delayNext;
+                failing = failNext;
+                stallNext = false;
+                delayNext = 0;
+                failNext = false;
+            }
+            try {
+                if (failing) {
+                    throw new IOException("Connection reset");
+                }
+                try {
+                    if (stall) {
+                        final CountDownLatch aborted = new CountDownLatch(1);
+                        request.abortSignal.setAbortAction(new Runnable() {
+                            @Override
+                            public void run() {
+                                aborted.countDown();
+                            }
+                        });
+                        aborted.await(5, TimeUnit.SECONDS);
+                        stalledAborted.countDown();
+                        throw new InterruptedIOException("Request is aborted");
+                    }
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted");
+                }
+                return reader.read(201, Collections.<String, String>emptyMap(),
+                        new ByteArrayInputStream(TOKEN_BODY.getBytes("UTF-8")));
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package jp.webpay.android.token;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends requests through Apache HTTP client, which Robolectric intercepts,
+ * and records preconnects instead of opening connections.
+ */
+public class InterceptedTransport implements Transport {
+    private final List<String> preconnectUrls = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+        return ApacheTransport.getInstance().execute(request, reader);
+    }
+
+    @Override
+    public void preconnect(String url) throws IOException {
+        preconnectUrls.add(url);
+    }
+
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return ApacheTransport.getInstance().getConnectionStats();
+    }
+
+    public List<String> getPreconnectUrls() {
+        return preconnectUrls;
+    }
+}
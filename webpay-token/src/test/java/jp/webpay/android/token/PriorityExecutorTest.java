@@ -0,0 +1,204 @@
+package jp.webpay.android.token;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.AccountAvailability;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class PriorityExecutorTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+    private static final String AVAILABILITY_BODY = "{\"currencies_supported\":[\"jpy\"],"
+            + "\"card_types_supported\":[\"Visa\"]}";
+
+    private ExecutorService threads;
+    private PriorityExecutor executor;
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Semaphore blocking = new Semaphore(0);
+
+    @Before
+    public void setUp() {
+        threads = Executors.newFixedThreadPool(2);
+        executor = new PriorityExecutor(threads, 2);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void userInitiatedTaskUsesThreadKeptFromBackgroundWork() throws Exception {
+        executor.execute(new BlockingTask("availability", RequestPriority.BACKGROUND));
+        executor.execute(new BlockingTask("batch", RequestPriority.BATCH));
+        assertTrue(blocking.tryAcquire(1, TimeUnit.SECONDS));
+        CountDownLatch tokenDone = new CountDownLatch(1);
+
+        executor.execute(new LatchTask("token", RequestPriority.USER_INITIATED, tokenDone));
+
+        assertTrue(tokenDone.await(1, TimeUnit.SECONDS));
+        // the batch task waits, since the other thread is kept for user-initiated tasks
+        assertEquals(Arrays.asList("availability", "token"), started);
+        assertEquals(1, executor.getQueuedCount());
+    }
+
+    @Test
+    public void queuedTasksStartByPriorityThenInOrder() throws Exception {
+        executor.execute(new BlockingTask("first", RequestPriority.USER_INITIATED));
+        executor.execute(new BlockingTask("second", RequestPriority.USER_INITIATED));
+        CountDownLatch allDone = new CountDownLatch(4);
+        executor.execute(new LatchTask("batch", RequestPriority.BATCH, allDone));
+        executor.execute(new LatchTask("availability", RequestPriority.BACKGROUND, allDone));
+        executor.execute(new LatchTask("token 1", RequestPriority.USER_INITIATED, allDone));
+        executor.execute(new LatchTask("token 2", RequestPriority.USER_INITIATED, allDone));
+        assertTrue(blocking.tryAcquire(2, 1, TimeUnit.SECONDS));
+
+        release.countDown();
+
+        assertTrue(allDone.await(1, TimeUnit.SECONDS));
+        List<String> queued = started.subList(2, 6);
+        assertEquals(Arrays.asList("token 1", "token 2"), queued.subList(0, 2));
+        assertTrue(queued.indexOf("availability") < queued.indexOf("batch"));
+    }
+
+    @Test
+    public void removedTaskDoesNotRun() throws Exception {
+        executor.execute(new BlockingTask("first", RequestPriority.USER_INITIATED));
+        executor.execute(new BlockingTask("second", RequestPriority.USER_INITIATED));
+        LatchTask removed = new LatchTask("removed", RequestPriority.USER_INITIATED, new CountDownLatch(1));
+        executor.execute(removed);
+
+        assertTrue(executor.remove(removed));
+        assertFalse(executor.remove(removed));
+        assertEquals(0, executor.getQueuedCount());
+    }
+
+    @Test
+    public void tokenIsCreatedWhileAvailabilityRequestsHang() throws Exception {
+        HangingAvailabilityTransport transport = new HangingAvailabilityTransport();
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(executor).transport(transport)
+                .circuitBreaker(null).build();
+        WebPayFuture<AccountAvailability> first = webpay.retrieveAvailability();
+        WebPayFuture<AccountAvailability> second = webpay.retrieveAvailability();
+        assertTrue(transport.hanging.await(1, TimeUnit.SECONDS));
+
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS).id);
+
+        assertEquals(1, webpay.getRequestStats(RequestPriority.USER_INITIATED).requestCount);
+        assertEquals(0, webpay.getRequestStats(RequestPriority.BACKGROUND).requestCount);
+        transport.release.countDown();
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        assertEquals(2, webpay.getRequestStats(RequestPriority.BACKGROUND).requestCount);
+        assertEquals(3, webpay.getRequestStats().requestCount);
+    }
+
+    private class BlockingTask implements PriorityExecutor.Prioritized {
+        private final String name;
+        private final RequestPriority priority;
+
+        BlockingTask(String name, RequestPriority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public RequestPriority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            started.add(name);
+            blocking.release();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class LatchTask implements PriorityExecutor.Prioritized {
+        private final String name;
+        private final RequestPriority priority;
+        private final CountDownLatch done;
+
+        LatchTask(String name, RequestPriority priority, CountDownLatch done) {
+            this.name = name;
+            this.priority = priority;
+            this.done = done;
+        }
+
+        @Override
+        public RequestPriority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            started.add(name);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Holds availability requests until released, and answers tokens at once.
+     */
+    private static class HangingAvailabilityTransport implements Transport {
+        final CountDownLatch hanging = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            String body = TOKEN_BODY;
+            if (request.method.equals("GET")) {
+                hanging.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted");
+                }
+                body = AVAILABILITY_BODY;
+            }
+            return reader.read(request.method.equals("GET") ? 200 : 201, Collections.<String, String>emptyMap(),
+                    new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
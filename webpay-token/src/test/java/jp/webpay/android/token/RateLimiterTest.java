@@ -0,0 +1,182 @@
+package jp.webpay.android.token;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class RateLimiterTest {
+    private static final RequestPriority BACKGROUND = RequestPriority.BACKGROUND;
+    private static final RequestPriority USER_INITIATED = RequestPriority.USER_INITIATED;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final Transport.AbortSignal abortSignal = new Transport.AbortSignal();
+
+    @Test
+    public void attemptsOverConcurrencyWaitAndFailAfterMaxWait() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().concurrency(2, 2));
+        limiter.acquire(BACKGROUND, abortSignal);
+        limiter.acquire(BACKGROUND, abortSignal);
+
+        try {
+            limiter.acquire(BACKGROUND, abortSignal);
+            fail("ThrottledException is expected");
+        } catch (ThrottledException e) {
+            assertEquals(TimeUnit.SECONDS.toNanos(10), clock.nanoTime());
+        }
+
+        limiter.onIgnored(BACKGROUND);
+        limiter.acquire(BACKGROUND, abortSignal);
+    }
+
+    @Test
+    public void limitIsHalvedOncePerRoundOfThrottledAttempts() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().concurrency(8, 16));
+        long first = limiter.acquire(BACKGROUND, abortSignal);
+        long second = limiter.acquire(BACKGROUND, abortSignal);
+
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        limiter.onComplete(BACKGROUND, first, true, -1);
+        limiter.onComplete(BACKGROUND, second, true, -1);
+        assertEquals(4, limiter.getLimit());
+
+        // a new attempt sees the overload again
+        clock.advance(100, TimeUnit.MILLISECONDS);
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), true, -1);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void slowResponseLowersLimitAndFastOnesRaiseItWhileInUse() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().concurrency(8, 16)
+                .latencyTarget(1, TimeUnit.SECONDS));
+        long startedAt = limiter.acquire(BACKGROUND, abortSignal);
+        clock.advance(2, TimeUnit.SECONDS);
+        limiter.onComplete(BACKGROUND, startedAt, false, -1);
+        assertEquals(4, limiter.getLimit());
+
+        // one at a time does not use the limit
+        for (int i = 0; i < 10; i++) {
+            limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), false, -1);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        for (int round = 0; round < 10; round++) {
+            long a = limiter.acquire(BACKGROUND, abortSignal);
+            long b = limiter.acquire(BACKGROUND, abortSignal);
+            long c = limiter.acquire(BACKGROUND, abortSignal);
+            limiter.onComplete(BACKGROUND, a, false, -1);
+            limiter.onComplete(BACKGROUND, b, false, -1);
+            limiter.onComplete(BACKGROUND, c, false, -1);
+        }
+        assertThat(limiter.getLimit(), greaterThan(4));
+    }
+
+    @Test
+    public void tokenBucketSpacesAttempts() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().rate(2, 2));
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), false, -1);
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), false, -1);
+        assertEquals(0, clock.waits.size());
+
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), false, -1);
+        assertEquals(1, clock.waits.size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), (long) clock.waits.get(0));
+    }
+
+    @Test
+    public void retryAfterHoldsBackAllAttempts() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder());
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), true, TimeUnit.SECONDS.toNanos(2));
+
+        limiter.acquire(BACKGROUND, abortSignal);
+        assertEquals(TimeUnit.SECONDS.toNanos(2), (long) clock.waits.get(0));
+    }
+
+    @Test
+    public void retryAfterBeyondMaxWaitFailsAtOnce() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder());
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), true, TimeUnit.SECONDS.toNanos(20));
+
+        try {
+            limiter.acquire(BACKGROUND, abortSignal);
+            fail("ThrottledException is expected");
+        } catch (ThrottledException e) {
+            assertEquals(20000, e.getRetryAfterMillis());
+        }
+        assertEquals(0, clock.waits.size());
+    }
+
+    @Test
+    public void hugeRetryAfterHoldsBackAttemptsForAMinuteAtMost() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().maxWait(90, TimeUnit.SECONDS));
+        limiter.onComplete(BACKGROUND, limiter.acquire(BACKGROUND, abortSignal), true, TimeUnit.HOURS.toNanos(1));
+
+        limiter.acquire(BACKGROUND, abortSignal);
+        assertEquals(TimeUnit.SECONDS.toNanos(60), (long) clock.waits.get(0));
+    }
+
+    @Test
+    public void userInitiatedAttemptsDoNotWaitBehindBackgroundOnes() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().concurrency(1, 1));
+        limiter.acquire(BACKGROUND, abortSignal);
+
+        long startedAt = limiter.acquire(USER_INITIATED, abortSignal);
+        assertEquals(0, clock.waits.size());
+
+        // while background attempts wait for both
+        try {
+            limiter.acquire(BACKGROUND, abortSignal);
+            fail("ThrottledException is expected");
+        } catch (ThrottledException expected) {
+        }
+        try {
+            limiter.acquire(USER_INITIATED, abortSignal);
+            fail("ThrottledException is expected");
+        } catch (ThrottledException expected) {
+        }
+        limiter.onComplete(USER_INITIATED, startedAt, false, -1);
+        limiter.acquire(USER_INITIATED, abortSignal);
+    }
+
+    @Test
+    public void abortedAttemptStopsWaiting() throws Exception {
+        RateLimiter limiter = createLimiter(new RateLimitPolicy.Builder().concurrency(1, 1));
+        limiter.acquire(BACKGROUND, abortSignal);
+        Transport.AbortSignal other = new Transport.AbortSignal();
+        other.abort();
+        try {
+            limiter.acquire(BACKGROUND, other);
+            fail("InterruptedIOException is expected");
+        } catch (InterruptedIOException e) {
+            assertEquals(1, clock.waits.size());
+        }
+    }
+
+    @Test
+    public void parsesRetryAfterInSecondsOrHttpDate() {
+        assertEquals(TimeUnit.SECONDS.toNanos(120), RateLimiter.parseRetryAfter("120", 0));
+        // Sun, 06 Nov 1994 08:49:37 GMT is 784111777 seconds since the epoch
+        assertEquals(TimeUnit.SECONDS.toNanos(7), RateLimiter.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT",
+                TimeUnit.SECONDS.toMillis(784111770)));
+        assertEquals(0, RateLimiter.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT",
+                TimeUnit.SECONDS.toMillis(784111780)));
+        assertEquals(-1, RateLimiter.parseRetryAfter("soon", 0));
+        assertEquals(-1, RateLimiter.parseRetryAfter(null, 0));
+    }
+
+    private RateLimiter createLimiter(RateLimitPolicy.Builder builder) {
+        return new RateLimiter(builder.build(), clock);
+    }
+}
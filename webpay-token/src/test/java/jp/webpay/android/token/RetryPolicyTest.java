@@ -0,0 +1,322 @@
+package jp.webpay.android.token;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.Token;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class RetryPolicyTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+    private static final String UNAVAILABLE_BODY = "{\"error\":{\"message\":\"Temporarily unavailable\","
+            + "\"type\":\"api_error\",\"caused_by\":\"service\"}}";
+
+    private final ScriptedTransport transport = new ScriptedTransport();
+    private final VirtualClock clock = new VirtualClock();
+
+    @Test
+    public void backoffGrowsExponentiallyUpToTheCap() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), policy.getBackoffNanos(1, 0.5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.getBackoffNanos(2, 0.5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), policy.getBackoffNanos(3, 0.5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), policy.getBackoffNanos(5, 0.5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), policy.getBackoffNanos(100, 0.5));
+        assertEquals(0, policy.getBackoffNanos(3, 0.0));
+    }
+
+    @Test
+    public void classifiesOnlyTransientFailuresAsRetryable() {
+        RetryPolicy policy = RetryPolicy.DEFAULT;
+
+        assertTrue(policy.isRetryable(new ConnectException("Connection refused")));
+        assertTrue(policy.isRetryable(new ConnectTimeoutException("Connect timed out")));
+        assertFalse(policy.isRetryable(new SocketTimeoutException("Read timed out")));
+        assertFalse(policy.isRetryable(new IOException("Connection reset")));
+        assertTrue(policy.isRetryable(503));
+        assertFalse(policy.isRetryable(500));
+        assertFalse(policy.isRetryable(402));
+    }
+
+    @Test
+    public void retriesUnavailableResponsesWithTheSameIdempotencyKey() throws Exception {
+        transport.respond(503, UNAVAILABLE_BODY);
+        transport.respond(502, "<html>Bad Gateway</html>");
+        transport.respond(201, TOKEN_BODY);
+
+        Token token = createWebPay(RetryPolicy.DEFAULT).createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+
+        assertEquals("tok_3ybc93ckR01qeKx", token.id);
+        assertEquals(3, transport.requests.size());
+        String key = transport.requests.get(0).headers.get("Idempotency-Key");
+        assertNotNull(key);
+        for (Transport.Request request : transport.requests) {
+            assertEquals(key, request.headers.get("Idempotency-Key"));
+        }
+        // waited on the virtual clock, bounded by 250ms and 500ms
+        assertEquals(2, clock.waits.size());
+        assertThat(clock.waits.get(0), lessThan(TimeUnit.MILLISECONDS.toNanos(250)));
+        assertThat(clock.waits.get(1), lessThan(TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    public void tokensOfDifferentCallsHaveDifferentKeys() throws Exception {
+        transport.respond(201, TOKEN_BODY);
+        transport.respond(201, TOKEN_BODY);
+        WebPay webpay = createWebPay(RetryPolicy.DEFAULT);
+
+        webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+        webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+
+        assertFalse(transport.requests.get(0).headers.get("Idempotency-Key")
+                .equals(transport.requests.get(1).headers.get("Idempotency-Key")));
+    }
+
+    @Test
+    public void retriesConnectFailure() throws Exception {
+        transport.fail(new ConnectException("Connection refused"));
+        transport.respond(201, TOKEN_BODY);
+        WebPay webpay = createWebPay(RetryPolicy.DEFAULT);
+
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS).id);
+        RequestStats stats = webpay.getRequestStats();
+        assertEquals(1, stats.requestCount);
+        assertEquals(1, stats.retryCount);
+    }
+
+    @Test
+    public void doesNotRetryReadTimeout() throws Exception {
+        transport.fail(new SocketTimeoutException("Read timed out"));
+        transport.respond(201, TOKEN_BODY);
+
+        try {
+            createWebPay(RetryPolicy.DEFAULT).createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(SocketTimeoutException.class));
+        }
+        assertEquals(1, transport.requests.size());
+        assertTrue(clock.waits.isEmpty());
+    }
+
+    @Test
+    public void lastAttemptReadsUnavailableResponseAsError() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            transport.respond(503, UNAVAILABLE_BODY);
+        }
+        WebPay webpay = createWebPay(RetryPolicy.DEFAULT);
+
+        try {
+            webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ErrorResponseException.class));
+            assertEquals(503, ((ErrorResponseException) e.getCause()).getResponse().statusCode);
+        }
+        assertEquals(3, transport.requests.size());
+        assertEquals(2, webpay.getRequestStats().retryCount);
+    }
+
+    @Test
+    public void retriesTooManyRequestsAfterRetryAfter() throws Exception {
+        transport.respond(429, Collections.singletonMap("retry-after", "3"), UNAVAILABLE_BODY);
+        transport.respond(201, TOKEN_BODY);
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).circuitBreaker(null).clock(clock).build();
+
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS).id);
+        assertEquals(1, clock.waits.size());
+        assertEquals(TimeUnit.SECONDS.toNanos(3), (long) clock.waits.get(0));
+    }
+
+    @Test
+    public void returnsTooManyRequestsWhenRetryAfterIsBeyondMaxWait() throws Exception {
+        transport.respond(429, jsonHeaders("60"), UNAVAILABLE_BODY);
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).circuitBreaker(null).rateLimit(RateLimitPolicy.DEFAULT).clock(clock).build();
+
+        try {
+            webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertEquals(429, ((ErrorResponseException) e.getCause()).getResponse().statusCode);
+        }
+        // later requests are held back without being sent
+        try {
+            webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ThrottledException.class));
+        }
+        assertEquals(1, transport.requests.size());
+    }
+
+    @Test
+    public void retryAfterOfProxyDoesNotHoldBackLaterRequests() throws Exception {
+        // a captive portal or proxy on the way answers without the JSON of WebPay
+        transport.respond(503, Collections.singletonMap("retry-after", "3600"), "<html>Sign in</html>");
+        transport.respond(429, Collections.singletonMap("retry-after", "3600"), "<html>Sign in</html>");
+        transport.respond(201, TOKEN_BODY);
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).retryPolicy(RetryPolicy.NONE).circuitBreaker(null)
+                .rateLimit(RateLimitPolicy.DEFAULT).clock(clock).build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+                fail("ExecutionException is expected");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), not(instanceOf(ThrottledException.class)));
+            }
+        }
+        assertEquals("tok_3ybc93ckR01qeKx", webpay.createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS).id);
+        assertEquals(0, clock.waits.size());
+    }
+
+    @Test
+    public void noneSendsOnce() throws Exception {
+        transport.fail(new ConnectException("Connection refused"));
+        try {
+            createWebPay(RetryPolicy.NONE).createToken(ApiSample.testCard).get(1, TimeUnit.SECONDS);
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ConnectException.class));
+        }
+        assertEquals(1, transport.requests.size());
+    }
+
+    @Test
+    public void cancelStopsWaitingForRetry() throws Exception {
+        transport.fail(new ConnectException("Connection refused"));
+        transport.respond(201, TOKEN_BODY);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // waits on the real clock long enough to be cancelled in the middle
+            WebPay webpay = new WebPay.Builder("test_public_dummykey").executor(executor).transport(transport)
+                    .retryPolicy(new RetryPolicy(2, 1, 1, TimeUnit.HOURS)).circuitBreaker(null).build();
+            WebPayFuture<Token> future = webpay.createToken(ApiSample.testCard);
+            transport.awaitRequests(1);
+            assertTrue(future.cancel(true));
+
+            // the thread is released for the next task
+            final CountDownLatch released = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    released.countDown();
+                }
+            });
+            assertTrue(released.await(1, TimeUnit.SECONDS));
+            assertEquals(1, transport.requests.size());
+            try {
+                future.get();
+                fail("CancellationException is expected");
+            } catch (CancellationException ignored) {
+            }
+            assertThat(webpay.getRequestStats().retryCount, lessThanOrEqualTo(1L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Map<String, String> jsonHeaders(String retryAfter) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("content-type", "application/json");
+        headers.put("retry-after", retryAfter);
+        return headers;
+    }
+
+    private WebPay createWebPay(RetryPolicy policy) {
+        return new WebPay.Builder("test_public_dummykey").executor(new SynchronousExecutor())
+                .transport(transport).retryPolicy(policy).circuitBreaker(null).clock(clock).build();
+    }
+
+    /**
+     * Answers requests with the outcomes enqueued, in order.
+     */
+    private static class ScriptedTransport implements Transport {
+        final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+        private final LinkedList<Object> outcomes = new LinkedList<Object>();
+
+        synchronized void respond(int statusCode, String body) {
+            outcomes.add(new Transport.Response(statusCode, body.getBytes()));
+        }
+
+        synchronized void respond(int statusCode, Map<String, String> headers, String body) {
+            outcomes.add(new Transport.Response(statusCode, headers, body.getBytes()));
+        }
+
+        synchronized void fail(IOException cause) {
+            outcomes.add(cause);
+        }
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            Object outcome;
+            synchronized (this) {
+                requests.add(request);
+                notifyAll();
+                outcome = outcomes.poll();
+            }
+            if (outcome instanceof IOException) {
+                throw (IOException) outcome;
+            }
+            if (outcome == null) {
+                throw new IOException("No response is enqueued");
+            }
+            Response response = (Response) outcome;
+            return reader.read(response.statusCode, response.headers, response.openBody());
+        }
+
+        synchronized void awaitRequests(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (requests.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, requests.size());
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package jp.webpay.android.token;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface.
+ * This stands in for api.webpay.jp where real sockets matter, such as connection reuse.
+ * Responses are served in the order they are enqueued, and connections are kept alive.
+ */
+public class StubServer {
+    // closes the connection instead of responding
+    private static final StubResponse DISCONNECT = new StubResponse(0, null, null);
+
+    private final ServerSocket serverSocket;
+    private final BlockingQueue<StubResponse> responses = new LinkedBlockingQueue<StubResponse>();
+    private final BlockingQueue<RecordedRequest> requests = new LinkedBlockingQueue<RecordedRequest>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    public StubServer() throws IOException {
+        this(new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")));
+    }
+
+    public StubServer(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "StubServer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getBaseUri() {
+        String scheme = serverSocket instanceof javax.net.ssl.SSLServerSocket ? "https" : "http";
+        return scheme + "://127.0.0.1:" + serverSocket.getLocalPort() + "/v1";
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void enqueue(int statusCode, String body, String... headers) {
+        responses.add(new StubResponse(statusCode, body, null, headers));
+    }
+
+    /**
+     * Enqueue a response with the entity tag, which is served as 304 Not Modified
+     * if the request has the tag in If-None-Match.
+     */
+    public void enqueueWithETag(String etag, String body) {
+        responses.add(new StubResponse(200, body, etag));
+    }
+
+    /**
+     * Enqueue closing the connection which receives the request, without a response,
+     * as a server does when it closes an idle kept-alive connection just as the request arrives.
+     */
+    public void enqueueDisconnect() {
+        responses.add(DISCONNECT);
+    }
+
+    public RecordedRequest takeRequest() throws InterruptedException {
+        return requests.poll(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return number of TCP connections accepted so far
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public void shutdown() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "StubServer-connection");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            RecordedRequest request;
+            while ((request = readRequest(in)) != null) {
+                requests.add(request);
+                StubResponse response = responses.poll(1, TimeUnit.SECONDS);
+                if (response == null) {
+                    response = new StubResponse(500, "{\"error\":{\"message\":\"no stub response\"}}", null);
+                }
+                if (response == DISCONNECT) {
+                    break;
+                }
+                if (response.etag != null && response.etag.equals(request.getHeader("If-None-Match"))) {
+                    response = new StubResponse(304, null, null, "ETag: " + response.etag);
+                }
+                response.writeTo(out, request.method.equals("HEAD"));
+            }
+        } catch (IOException ignored) {
+            // client closed the connection
+        } catch (InterruptedException ignored) {
+            // server is shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static RecordedRequest readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            int remaining = Integer.parseInt(contentLength);
+            while (remaining-- > 0) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Unexpected end of request body");
+                }
+                body.write(b);
+            }
+        } else if ("chunked".equals(headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                for (int i = 0; i < size; i++) {
+                    body.write(in.read());
+                }
+                readLine(in);
+            }
+            readLine(in);
+        }
+        return new RecordedRequest(parts[0], parts[1], headers, body.toString("UTF-8"));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return builder.length() == 0 ? null : builder.toString();
+            }
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+        return builder.toString();
+    }
+
+    public static class RecordedRequest {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final String body;
+
+        RecordedRequest(String method, String path, Map<String, String> headers, String body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    private static class StubResponse {
+        private final int statusCode;
+        private final String body;
+        private final String etag;
+        private final String[] headers;
+
+        StubResponse(int statusCode, String body, String etag, String... headers) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.etag = etag;
+            this.headers = headers;
+        }
+
+        void writeTo(OutputStream out, boolean omitBody) throws IOException {
+            // 304 has neither a body nor its length
+            byte[] bodyBytes = body == null ? new byte[0] : body.getBytes("UTF-8");
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(statusCode).append(" Stub\r\n");
+            if (body != null) {
+                head.append("Content-Type: application/json\r\n");
+                head.append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+            }
+            if (etag != null) {
+                head.append("ETag: ").append(etag).append("\r\n");
+            }
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes("UTF-8"));
+            if (!omitBody) {
+                out.write(bodyBytes);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package jp.webpay.android.token;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs requests on the calling thread, so that tests observe responses right after a call.
+ */
+public class SynchronousExecutor implements Executor {
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+}
@@ -0,0 +1,203 @@
+package jp.webpay.android.token;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.Token;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class TelemetryExporterTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ringOverwritesOldestRecords() {
+        RecordRing ring = new RecordRing(3);
+        assertEquals(4, ring.getCapacity());
+        for (int i = 1; i <= 6; i++) {
+            ring.add(event(i));
+        }
+        assertEquals(4, ring.size());
+
+        List<TelemetryRecord> drained = new ArrayList<TelemetryRecord>();
+        assertEquals(4, ring.drainTo(drained, 10));
+        assertEquals(3, drained.get(0).requestId);
+        assertEquals(6, drained.get(3).requestId);
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(0, ring.drainTo(drained, 10));
+    }
+
+    @Test
+    public void ringKeepsRecordsOfConcurrentWritersInOrder() throws Exception {
+        final RecordRing ring = new RecordRing(8192);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int writer = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        ring.add(event(writer * 1000 + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<TelemetryRecord> drained = new ArrayList<TelemetryRecord>();
+        while (ring.drainTo(drained, 100) > 0) {
+            // drain in batches
+        }
+        assertEquals(4000, drained.size());
+        long[] last = {-1, -1, -1, -1};
+        for (TelemetryRecord record : drained) {
+            int writer = (int) (record.requestId / 1000);
+            assertTrue(record.requestId > last[writer]);
+            last[writer] = record.requestId;
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void fileSinkReceivesPhasesAndMetricsWithoutCardData() throws Exception {
+        File file = folder.newFile("telemetry.jsonl");
+        TelemetryExporter exporter = new TelemetryExporter.Builder(new FileTelemetrySink(file))
+                .flushInterval(1, TimeUnit.HOURS).build();
+        StubServer server = new StubServer();
+        NioTransport transport = new NioTransport();
+        try {
+            server.enqueue(201, TOKEN_BODY);
+            WebPay webpay = new WebPay.Builder("test_public_dummykey").endpoints(server.getBaseUri())
+                    .transport(transport).executor(new SynchronousExecutor()).circuitBreaker(null)
+                    .eventListener(exporter).build();
+            exporter.addMetrics(webpay.getMetrics());
+            webpay.createToken(ApiSample.testCard, new NoopListener(), new SynchronousExecutor());
+            exporter.flush();
+        } finally {
+            exporter.close();
+            transport.shutdown();
+            server.shutdown();
+        }
+
+        List<String> lines = readLines(file);
+        assertEquals(exporter.getSentCount(), lines.size());
+        assertThat(lines.get(0), containsString("\"name\":\"queueStart\""));
+        assertThat(lines.get(11), containsString("\"name\":\"callbackEnd\""));
+        assertThat(lines.get(12), containsString("\"operation\":\"CREATE_TOKEN\",\"outcome\":\"all\",\"count\":1"));
+        assertThat(lines.get(13), containsString("\"outcome\":\"success\""));
+        for (String line : lines) {
+            assertThat(line, not(containsString("4242-4242-4242-0123")));
+            assertThat(line, not(containsString("4242424242420123")));
+            assertThat(line, not(containsString("TEST USER")));
+            assertThat(line, not(containsString("cvc")));
+        }
+    }
+
+    @Test
+    public void httpSinkPostsBatchesAndCountsFailures() throws Exception {
+        StubServer server = new StubServer();
+        TelemetryExporter exporter = new TelemetryExporter.Builder(
+                new HttpTelemetrySink(server.getBaseUri() + "/telemetry", UrlConnectionTransport.getInstance()))
+                .batchSize(2).flushInterval(1, TimeUnit.HOURS).build();
+        try {
+            server.enqueue(200, "{}");
+            server.enqueue(500, "{}");
+            exporter.requestEnd(1, System.nanoTime(), new IOException("token=secret"));
+            exporter.requestEnd(2, System.nanoTime(), null);
+            exporter.queueStart(3, System.nanoTime());
+            exporter.flush();
+
+            StubServer.RecordedRequest request = server.takeRequest();
+            assertEquals("POST", request.method);
+            assertEquals("/v1/telemetry", request.path);
+            assertThat(request.body, containsString("{\"records\":[{\"name\":\"requestEnd\""));
+            assertThat(request.body, containsString("\"request_id\":1,\"error\":\"java.io.IOException\"}"));
+            assertThat(request.body, not(containsString("secret")));
+            assertThat(server.takeRequest().body, containsString("\"request_id\":3"));
+            assertEquals(2, exporter.getSentCount());
+            assertEquals(1, exporter.getFailedBatchCount());
+        } finally {
+            exporter.close();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void threadFlushesOnceBatchIsBuffered() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final List<TelemetryRecord> received = new ArrayList<TelemetryRecord>();
+        TelemetryExporter exporter = new TelemetryExporter.Builder(new TelemetrySink() {
+            @Override
+            public void write(List<TelemetryRecord> records) {
+                received.addAll(records);
+                written.countDown();
+            }
+        }).batchSize(2).flushInterval(1, TimeUnit.HOURS).build();
+        try {
+            exporter.queueStart(1, System.nanoTime());
+            exporter.queueEnd(1, System.nanoTime());
+            assertTrue(written.await(5, TimeUnit.SECONDS));
+            assertEquals("queueStart", received.get(0).name);
+            assertEquals("queueEnd", received.get(1).name);
+        } finally {
+            exporter.close();
+        }
+    }
+
+    private static TelemetryRecord event(long requestId) {
+        return new TelemetryRecord("queueStart", requestId, 0, null, null, null);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static class NoopListener implements WebPayListener<Token> {
+        @Override
+        public void onCreate(Token result) {
+        }
+
+        @Override
+        public void onException(Throwable cause) {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// Handshakes with a local server using the self-signed certificate in localhost.jks
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class TlsContextTest {
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private KeyStore keyStore;
+    private StubServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        keyStore = KeyStore.getInstance("JKS");
+        InputStream in = getClass().getResourceAsStream("localhost.jks");
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        SSLServerSocket serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        server = new StubServer(serverSocket);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(true);
+    }
+
+    @Test
+    public void apacheTransportResumesSessionOfSharedContext() throws Exception {
+        TlsContext tlsContext = trustingBuilder().build();
+        server.enqueue(200, "{}");
+        server.enqueue(200, "{}");
+
+        // separate pools, so that the second request opens another connection
+        assertEquals(200, createClient(new ApacheTransport(tlsContext)).request("GET", "account/availability", null).statusCode);
+        assertEquals(200, createClient(new ApacheTransport(tlsContext)).request("GET", "account/availability", null).statusCode);
+
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(2, tlsContext.getHandshakeCount());
+        assertEquals(1, tlsContext.getResumedSessionCount());
+    }
+
+    @Test
+    public void nioTransportResumesSessionOfSharedContext() throws Exception {
+        TlsContext tlsContext = trustingBuilder().build();
+        NioTransport first = new NioTransport(tlsContext);
+        NioTransport second = new NioTransport(tlsContext);
+        try {
+            server.enqueue(200, "{}");
+            server.enqueue(200, "{}");
+
+            assertEquals(200, createClient(first).request("GET", "account/availability", null).statusCode);
+            assertEquals(200, createClient(second).request("GET", "account/availability", null).statusCode);
+
+            assertEquals(2, tlsContext.getHandshakeCount());
+            assertEquals(1, tlsContext.getResumedSessionCount());
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void nioTransportKeepsWarmConnectionWhenSessionTicketArrives() throws Exception {
+        NioTransport transport = new NioTransport(trustingBuilder().build());
+        try {
+            WebPayPublicClient client = createClient(transport);
+            client.preconnect();
+            // TLS 1.3 sends the ticket after the handshake, while the connection is parked
+            Thread.sleep(200);
+
+            server.enqueue(201, "{}");
+            assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+
+            ConnectionStats stats = transport.getConnectionStats();
+            assertEquals(1, stats.preconnectHits);
+            assertEquals(1, stats.connectionsReused);
+            assertEquals(1, server.getConnectionCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void acceptsPinnedCertificate() throws Exception {
+        TlsContext tlsContext = trustingBuilder().pin("127.0.0.1", pinOfServer()).build();
+        server.enqueue(201, "{}");
+        server.enqueue(201, "{}");
+
+        assertEquals(201, createClient(new ApacheTransport(tlsContext)).request("POST", "tokens", "{}").statusCode);
+        assertEquals(201, createClient(new ApacheTransport(tlsContext)).request("POST", "tokens", "{}").statusCode);
+        assertEquals(1, tlsContext.getResumedSessionCount());
+    }
+
+    @Test
+    public void rejectsCertificateNotPinned() throws Exception {
+        TlsContext tlsContext = trustingBuilder()
+                .pin("127.0.0.1", "sha256/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=").build();
+        for (int i = 0; i < 2; i++) {
+            try {
+                createClient(new ApacheTransport(tlsContext)).request("GET", "account/availability", null);
+                fail("IOException is expected");
+            } catch (IOException e) {
+                // the failed session is not resumed, so pins are checked again
+                assertEquals(0, tlsContext.getResumedSessionCount());
+            }
+        }
+        assertEquals(2, tlsContext.getHandshakeCount());
+    }
+
+    @Test
+    public void urlConnectionTransportRejectsCertificateNotPinned() throws Exception {
+        TlsContext tlsContext = trustingBuilder()
+                .pin("127.0.0.1", "sha256/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=").build();
+        server.enqueue(200, "{}");
+        // the JDK verifies the host name of the certificate itself, without the verifier of the context
+        UrlConnectionTransport transport = new UrlConnectionTransport(tlsContext);
+        try {
+            createClient(transport).request("POST", "tokens", "{\"card\":{}}");
+            fail("IOException is expected");
+        } catch (IOException expected) {
+        }
+        // the body with the card was not sent
+        assertNull(server.takeRequest());
+        try {
+            createClient(transport).request("GET", "account/availability", null);
+            fail("IOException is expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void urlConnectionTransportAcceptsPinnedCertificate() throws Exception {
+        TlsContext tlsContext = trustingBuilder().pin("127.0.0.1", pinOfServer()).build();
+        server.enqueue(201, "{}");
+
+        UrlConnectionTransport transport = new UrlConnectionTransport(tlsContext);
+        assertEquals(201, createClient(transport).request("POST", "tokens", "{}").statusCode);
+    }
+
+    @Test
+    public void urlConnectionTransportHashesChainOfPooledConnectionOnce() throws Exception {
+        TlsContext tlsContext = trustingBuilder().pin("127.0.0.1", pinOfServer()).build();
+        server.enqueue(201, "{}");
+        server.enqueue(201, "{}");
+
+        WebPayPublicClient client = createClient(new UrlConnectionTransport(tlsContext));
+        assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+        assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, tlsContext.getPinnedChainCheckCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pinMustHaveAlgorithm() {
+        new TlsContext.Builder().pin("api.webpay.jp", "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+    }
+
+    private TlsContext.Builder trustingBuilder() throws Exception {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        return new TlsContext.Builder().trustManagers(trustManagers.getTrustManagers());
+    }
+
+    private String pinOfServer() throws Exception {
+        return TlsContext.pin((X509Certificate) keyStore.getCertificate("localhost"));
+    }
+
+    private WebPayPublicClient createClient(Transport transport) {
+        return new WebPayPublicClient(Uri.parse(server.getBaseUri()), "test_public_dummykey", transport);
+    }
+}
@@ -0,0 +1,213 @@
+package jp.webpay.android.token;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.webpay.android.token.model.RawCard;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class TokenBatchTest {
+    private static final int CARD_COUNT = 12;
+
+    private ExecutorService executor;
+    private DelayingTransport transport;
+    private WebPay webpay;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+        transport = new DelayingTransport();
+        webpay = new WebPay.Builder("test_public_dummykey").executor(executor).transport(transport)
+                .circuitBreaker(null).build();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void returnsResultsInInputOrder() throws Exception {
+        TokenBatch batch = webpay.createTokens(cards(CARD_COUNT), 4, TokenBatch.Order.INPUT);
+
+        for (int i = 0; i < CARD_COUNT; i++) {
+            TokenBatch.Result result = batch.take();
+            assertEquals(i, result.index);
+            assertEquals("tok_" + i, result.token.id);
+            assertEquals("CARD " + i, result.card.toJson().getJSONObject("card").getString("name"));
+        }
+        assertNull(batch.take());
+    }
+
+    @Test
+    public void returnsResultsInCompletionOrder() throws Exception {
+        TokenBatch batch = webpay.createTokens(cards(4), 4, TokenBatch.Order.COMPLETION);
+
+        // later cards are answered sooner
+        List<Integer> indexes = new ArrayList<Integer>();
+        TokenBatch.Result result;
+        while ((result = batch.take()) != null) {
+            indexes.add(result.index);
+        }
+        assertEquals(4, indexes.size());
+        assertEquals(3, (int) indexes.get(0));
+    }
+
+    @Test
+    public void boundsRequestsInFlight() throws Exception {
+        final AtomicInteger pulled = new AtomicInteger();
+        final Iterator<RawCard> source = cards(CARD_COUNT).iterator();
+        Iterator<RawCard> counting = new Iterator<RawCard>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public RawCard next() {
+                pulled.incrementAndGet();
+                return source.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        TokenBatch batch = webpay.createTokens(counting, 3, TokenBatch.Order.COMPLETION);
+        // nothing is taken yet, so the window is full
+        Thread.sleep(200);
+        assertEquals(3, pulled.get());
+
+        int count = 0;
+        while (batch.take() != null) {
+            count++;
+        }
+        assertEquals(CARD_COUNT, count);
+        assertThat(transport.maxInFlight.get(), lessThanOrEqualTo(3));
+
+        TokenBatch.Stats stats = batch.getStats();
+        assertEquals(CARD_COUNT, stats.succeeded);
+        assertEquals(0, stats.failed);
+        assertThat(stats.getThroughput(), greaterThan(0.0));
+        assertThat(stats.maxLatencyNanos, greaterThan(0L));
+        assertThat(stats.getMeanLatencyNanos(), lessThanOrEqualTo(stats.maxLatencyNanos));
+    }
+
+    @Test
+    public void reportsFailedRequest() throws Exception {
+        List<RawCard> cards = cards(2);
+        cards.get(1).name("FAIL");
+        TokenBatch batch = webpay.createTokens(cards, 2, TokenBatch.Order.INPUT);
+
+        assertEquals("tok_0", batch.take().token.id);
+        TokenBatch.Result failed = batch.take();
+        assertNull(failed.token);
+        assertThat(failed.cause, instanceOf(IOException.class));
+        assertEquals(1, batch.getStats().failed);
+    }
+
+    @Test
+    public void nullCardFailsOnlyItsIndex() throws Exception {
+        List<RawCard> cards = cards(3);
+        cards.set(1, null);
+        TokenBatch batch = webpay.createTokens(cards, 2, TokenBatch.Order.INPUT);
+
+        assertEquals("tok_0", batch.take().token.id);
+        TokenBatch.Result failed = batch.take();
+        assertEquals(1, failed.index);
+        assertThat(failed.cause, instanceOf(IllegalArgumentException.class));
+        assertEquals("tok_2", batch.take().token.id);
+        assertNull(batch.take());
+    }
+
+    @Test
+    public void cancelAbortsRequestsInFlight() throws Exception {
+        TokenBatch batch = webpay.createTokens(cards(CARD_COUNT), 4, TokenBatch.Order.INPUT);
+        batch.cancel();
+
+        assertNull(batch.take());
+        assertThat(transport.requestCount.get(), lessThanOrEqualTo(4));
+    }
+
+    private static List<RawCard> cards(int count) {
+        List<RawCard> cards = new ArrayList<RawCard>();
+        for (int i = 0; i < count; i++) {
+            cards.add(new RawCard().number("4242-4242-4242-4242").expMonth(8).expYear(2030)
+                    .name("CARD " + i).cvc("123"));
+        }
+        return cards;
+    }
+
+    /**
+     * Answers the card named "CARD n" with "tok_n", answering later cards sooner.
+     */
+    private static class DelayingTransport implements Transport {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger requestCount = new AtomicInteger();
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            requestCount.incrementAndGet();
+            int current = inFlight.incrementAndGet();
+            int max;
+            do {
+                max = maxInFlight.get();
+            } while (current > max && !maxInFlight.compareAndSet(max, current));
+            try {
+                String name = new JSONObject(new String(request.body, "UTF-8")).getJSONObject("card").getString("name");
+                if (name.equals("FAIL")) {
+                    throw new IOException("Connection reset");
+                }
+                int index = Integer.parseInt(name.substring("CARD ".length()));
+                Thread.sleep(Math.max(0, 40 - index * 10));
+                String token = "{\"id\":\"tok_" + index + "\",\"object\":\"token\",\"livemode\":false,"
+                        + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\","
+                        + "\"exp_year\":2030,\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"" + name + "\","
+                        + "\"country\":\"JP\",\"type\":\"Visa\",\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+                return reader.read(201, Collections.<String, String>emptyMap(),
+                        new ByteArrayInputStream(token.getBytes("UTF-8")));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            } catch (org.json.JSONException e) {
+                throw new AssertionError(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
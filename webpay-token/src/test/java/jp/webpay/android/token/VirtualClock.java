@@ -0,0 +1,30 @@
+package jp.webpay.android.token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records waits without waiting, and moves only when told.
+ */
+class VirtualClock implements Clock {
+    final List<Long> waits = new ArrayList<Long>();
+    private long now = 0;
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public synchronized boolean await(CountDownLatch wakeUp, long nanos) {
+        waits.add(nanos);
+        now += nanos;
+        return wakeUp.getCount() == 0;
+    }
+
+    synchronized void advance(long duration, TimeUnit unit) {
+        now += unit.toNanos(duration);
+    }
+}
@@ -0,0 +1,211 @@
+package jp.webpay.android.token;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.model.Token;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class WebPayEventListenerTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void nioTransportReportsEveryPhaseAndSkipsConnectOnPooledConnection() throws Exception {
+        StubServer server = new StubServer();
+        NioTransport transport = new NioTransport();
+        RecordingListener listener = new RecordingListener();
+        try {
+            server.enqueue(201, TOKEN_BODY);
+            server.enqueue(201, TOKEN_BODY);
+            WebPay webpay = new WebPay.Builder("test_public_dummykey").endpoints(server.getBaseUri())
+                    .transport(transport).executor(new SynchronousExecutor()).circuitBreaker(null)
+                    .eventListener(listener).build();
+
+            webpay.createToken(ApiSample.testCard, new NoopListener(), new SynchronousExecutor());
+            assertEquals(Arrays.asList("queueStart", "queueEnd", "dnsStart", "dnsEnd", "connectStart", "connectEnd",
+                    "requestBodyEnd", "responseStart", "responseBodyEnd", "parseEnd", "requestEnd", "callbackEnd"),
+                    listener.takeNames());
+
+            webpay.createToken(ApiSample.testCard, new NoopListener(), new SynchronousExecutor());
+            assertEquals(Arrays.asList("queueStart", "queueEnd", "dnsStart", "dnsEnd",
+                    "requestBodyEnd", "responseStart", "responseBodyEnd", "parseEnd", "requestEnd", "callbackEnd"),
+                    listener.takeNames());
+            assertFalse(listener.ids.get(0).equals(listener.ids.get(listener.ids.size() - 1)));
+        } finally {
+            transport.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void exporterWritesSpansOfPhases() throws Exception {
+        ChromeTraceExporter exporter = new ChromeTraceExporter();
+        exporter.queueStart(7, 100 * MILLI);
+        exporter.queueEnd(7, 102 * MILLI);
+        exporter.requestBodyEnd(7, 103 * MILLI);
+        exporter.responseStart(7, 108 * MILLI);
+        exporter.responseBodyEnd(7, 109 * MILLI);
+        exporter.parseEnd(7, 110 * MILLI);
+        exporter.requestEnd(7, 111 * MILLI, null);
+        exporter.callbackEnd(7, 115 * MILLI);
+
+        JSONArray events = write(exporter);
+
+        assertEquals(6, events.length());
+        assertEvent(events.getJSONObject(0), "queue", "X", 0, 2000);
+        assertEvent(events.getJSONObject(1), "wait", "X", 3000, 5000);
+        assertEvent(events.getJSONObject(2), "download", "X", 8000, 1000);
+        assertEvent(events.getJSONObject(3), "parsed", "i", 10000, -1);
+        assertEvent(events.getJSONObject(4), "request", "X", 0, 11000);
+        assertEvent(events.getJSONObject(5), "callback", "i", 15000, -1);
+        assertEquals(7, events.getJSONObject(0).getLong("tid"));
+    }
+
+    @Test
+    public void exporterRecordsFailureAndDropsEventsOverMaximum() throws Exception {
+        ChromeTraceExporter exporter = new ChromeTraceExporter(2);
+        exporter.queueStart(1, 0);
+        exporter.queueEnd(1, MILLI);
+        // the connection never completes
+        exporter.connectStart(1, 2 * MILLI);
+        exporter.requestEnd(1, 3 * MILLI, new IOException("Connection refused"));
+        exporter.callbackEnd(1, 4 * MILLI);
+
+        JSONArray events = write(exporter);
+
+        assertEquals(2, events.length());
+        assertEvent(events.getJSONObject(1), "request", "X", 0, 3000);
+        assertEquals("java.io.IOException: Connection refused",
+                events.getJSONObject(1).getJSONObject("args").getString("error"));
+        assertEquals(1, exporter.getDroppedCount());
+    }
+
+    private static JSONArray write(ChromeTraceExporter exporter) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+        return new JSONObject(out.toString("UTF-8")).getJSONArray("traceEvents");
+    }
+
+    private static void assertEvent(JSONObject event, String name, String phase, long ts, long dur)
+            throws Exception {
+        assertEquals(name, event.getString("name"));
+        assertEquals(phase, event.getString("ph"));
+        assertEquals(ts, event.getLong("ts"));
+        assertEquals(dur, event.optLong("dur", -1));
+    }
+
+    private static class RecordingListener extends WebPayEventListener {
+        private final List<String> names = new ArrayList<String>();
+        final List<Long> ids = new ArrayList<Long>();
+
+        synchronized List<String> takeNames() {
+            List<String> taken = new ArrayList<String>(names);
+            names.clear();
+            return taken;
+        }
+
+        private synchronized void record(String name, long requestId) {
+            names.add(name);
+            ids.add(requestId);
+        }
+
+        @Override
+        public void queueStart(long requestId, long nanoTime) {
+            record("queueStart", requestId);
+        }
+
+        @Override
+        public void queueEnd(long requestId, long nanoTime) {
+            record("queueEnd", requestId);
+        }
+
+        @Override
+        public void dnsStart(long requestId, long nanoTime) {
+            record("dnsStart", requestId);
+        }
+
+        @Override
+        public void dnsEnd(long requestId, long nanoTime) {
+            record("dnsEnd", requestId);
+        }
+
+        @Override
+        public void connectStart(long requestId, long nanoTime) {
+            record("connectStart", requestId);
+        }
+
+        @Override
+        public void connectEnd(long requestId, long nanoTime) {
+            record("connectEnd", requestId);
+        }
+
+        @Override
+        public void secureConnectStart(long requestId, long nanoTime) {
+            record("secureConnectStart", requestId);
+        }
+
+        @Override
+        public void secureConnectEnd(long requestId, long nanoTime) {
+            record("secureConnectEnd", requestId);
+        }
+
+        @Override
+        public void requestBodyEnd(long requestId, long nanoTime) {
+            record("requestBodyEnd", requestId);
+        }
+
+        @Override
+        public void responseStart(long requestId, long nanoTime) {
+            record("responseStart", requestId);
+        }
+
+        @Override
+        public void responseBodyEnd(long requestId, long nanoTime) {
+            record("responseBodyEnd", requestId);
+        }
+
+        @Override
+        public void parseEnd(long requestId, long nanoTime) {
+            record("parseEnd", requestId);
+        }
+
+        @Override
+        public void requestEnd(long requestId, long nanoTime, Throwable cause) {
+            record("requestEnd", requestId);
+        }
+
+        @Override
+        public void callbackEnd(long requestId, long nanoTime) {
+            record("callbackEnd", requestId);
+        }
+    }
+
+    private static class NoopListener implements WebPayListener<Token> {
+        @Override
+        public void onCreate(Token result) {
+        }
+
+        @Override
+        public void onException(Throwable cause) {
+        }
+    }
+}
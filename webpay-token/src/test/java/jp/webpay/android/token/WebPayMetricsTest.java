@@ -0,0 +1,146 @@
+package jp.webpay.android.token;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class WebPayMetricsTest {
+    private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+    private static final String CARD_ERROR_BODY = "{\"error\":{\"message\":\"The security code provided is invalid.\","
+            + "\"caused_by\":\"buyer\",\"param\":\"cvc\",\"type\":\"card_error\",\"code\":\"invalid_cvc\"}}";
+
+    @Test
+    public void bucketsHoldValuesWithinAnEighth() {
+        // values from 2^37 microseconds fall into the last bucket
+        for (long micros = 0; micros < (1L << 37); micros = micros * 5 / 4 + 1) {
+            long upper = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(micros));
+            assertThat(upper, greaterThanOrEqualTo(micros));
+            assertThat(upper, lessThanOrEqualTo(micros + micros / 8));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        histogram.addTo(counts);
+
+        assertWithinEighth(TimeUnit.MILLISECONDS.toNanos(500), LatencyHistogram.percentileNanos(counts, 0.5));
+        assertWithinEighth(TimeUnit.MILLISECONDS.toNanos(900), LatencyHistogram.percentileNanos(counts, 0.9));
+        assertWithinEighth(TimeUnit.MILLISECONDS.toNanos(990), LatencyHistogram.percentileNanos(counts, 0.99));
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), histogram.getMaxNanos());
+        assertEquals(0, LatencyHistogram.percentileNanos(new long[LatencyHistogram.BUCKET_COUNT], 0.5));
+    }
+
+    @Test
+    public void stripedCounterSumsAllThreads() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, counter.sum());
+    }
+
+    @Test
+    public void webPayRecordsCallsByOutcome() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport();
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").transport(transport)
+                .executor(new SynchronousExecutor()).retryPolicy(RetryPolicy.NONE).circuitBreaker(null).build();
+        transport.respond(201, TOKEN_BODY);
+        transport.respond(201, TOKEN_BODY);
+        transport.respond(402, CARD_ERROR_BODY);
+        transport.fail(new ConnectException("Connection refused"));
+        for (int i = 0; i < 4; i++) {
+            webpay.createToken(ApiSample.testCard);
+        }
+
+        LatencySnapshot all = webpay.getMetrics().getSnapshot(WebPayMetrics.Operation.CREATE_TOKEN);
+        assertEquals(WebPayMetrics.ALL, all.outcome);
+        assertEquals(4, all.count);
+        assertEquals(0.5, all.getErrorRate(), 0.001);
+
+        List<LatencySnapshot> outcomes = webpay.getMetrics().getSnapshots(WebPayMetrics.Operation.CREATE_TOKEN);
+        assertEquals(3, outcomes.size());
+        assertEquals(WebPayMetrics.SUCCESS, outcomes.get(0).outcome);
+        assertEquals(2, outcomes.get(0).count);
+        assertEquals("error:card_error/invalid_cvc", outcomes.get(1).outcome);
+        assertEquals(WebPayMetrics.IO_EXCEPTION, outcomes.get(2).outcome);
+        assertEquals(1, outcomes.get(2).errorCount);
+        assertEquals(0, webpay.getMetrics().getSnapshot(WebPayMetrics.Operation.RETRIEVE_AVAILABILITY).count);
+    }
+
+    private static void assertWithinEighth(long expected, long actual) {
+        assertThat(actual, greaterThanOrEqualTo(expected - expected / 8));
+        assertThat(actual, lessThanOrEqualTo(expected + expected / 8));
+    }
+
+    /**
+     * Answers requests with the responses and failures given in order.
+     */
+    private static class ScriptedTransport implements Transport {
+        private final LinkedList<Object> script = new LinkedList<Object>();
+
+        void respond(int statusCode, String body) throws IOException {
+            script.add(new Response(statusCode, body.getBytes("UTF-8")));
+        }
+
+        void fail(IOException cause) {
+            script.add(cause);
+        }
+
+        @Override
+        public synchronized <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            Object next = script.removeFirst();
+            if (next instanceof IOException) {
+                throw (IOException) next;
+            }
+            Response response = (Response) next;
+            return reader.read(response.statusCode, Collections.<String, String>emptyMap(), response.openBody());
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package jp.webpay.android.token;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Requests in this test go through real sockets to a local server.
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class WebPayPublicClientTest {
+    private StubServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        server = new StubServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(true);
+    }
+
+    @Test
+    public void failsOverToNextEndpointWhenConnectionIsRefused() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        String refusing = "http://127.0.0.1:" + closed.getLocalPort() + "/v1";
+        closed.close();
+        WebPayPublicClient client = createClient(UrlConnectionTransport.getInstance(), refusing, server.getBaseUri());
+        server.enqueue(201, "{}");
+        server.enqueue(201, "{}");
+
+        assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+        assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+
+        List<EndpointStats> stats = client.getEndpointStats();
+        assertEquals(refusing, stats.get(0).baseUri);
+        // the second request skips the failed endpoint
+        assertEquals(1, stats.get(0).requestCount);
+        assertEquals(1, stats.get(0).failoverCount);
+        assertEquals(1, stats.get(0).failureCount);
+        assertEquals(2, stats.get(1).requestCount);
+        assertEquals(0, stats.get(1).failureCount);
+        assertThat(stats.get(1).latencyNanos, greaterThan(0L));
+    }
+
+    @Test
+    public void serverErrorIsReturnedAndLowersEndpoint() throws Exception {
+        StubServer other = new StubServer();
+        try {
+            WebPayPublicClient client = createClient(UrlConnectionTransport.getInstance(),
+                    server.getBaseUri(), other.getBaseUri());
+            server.enqueue(500, "{\"error\":{}}");
+            other.enqueue(201, "{}");
+
+            // the request may have reached WebPay, so it is not sent elsewhere
+            assertEquals(500, client.request("POST", "tokens", "{}").statusCode);
+            assertEquals(0, other.getConnectionCount());
+            assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+            assertEquals(1, other.getConnectionCount());
+
+            List<EndpointStats> stats = client.getEndpointStats();
+            assertEquals(1, stats.get(0).failureCount);
+            assertEquals(0, stats.get(0).failoverCount);
+            assertEquals(1, stats.get(1).requestCount);
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void routerPrefersFastEndpointUntilItFails() {
+        VirtualClock clock = new VirtualClock();
+        EndpointRouter router = new EndpointRouter(
+                Arrays.asList(Uri.parse("https://a.example/v1"), Uri.parse("https://b.example/v1")), clock);
+        EndpointRouter.Endpoint a = router.route().get(0);
+        EndpointRouter.Endpoint b = router.route().get(1);
+
+        a.onResponse(TimeUnit.MILLISECONDS.toNanos(300), false);
+        // an endpoint without responses is tried
+        assertEquals(b, router.route().get(0));
+        b.onResponse(TimeUnit.MILLISECONDS.toNanos(100), false);
+        assertEquals(b, router.route().get(0));
+
+        b.onFailure(true);
+        assertEquals(a, router.route().get(0));
+        assertEquals(0.3, router.getStats().get(1).errorRate, 0.001);
+
+        // the failure is forgiven over time
+        clock.advance(5, TimeUnit.MINUTES);
+        assertEquals(b, router.route().get(0));
+    }
+
+    @Test
+    public void apacheTransportReusesKeptAliveConnection() throws Exception {
+        WebPayPublicClient client = createClient(ApacheTransport.getInstance());
+        ConnectionStats before = ApacheTransport.getInstance().getConnectionStats();
+        server.enqueue(200, "{}");
+        server.enqueue(200, "{}");
+
+        assertEquals(200, client.request("GET", "account/availability", null).statusCode);
+        assertEquals(200, client.request("GET", "account/availability", null).statusCode);
+
+        ConnectionStats after = ApacheTransport.getInstance().getConnectionStats();
+        assertEquals(1, after.connectionsOpened - before.connectionsOpened);
+        assertEquals(1, after.connectionsReused - before.connectionsReused);
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void apacheTransportSendsHeadersAndBody() throws Exception {
+        assertSendsHeadersAndBody(createClient(ApacheTransport.getInstance()));
+    }
+
+    @Test
+    public void urlConnectionTransportSendsHeadersAndBody() throws Exception {
+        assertSendsHeadersAndBody(createClient(UrlConnectionTransport.getInstance()));
+    }
+
+    @Test
+    public void urlConnectionTransportReadsErrorBody() throws Exception {
+        WebPayPublicClient client = createClient(UrlConnectionTransport.getInstance());
+        server.enqueue(402, "{\"error\":{\"type\":\"card_error\"}}");
+
+        WebPayPublicClient.Result result = client.request("POST", "tokens", "{\"card\":{}}");
+        assertEquals(402, result.statusCode);
+        assertEquals("{\"error\":{\"type\":\"card_error\"}}", result.responseBody);
+    }
+
+    @Test
+    public void urlConnectionTransportKeepsConnectionAlive() throws Exception {
+        WebPayPublicClient client = createClient(UrlConnectionTransport.getInstance());
+        server.enqueue(200, "{}");
+        server.enqueue(200, "{}");
+
+        client.request("GET", "account/availability", null);
+        client.request("GET", "account/availability", null);
+
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void nioTransportSendsHeadersAndBody() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            assertSendsHeadersAndBody(createClient(transport));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void nioTransportKeepsConnectionAlive() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            WebPayPublicClient client = createClient(transport);
+            server.enqueue(200, "{}");
+            server.enqueue(402, "{\"error\":{}}");
+
+            assertEquals(200, client.request("GET", "account/availability", null).statusCode);
+            WebPayPublicClient.Result result = client.request("POST", "tokens", "{\"card\":{}}");
+            assertEquals(402, result.statusCode);
+            assertEquals("{\"error\":{}}", result.responseBody);
+
+            assertEquals(1, transport.getConnectionStats().connectionsOpened);
+            assertEquals(1, transport.getConnectionStats().connectionsReused);
+            assertEquals(1, server.getConnectionCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void nioTransportResendsOnFreshConnectionWhenServerClosedPooledOne() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            WebPayPublicClient client = createClient(transport);
+            server.enqueue(200, "{}");
+            server.enqueueDisconnect();
+            server.enqueue(201, "{}");
+
+            assertEquals(200, client.request("GET", "account/availability", null).statusCode);
+            assertEquals(201, client.request("POST", "tokens", "{\"card\":{}}").statusCode);
+
+            assertEquals(2, transport.getConnectionStats().connectionsOpened);
+            assertEquals(1, transport.getConnectionStats().connectionsReused);
+            assertEquals(2, server.getConnectionCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void nioTransportRunsConcurrentRequestsOnOneThread() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            int count = 20;
+            final CountDownLatch latch = new CountDownLatch(count);
+            final AtomicInteger succeeded = new AtomicInteger();
+            for (int i = 0; i < count; i++) {
+                server.enqueue(201, "{}");
+            }
+            for (int i = 0; i < count; i++) {
+                transport.enqueue(new Transport.Request("POST", server.getBaseUri() + "/tokens",
+                        new HashMap<String, String>(), "{}"), new NioTransport.Callback() {
+                    @Override
+                    public void onResponse(Transport.Response response) {
+                        if (response.statusCode == 201) {
+                            succeeded.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(IOException cause) {
+                        latch.countDown();
+                    }
+                });
+            }
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(count, succeeded.get());
+            ConnectionStats stats = transport.getConnectionStats();
+            assertEquals(count, stats.connectionsOpened + stats.connectionsReused);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void apacheTransportAbortsInFlightRequest() throws Exception {
+        assertAbortsInFlightRequest(ApacheTransport.getInstance());
+    }
+
+    @Test
+    public void urlConnectionTransportAbortsInFlightRequest() throws Exception {
+        assertAbortsInFlightRequest(UrlConnectionTransport.getInstance());
+    }
+
+    @Test
+    public void nioTransportAbortsInFlightRequest() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            assertAbortsInFlightRequest(transport);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void nioTransportFailsAbortedRequestWithoutSending() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            Transport.Request request = new Transport.Request("GET", server.getBaseUri() + "/account/availability",
+                    new HashMap<String, String>(), null);
+            request.abortSignal.abort();
+            transport.execute(request, Transport.Response.READER);
+            fail("IOException is expected");
+        } catch (IOException e) {
+            assertEquals(0, server.getConnectionCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void apacheTransportPreconnectDoesNotWaitForLeasedPool() throws Exception {
+        final WebPayPublicClient client = createClient(new ApacheTransport(TlsContext.getDefault()));
+        // the server holds each request for a second without a stub response
+        final CountDownLatch done = new CountDownLatch(ApacheTransport.MAX_CONNECTIONS);
+        for (int i = 0; i < ApacheTransport.MAX_CONNECTIONS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.request("GET", "account/availability", null);
+                    } catch (IOException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        for (int i = 0; i < ApacheTransport.MAX_CONNECTIONS; i++) {
+            assertNotNull(server.takeRequest());
+        }
+
+        long start = System.nanoTime();
+        client.preconnect();
+        assertThat(done.getCount(), greaterThan(0L));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void apacheTransportRequestUsesPreconnectedConnection() throws Exception {
+        WebPayPublicClient client = createClient(ApacheTransport.getInstance());
+        ConnectionStats before = ApacheTransport.getInstance().getConnectionStats();
+        client.preconnect();
+
+        server.enqueue(201, "{}");
+        assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+
+        ConnectionStats after = ApacheTransport.getInstance().getConnectionStats();
+        assertEquals(1, after.preconnects - before.preconnects);
+        assertEquals(1, after.preconnectHits - before.preconnectHits);
+        assertEquals(0, after.connectionsOpened - before.connectionsOpened);
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void nioTransportRequestUsesPreconnectedConnection() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            WebPayPublicClient client = createClient(transport);
+            client.preconnect();
+            client.preconnect(); // kept connection is enough
+
+            server.enqueue(201, "{}");
+            assertEquals(201, client.request("POST", "tokens", "{}").statusCode);
+
+            ConnectionStats stats = transport.getConnectionStats();
+            assertEquals(1, stats.preconnects);
+            assertEquals(1, stats.preconnectHits);
+            assertEquals(0, stats.preconnectMisses);
+            assertEquals(1, stats.connectionsReused);
+            assertEquals(1, server.getConnectionCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void apacheTransportFailsOversizedResponse() throws Exception {
+        assertFailsOversizedResponse(ApacheTransport.getInstance());
+    }
+
+    @Test
+    public void urlConnectionTransportFailsOversizedResponse() throws Exception {
+        assertFailsOversizedResponse(UrlConnectionTransport.getInstance());
+    }
+
+    @Test
+    public void nioTransportFailsOversizedResponse() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            assertFailsOversizedResponse(transport);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void transportsPassResponseHeadersAndNotModified() throws Exception {
+        NioTransport nioTransport = new NioTransport();
+        try {
+            Transport[] transports = {ApacheTransport.getInstance(), UrlConnectionTransport.getInstance(), nioTransport};
+            for (Transport transport : transports) {
+                server.enqueueWithETag("\"v1\"", "{}");
+                server.enqueueWithETag("\"v1\"", "{}");
+                String url = server.getBaseUri() + "/account/availability";
+                Transport.Response response = transport.execute(new Transport.Request("GET", url,
+                        new HashMap<String, String>(), null), Transport.Response.READER);
+                assertEquals("\"v1\"", response.headers.get("etag"));
+                assertEquals("application/json", response.headers.get("content-type"));
+
+                HashMap<String, String> headers = new HashMap<String, String>();
+                headers.put("If-None-Match", "\"v1\"");
+                response = transport.execute(new Transport.Request("GET", url, headers, null),
+                        Transport.Response.READER);
+                assertEquals(304, response.statusCode);
+                assertEquals("", response.getBodyString());
+            }
+        } finally {
+            nioTransport.shutdown();
+        }
+    }
+
+    @Test
+    public void boundedStreamFailsBodyOverLimitWithoutLength() throws Exception {
+        InputStream body = new BoundedInputStream(new ByteArrayInputStream(new byte[11]), -1, 10);
+        byte[] buffer = new byte[4];
+        assertEquals(4, body.read(buffer));
+        assertEquals(4, body.read(buffer));
+        try {
+            body.read(buffer);
+            fail("ResponseTooLargeException is expected");
+        } catch (ResponseTooLargeException e) {
+            assertEquals(10, e.getLimit());
+        }
+    }
+
+    @Test
+    public void boundedStreamReadsBodyOfLimit() throws Exception {
+        InputStream body = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 10, 10);
+        byte[] buffer = new byte[16];
+        assertEquals(10, body.read(buffer));
+        assertEquals(-1, body.read(buffer));
+    }
+
+    @Test
+    public void transportsApplyReadTimeoutOfRequest() throws Exception {
+        // the backlog of the socket accepts connections, but nothing answers
+        ServerSocket silent = new ServerSocket(0);
+        NioTransport nioTransport = new NioTransport();
+        try {
+            Transport[] transports = {ApacheTransport.getInstance(), UrlConnectionTransport.getInstance(), nioTransport};
+            for (Transport transport : transports) {
+                Transport.Request request = new Transport.Request("GET",
+                        "http://127.0.0.1:" + silent.getLocalPort() + "/v1/account/availability",
+                        new HashMap<String, String>(), null, new Transport.AbortSignal(),
+                        Transport.Request.DEFAULT_MAX_RESPONSE_BODY_SIZE, 1000, 200);
+                try {
+                    transport.execute(request, Transport.Response.READER);
+                    fail("SocketTimeoutException is expected");
+                } catch (SocketTimeoutException e) {
+                    // the request may have been sent, so it must not look like a connect timeout
+                    assertThat(e, not(instanceOf(ConnectTimeoutException.class)));
+                }
+            }
+        } finally {
+            nioTransport.shutdown();
+            silent.close();
+        }
+    }
+
+    private WebPayPublicClient createClient(Transport transport, String... baseUris) {
+        List<Uri> uris = new ArrayList<Uri>();
+        for (String baseUri : baseUris) {
+            uris.add(Uri.parse(baseUri));
+        }
+        return new WebPayPublicClient(new EndpointRouter(uris, Clock.SYSTEM), "test_public_dummykey", transport,
+                Transport.Request.DEFAULT_MAX_RESPONSE_BODY_SIZE, Transport.Request.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                Transport.Request.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    private WebPayPublicClient createClient(Transport transport) {
+        return new WebPayPublicClient(Uri.parse(server.getBaseUri()), "test_public_dummykey", transport);
+    }
+
+    // a limit just fits the first response, and the next response over it fails before it is read
+    private void assertFailsOversizedResponse(Transport transport) throws Exception {
+        WebPayPublicClient client = new WebPayPublicClient(Uri.parse(server.getBaseUri()), "test_public_dummykey",
+                transport, 64);
+        String fit = "{\"error\":{\"message\":\"" + repeat('a', 64 - 24) + "\"}}";
+        assertEquals(64, fit.length());
+        server.enqueue(200, fit);
+        server.enqueue(200, "<html>" + repeat('a', 100000) + "</html>");
+        server.enqueue(200, "{}");
+
+        assertEquals(fit, client.request("GET", "account/availability", null).responseBody);
+        try {
+            client.request("GET", "account/availability", null);
+            fail("ResponseTooLargeException is expected");
+        } catch (ResponseTooLargeException e) {
+            assertEquals(64, e.getLimit());
+        }
+        assertEquals("{}", client.request("GET", "account/availability", null).responseBody);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    // the stub server answers after a second, so an IOException means the exchange was aborted
+    private void assertAbortsInFlightRequest(final Transport transport) throws Exception {
+        final Transport.Request request = new Transport.Request("GET", server.getBaseUri() + "/account/availability",
+                new HashMap<String, String>(), null);
+        final Object[] outcome = new Object[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outcome[0] = transport.execute(request, Transport.Response.READER);
+                } catch (IOException e) {
+                    outcome[0] = e;
+                }
+            }
+        });
+        thread.start();
+        server.takeRequest();
+        request.abortSignal.abort();
+        thread.join(5000);
+
+        assertThat(outcome[0], instanceOf(IOException.class));
+    }
+
+    private void assertSendsHeadersAndBody(WebPayPublicClient client) throws Exception {
+        server.enqueue(201, "{\"id\":\"tok_3ybc93ckR01qeKx\"}");
+
+        WebPayPublicClient.Result result = client.request("POST", "tokens", "{\"card\":{}}");
+        assertEquals(201, result.statusCode);
+        assertEquals("{\"id\":\"tok_3ybc93ckR01qeKx\"}", result.responseBody);
+
+        StubServer.RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.method);
+        assertEquals("/v1/tokens", request.path);
+        assertEquals("application/json", request.getHeader("Content-Type"));
+        assertEquals("Bearer test_public_dummykey", request.getHeader("Authorization"));
+        assertEquals("en", request.getHeader("Accept-Language"));
+        assertEquals("{\"card\":{}}", request.body);
+    }
+}
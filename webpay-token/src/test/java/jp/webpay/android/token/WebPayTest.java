@@ -20,10 +20,20 @@ import org.robolectric.annotation.Config;
 import org.robolectric.tester.org.apache.http.HttpResponseStub;
 import org.robolectric.tester.org.apache.http.TestHttpResponse;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jp.webpay.android.token.model.AccountAvailability;
 import jp.webpay.android.token.model.CardType;
@@ -34,9 +44,12 @@ import jp.webpay.android.token.model.Token;
 import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
@@ -46,6 +59,11 @@ public class WebPayTest {
 
     @Before
     public void prepareWebPay() {
+        // Robolectric intercepts requests only from Apache HTTP client
+        WebPay.setDefaultTransport(ApacheTransport.getInstance());
+        WebPay.setDefaultExecutor(new SynchronousExecutor());
+        // failures of other tests must not open the shared breaker
+        CircuitBreaker.getDefault().reset();
         webpay = new WebPay("test_public_dummykey");
     }
 
@@ -109,6 +127,50 @@ public class WebPayTest {
         assertEquals("ja", request.getFirstHeader("Accept-Language").getValue());
     }
 
+    @Test
+    public void requestOptionsOverrideLanguageOfInstanceForOneCall() throws Exception {
+        WebPay webpay = new WebPay.Builder("test_public_dummykey").language("ja").build();
+        RequestOptions english = new RequestOptions.Builder().language("en").build();
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        webpay.createTokenSync(ApiSample.testCard, 1, TimeUnit.SECONDS);
+        webpay.createTokenSync(ApiSample.testCard, english, 1, TimeUnit.SECONDS);
+        webpay.createTokenSync(ApiSample.testCard, RequestOptions.DEFAULT, 1, TimeUnit.SECONDS);
+
+        assertEquals("ja", Robolectric.getSentHttpRequest(0).getFirstHeader("Accept-Language").getValue());
+        assertEquals("en", Robolectric.getSentHttpRequest(1).getFirstHeader("Accept-Language").getValue());
+        assertEquals("ja", Robolectric.getSentHttpRequest(2).getFirstHeader("Accept-Language").getValue());
+        assertEquals("Bearer test_public_dummykey",
+                Robolectric.getSentHttpRequest(2).getFirstHeader("Authorization").getValue());
+    }
+
+    @Test
+    public void concurrentCallsKeepTheirOwnLanguage() throws Exception {
+        final LanguageRecordingTransport transport = new LanguageRecordingTransport();
+        final WebPay webpay = new WebPay.Builder("test_public_dummykey").transport(transport)
+                .executor(new SynchronousExecutor()).circuitBreaker(null).build();
+        final String[] languages = {"en", "ja"};
+        Thread[] threads = new Thread[languages.length];
+        for (int i = 0; i < threads.length; i++) {
+            final RequestOptions options = new RequestOptions.Builder().language(languages[i]).build();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        webpay.createToken(ApiSample.testCard, options, new NoopListener(), new SynchronousExecutor());
+                    }
+                }
+            }, languages[i]);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(200, transport.requestCount.get());
+        assertEquals(0, transport.mismatchCount.get());
+    }
+
     @Test
     public void createTokenReturnsCardErrorResponse() throws Exception {
         Robolectric.addPendingHttpResponse(ApiSample.cardErrorResponse);
@@ -144,7 +206,7 @@ public class WebPayTest {
         Robolectric.addPendingHttpResponse(response);
         Throwable throwable = createTokenThenError(ApiSample.testCard);
         assertThat(throwable, instanceOf(JSONException.class));
-        assertEquals(throwable.getMessage(), "Expected literal value at character 1 of {:}");
+        assertEquals("Expected name at character 1", throwable.getMessage());
     }
 
     @Test
@@ -178,6 +240,186 @@ public class WebPayTest {
         webpay.createToken(ApiSample.testCard, null);
     }
 
+    @Test
+    public void createTokenRunsOnGivenExecutor() throws Exception {
+        final int[] executed = new int[1];
+        webpay = new WebPay.Builder("test_public_dummykey")
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        executed[0]++;
+                        command.run();
+                    }
+                })
+                .build();
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        createToken(ApiSample.testCard);
+        assertEquals(1, executed[0]);
+    }
+
+    @Test
+    public void createTokenReportsRejectionByExecutor() throws Exception {
+        webpay = new WebPay.Builder("test_public_dummykey")
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        throw new RejectedExecutionException("Test rejection");
+                    }
+                })
+                .build();
+        Throwable throwable = createTokenThenError(ApiSample.testCard);
+        assertThat(throwable, instanceOf(RejectedExecutionException.class));
+    }
+
+    @Test
+    public void requestStatsCountQueueWaitApartFromNetwork() throws Exception {
+        final List<Runnable> queue = new ArrayList<Runnable>();
+        webpay = new WebPay.Builder("test_public_dummykey")
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        queue.add(command);
+                    }
+                })
+                .build();
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        webpay.createToken(ApiSample.testCard, new WebPayListener<Token>() {
+            @Override
+            public void onCreate(Token result) {
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                fail("Error is not acceptable " + cause.getMessage());
+            }
+        });
+        assertEquals(0, webpay.getRequestStats().requestCount);
+
+        Thread.sleep(20);
+        queue.get(0).run();
+
+        RequestStats stats = webpay.getRequestStats();
+        assertEquals(1, stats.requestCount);
+        assertThat(stats.totalQueueWaitNanos, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20)));
+        assertEquals(stats.totalQueueWaitNanos, stats.maxQueueWaitNanos);
+        assertThat(stats.totalNetworkNanos, greaterThan(0L));
+    }
+
+    @Test
+    public void createTokenSyncReturnsTokenObject() throws Exception {
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        Token token = webpay.createTokenSync(ApiSample.testCard, 1, TimeUnit.SECONDS);
+        assertEquals("tok_3ybc93ckR01qeKx", token.id);
+    }
+
+    @Test
+    public void createTokenSyncThrowsErrorResponse() throws Exception {
+        Robolectric.addPendingHttpResponse(ApiSample.cardErrorResponse);
+        thrown.expect(ErrorResponseException.class);
+        webpay.createTokenSync(ApiSample.testCard, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void createTokenSyncCancelsRequestOnTimeout() throws Exception {
+        final List<Runnable> queue = new ArrayList<Runnable>();
+        webpay = new WebPay.Builder("test_public_dummykey")
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        queue.add(command);
+                    }
+                })
+                .build();
+        try {
+            webpay.createTokenSync(ApiSample.testCard, 10, TimeUnit.MILLISECONDS);
+            fail("TimeoutException is expected");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        queue.get(0).run();
+        assertEquals(0, Robolectric.getFakeHttpLayer().getSentHttpRequestInfos().size());
+    }
+
+    @Test
+    public void createTokenFutureWrapsFailure() throws Exception {
+        Robolectric.addPendingHttpResponse(ApiSample.cardErrorResponse);
+        WebPayFuture<Token> future = webpay.createToken(ApiSample.testCard);
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("ExecutionException is expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ErrorResponseException.class));
+        }
+    }
+
+    @Test
+    public void createTokenCallsListenerOnCallbackExecutor() throws Exception {
+        final Thread[] listenerThread = new Thread[1];
+        final Token[] result = new Token[1];
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        webpay.createToken(ApiSample.testCard, new WebPayListener<Token>() {
+            @Override
+            public void onCreate(Token token) {
+                listenerThread[0] = Thread.currentThread();
+                result[0] = token;
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                fail("Error is not acceptable " + cause.getMessage());
+            }
+        }, new SynchronousExecutor());
+        assertEquals("tok_3ybc93ckR01qeKx", result[0].id);
+        assertEquals(Thread.currentThread(), listenerThread[0]);
+    }
+
+    @Test
+    public void retrieveAvailabilitySyncReturnsAccountAvailability() throws Exception {
+        Robolectric.addPendingHttpResponse(ApiSample.availabilityResponse);
+        AccountAvailability availability = webpay.retrieveAvailabilitySync(1, TimeUnit.SECONDS);
+        assertThat(availability.currenciesSupported, contains("jpy"));
+    }
+
+    @Test
+    public void createTokenCancelledBeforeStartIsNotSent() throws Exception {
+        final List<Runnable> queue = new ArrayList<Runnable>();
+        webpay = new WebPay.Builder("test_public_dummykey")
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        queue.add(command);
+                    }
+                })
+                .build();
+        final Throwable[] result = new Throwable[1];
+        WebPayFuture<Token> request = webpay.createToken(ApiSample.testCard, new WebPayListener<Token>() {
+            @Override
+            public void onCreate(Token token) {
+                fail("Token response is not acceptable");
+            }
+
+            @Override
+            public void onException(Throwable cause) {
+                result[0] = cause;
+            }
+        });
+        assertTrue(request.cancel(true));
+        queue.get(0).run();
+
+        assertThat(result[0], instanceOf(CancellationException.class));
+        assertTrue(request.isCancelled());
+        assertEquals(0, Robolectric.getFakeHttpLayer().getSentHttpRequestInfos().size());
+    }
+
+    @Test
+    public void cancelAfterCompletionHasNoEffect() throws Exception {
+        Robolectric.addPendingHttpResponse(ApiSample.tokenResponse);
+        WebPayFuture<Token> request = webpay.createToken(ApiSample.testCard);
+        assertEquals(false, request.cancel(true));
+        assertEquals("tok_3ybc93ckR01qeKx", request.get().id);
+    }
+
     protected Token createToken(RawCard card) throws Exception {
         final CountDownLatch latch = new CountDownLatch(1);
         final Token[] result = new Token[1];
@@ -297,4 +539,45 @@ public class WebPayTest {
         return result[0];
     }
 
+    private static class NoopListener implements WebPayListener<Token> {
+        @Override
+        public void onCreate(Token result) {
+        }
+
+        @Override
+        public void onException(Throwable cause) {
+        }
+    }
+
+    /**
+     * Answers a token, counting requests whose language differs from the name of the calling thread.
+     */
+    private static class LanguageRecordingTransport implements Transport {
+        private static final String TOKEN_BODY = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\","
+                + "\"livemode\":false,\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\","
+                + "\"exp_year\":2020,\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\","
+                + "\"country\":\"JP\",\"type\":\"Visa\",\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicInteger mismatchCount = new AtomicInteger();
+
+        @Override
+        public <T> T execute(Request request, ResponseReader<T> reader) throws IOException {
+            requestCount.incrementAndGet();
+            if (!Thread.currentThread().getName().equals(request.headers.get("Accept-Language"))) {
+                mismatchCount.incrementAndGet();
+            }
+            return reader.read(201, Collections.<String, String>emptyMap(),
+                    new ByteArrayInputStream(TOKEN_BODY.getBytes("UTF-8")));
+        }
+
+        @Override
+        public void preconnect(String url) {
+        }
+
+        @Override
+        public ConnectionStats getConnectionStats() {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package jp.webpay.android.token.json;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import jp.webpay.android.token.model.RawCard;
+import jp.webpay.android.token.model.Token;
+
+/**
+ * Compares allocations of a token request and response between the JSONObject codec and the streaming one.
+ * Run on the JVM with the Android runtime jar of Robolectric on the class path, which provides org.json:
+ * <pre>
+ * java -cp test-classes:classes:android-all.jar jp.webpay.android.token.json.JsonCodecBenchmark
+ * </pre>
+ * Allocated bytes are measured by com.sun.management.ThreadMXBean, available on HotSpot.
+ */
+public class JsonCodecBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final RawCard CARD = new RawCard().number("4242-4242-4242-0123").expMonth(8).expYear(2020)
+            .name("TEST USER").cvc("012");
+
+    private interface Codec {
+        Token exchange(byte[] response) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final byte[] response = JsonCodecTest.TOKEN.getBytes("UTF-8");
+        run("JSONObject", new Codec() {
+            @Override
+            public Token exchange(byte[] responseBytes) throws Exception {
+                byte[] request = CARD.toJson().toString().getBytes("UTF-8");
+                consume(request.length);
+                // what EntityUtils.toString and the JSONObject tree did
+                String body = new String(responseBytes, "UTF-8");
+                return Token.fromJson(new JSONObject(body));
+            }
+        }, response);
+        run("streaming", new Codec() {
+            @Override
+            public Token exchange(byte[] responseBytes) throws Exception {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+                JsonWriter writer = new JsonWriter(bytes);
+                CARD.writeJson(writer);
+                writer.close();
+                consume(bytes.size());
+                InputStream body = new ByteArrayInputStream(responseBytes);
+                return Token.readJson(new JsonReader(body));
+            }
+        }, response);
+    }
+
+    private static long sink;
+
+    private static void consume(long value) {
+        sink += value;
+    }
+
+    private static void run(String name, Codec codec, byte[] response) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            consume(codec.exchange(response).created);
+        }
+        long allocatedBefore = allocatedBytes();
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            consume(codec.exchange(response).created);
+        }
+        long elapsed = System.nanoTime() - startedAt;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-10s %8d bytes/op %8d ns/op", name,
+                allocated / ITERATIONS, elapsed / ITERATIONS));
+    }
+
+    private static long allocatedBytes() throws Exception {
+        Object threads = ManagementFactory.getThreadMXBean();
+        Method method = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+        return (Long) method.invoke(threads, Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,158 @@
+package jp.webpay.android.token.json;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import jp.webpay.android.token.model.AccountAvailability;
+import jp.webpay.android.token.model.CardType;
+import jp.webpay.android.token.model.ErrorResponse;
+import jp.webpay.android.token.model.RawCard;
+import jp.webpay.android.token.model.Token;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// org.json of Android is the reference, so this runs with Robolectric
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class JsonCodecTest {
+    static final String TOKEN = "{\n" +
+            "  \"id\": \"tok_3ybc93ckR01qeKx\",\n" +
+            "  \"object\": \"token\",\n" +
+            "  \"livemode\": false,\n" +
+            "  \"created\": 1396007350,\n" +
+            "  \"used\": false,\n" +
+            "  \"card\": {\n" +
+            "    \"object\": \"card\",\n" +
+            "    \"exp_year\": 2020,\n" +
+            "    \"exp_month\": 8,\n" +
+            "    \"fingerprint\": \"0000000000000000000000000000000000000000\",\n" +
+            "    \"name\": \"TEST USER\",\n" +
+            "    \"country\": \"JP\",\n" +
+            "    \"type\": \"Visa\",\n" +
+            "    \"cvc_check\": \"pass\",\n" +
+            "    \"last4\": \"0123\"\n" +
+            "  }\n" +
+            "}";
+
+    // JSONObject keeps keys in the order of RawCard#toJson since Android 4.4, but not on the 4.3 runtime of this test
+    @Test
+    public void writesCardInOrderOfToJson() throws Exception {
+        RawCard card = new RawCard().number("4242-4242-4242-0123").expMonth(8).expYear(2020)
+                .name("TEST USER").cvc("012");
+
+        assertEquals("{\"card\":{\"number\":\"4242-4242-4242-0123\",\"exp_month\":8,\"exp_year\":2020," +
+                "\"cvc\":\"012\",\"name\":\"TEST USER\"}}", new String(write(card), "UTF-8"));
+        assertEquals("{\"card\":{}}", new String(write(new RawCard()), "UTF-8"));
+    }
+
+    @Test
+    public void escapesLikeJSONObject() throws Exception {
+        String name = "O'Neil \"Jr.\" / \\ \t\b\f\r\n\u0001\u001f\u007f \u00e9 \u5c71\u7530 \ud83d\udcb3 \ud83d";
+        RawCard card = new RawCard().name(name);
+
+        assertArrayEquals(("{\"card\":{\"name\":" + JSONObject.quote(name) + "}}").getBytes("UTF-8"), write(card));
+        assertArrayEquals(card.toJson().toString().getBytes("UTF-8"), write(card));
+    }
+
+    @Test
+    public void readsTokenLikeFromJson() throws Exception {
+        Token expected = Token.fromJson(new JSONObject(TOKEN));
+        Token token = Token.readJson(reader(TOKEN));
+
+        assertEquals(expected.id, token.id);
+        assertEquals(expected.object, token.object);
+        assertEquals(expected.livemode, token.livemode);
+        assertEquals(expected.created, token.created);
+        assertEquals(expected.used, token.used);
+        assertEquals(expected.card.expYear, token.card.expYear);
+        assertEquals(expected.card.expMonth, token.card.expMonth);
+        assertEquals(expected.card.fingerprint, token.card.fingerprint);
+        assertEquals(expected.card.name, token.card.name);
+        assertEquals(expected.card.type, token.card.type);
+        assertEquals(expected.card.cvcCheck, token.card.cvcCheck);
+        assertEquals(expected.card.last4, token.card.last4);
+    }
+
+    @Test
+    public void skipsUnknownFields() throws Exception {
+        String json = "{\"currencies_supported\":[\"jpy\"],\"extra\":{\"nested\":[1,2.5e3,{\"a\":null}],\"b\":true}," +
+                "\"card_types_supported\":[\"Visa\",\"JCB\"]}";
+        AccountAvailability availability = AccountAvailability.readJson(reader(json));
+
+        assertEquals(Arrays.asList("jpy"), availability.currenciesSupported);
+        assertEquals(Arrays.asList(CardType.VISA, CardType.JCB), availability.cardTypesSupported);
+    }
+
+    @Test
+    public void readsErrorWithMissingFields() throws Exception {
+        ErrorResponse error = ErrorResponse.readJson(402,
+                reader("{\"error\":{\"type\":\"card_error\",\"message\":\"Invalid \\u0022cvc\\u0022\\n \u5c71\ud83d\udcb3\"}}"));
+
+        assertEquals(402, error.statusCode);
+        assertEquals("card_error", error.type);
+        assertEquals("Invalid \"cvc\"\n \u5c71\ud83d\udcb3", error.message);
+        assertNull(error.code);
+        assertNull(error.param);
+    }
+
+    @Test
+    public void readsStringsAcrossBuffers() throws Exception {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            message.append(i % 100 == 0 ? "\\\"" : "x");
+        }
+        ErrorResponse error = ErrorResponse.readJson(400,
+                reader("{\"error\":{\"message\":\"" + message + "\",\"code\":\"c\"}}"));
+
+        assertEquals(message.toString().replace("\\\"", "\""), error.message);
+        assertEquals("c", error.code);
+    }
+
+    @Test
+    public void failsOnMissingRequiredField() throws Exception {
+        try {
+            Token.readJson(reader(TOKEN.replace("\"used\": false,", "")));
+            fail("JSONException is expected");
+        } catch (JSONException e) {
+            assertEquals("No value for used", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failsOnMalformedInput() throws Exception {
+        for (String json : new String[]{"", "{\"id\"}", "{\"a\":tru}", "{\"a\":\"b", "[1,]", "{\"a\":1 \"b\":2}"}) {
+            JsonReader reader = reader(json);
+            try {
+                reader.skipValue();
+                assertFalse(reader.hasNext());
+                fail("JSONException is expected for " + json);
+            } catch (JSONException expected) {
+                // malformed
+            }
+        }
+    }
+
+    private static byte[] write(RawCard card) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(bytes);
+        card.writeJson(writer);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static JsonReader reader(String json) throws Exception {
+        return new JsonReader(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+}
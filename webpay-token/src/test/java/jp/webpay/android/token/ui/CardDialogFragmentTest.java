@@ -5,15 +5,22 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.LinearLayout;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.annotation.Config;
 import org.robolectric.util.ActivityController;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import jp.webpay.android.token.InterceptedTransport;
 import jp.webpay.android.token.R;
+import jp.webpay.android.token.SynchronousExecutor;
+import jp.webpay.android.token.WebPay;
 import jp.webpay.android.token.model.CardType;
 import jp.webpay.android.token.ui.field.NumberField;
 
@@ -32,6 +39,28 @@ public class CardDialogFragmentTest {
     private CardDialogActivity activity;
     private CardDialogFragment dialogFragment;
     private AlertDialog dialog;
+    private InterceptedTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new InterceptedTransport();
+        WebPay.setDefaultTransport(transport);
+        WebPay.setDefaultExecutor(new SynchronousExecutor());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WebPay.setDefaultTransport(null);
+        WebPay.setDefaultExecutor(null);
+        CardDialogFragment.setCheckoutFunnelSink(null);
+    }
+
+    @Test
+    public void testFragmentPreconnectsWhenShown() throws Exception {
+        prepareActivity(CardDialogFragment.newInstance(dummyKey, CardType.VM()));
+        assertEquals(1, transport.getPreconnectUrls().size());
+        assertEquals("https://api.webpay.jp/v1", transport.getPreconnectUrls().get(0));
+    }
 
     @Test
     public void testFragmentShowsOneSupportedCardType() throws Exception {
@@ -89,6 +118,35 @@ public class CardDialogFragmentTest {
         assertFalse(dialog.isShowing());
     }
 
+    @Test
+    public void testFunnelRecordsStagesUntilCancel() throws Exception {
+        final List<CheckoutSession> sessions = new ArrayList<CheckoutSession>();
+        CardDialogFragment.setCheckoutFunnelSink(new CheckoutFunnelSink() {
+            @Override
+            public void onSessionEnd(CheckoutSession session) {
+                sessions.add(session);
+            }
+        });
+        prepareActivity(CardDialogFragment.newInstance(dummyKey, CardType.VM()));
+
+        NumberField numberField = (NumberField) dialog.findViewById(R.id.cardNumberField);
+        numberField.setText("4242424242424242");
+        assertFalse(numberField.isValid());
+        dialog.findViewById(R.id.button_cancel).performClick();
+
+        assertEquals(1, sessions.size());
+        CheckoutSession session = sessions.get(0);
+        assertEquals(CheckoutSession.Outcome.CANCELLED, session.outcome);
+        assertEquals(0, session.getElapsedNanos(CheckoutStage.DIALOG_SHOWN));
+        assertTrue(session.hasReached(CheckoutStage.FIRST_KEYSTROKE));
+        assertTrue(session.hasReached(CheckoutStage.CARD_TYPE_DETECTED));
+        assertTrue(session.hasReached(CheckoutStage.NUMBER_VALID));
+        assertFalse(session.hasReached(CheckoutStage.EXPIRY_VALID));
+        assertFalse(session.hasReached(CheckoutStage.TOKEN_REQUESTED));
+        assertTrue(session.hasReached(CheckoutStage.DIALOG_DISMISSED));
+        assertEquals(0, session.submitCount);
+    }
+
     private void prepareActivity(CardDialogFragment fragment) {
         ActivityController<CardDialogActivity> activityController = Robolectric.buildActivity(CardDialogActivity.class);
         activityController.get().setFragment(fragment);
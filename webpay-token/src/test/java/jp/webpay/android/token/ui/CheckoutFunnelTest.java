@@ -0,0 +1,80 @@
+package jp.webpay.android.token.ui;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CheckoutFunnelTest {
+    private final List<CheckoutSession> sessions = new ArrayList<CheckoutSession>();
+    private final CheckoutFunnelSink sink = new CheckoutFunnelSink() {
+        @Override
+        public void onSessionEnd(CheckoutSession session) {
+            sessions.add(session);
+        }
+    };
+
+    @Test
+    public void stagesAreTimedFromDialogShownOnFirstReach() {
+        CheckoutFunnel funnel = new CheckoutFunnel(sink, 1000);
+        funnel.reach(CheckoutStage.FIRST_KEYSTROKE, 3000);
+        funnel.reach(CheckoutStage.FIRST_KEYSTROKE, 5000);
+        funnel.submit(7000);
+        funnel.fail(new IOException("timeout"));
+        funnel.submit(9000);
+        funnel.reach(CheckoutStage.TOKEN_REQUESTED, 9500);
+        funnel.reach(CheckoutStage.TOKEN_RECEIVED, 12000);
+        funnel.end(CheckoutSession.Outcome.TOKEN_CREATED, 13000);
+        funnel.end(CheckoutSession.Outcome.ABANDONED, 14000);
+
+        assertEquals(1, sessions.size());
+        CheckoutSession session = sessions.get(0);
+        assertEquals(CheckoutSession.Outcome.TOKEN_CREATED, session.outcome);
+        assertEquals(0, session.getElapsedNanos(CheckoutStage.DIALOG_SHOWN));
+        assertEquals(2000, session.getElapsedNanos(CheckoutStage.FIRST_KEYSTROKE));
+        assertEquals(6000, session.getElapsedNanos(CheckoutStage.SUBMIT_TAPPED));
+        assertEquals(11000, session.getElapsedNanos(CheckoutStage.TOKEN_RECEIVED));
+        assertEquals(12000, session.getElapsedNanos(CheckoutStage.DIALOG_DISMISSED));
+        assertEquals(-1, session.getElapsedNanos(CheckoutStage.CARD_TYPE_DETECTED));
+        assertFalse(session.hasReached(CheckoutStage.NAME_VALID));
+        assertEquals(2, session.submitCount);
+        assertEquals(1, session.errorCount);
+        assertEquals("java.io.IOException", session.lastError);
+        assertTrue(funnel.isEnded());
+    }
+
+    @Test
+    public void keptSessionIsRestoredUntilItEnds() {
+        CheckoutFunnel funnel = new CheckoutFunnel(sink, 1000);
+        funnel.submit(2000);
+        String key = funnel.keep();
+
+        // the instance recreated on rotation goes on with the session shown before
+        CheckoutFunnel restored = CheckoutFunnel.restore(key);
+        assertSame(funnel, restored);
+        restored.reach(CheckoutStage.TOKEN_RECEIVED, 5000);
+        restored.end(CheckoutSession.Outcome.TOKEN_CREATED, 6000);
+
+        assertEquals(1, sessions.size());
+        assertEquals(4000, sessions.get(0).getElapsedNanos(CheckoutStage.TOKEN_RECEIVED));
+        assertNull(CheckoutFunnel.restore(key));
+        assertNull(CheckoutFunnel.restore(null));
+    }
+
+    @Test
+    public void toStringListsReachedStages() {
+        CheckoutFunnel funnel = new CheckoutFunnel(sink, 0);
+        funnel.reach(CheckoutStage.FIRST_KEYSTROKE, 1500000000L);
+        funnel.end(CheckoutSession.Outcome.CANCELLED, 4000000000L);
+
+        assertEquals("CANCELLED submits=0 errors=0 DIALOG_SHOWN=0ms FIRST_KEYSTROKE=1500ms DIALOG_DISMISSED=4000ms",
+                sessions.get(0).toString());
+    }
+}
@@ -0,0 +1,81 @@
+package jp.webpay.android.token.ui;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import jp.webpay.android.token.WebPayListener;
+import jp.webpay.android.token.model.Token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PendingTokenRequestTest {
+    private static final String TOKEN = "{\"id\":\"tok_3ybc93ckR01qeKx\",\"object\":\"token\",\"livemode\":false,"
+            + "\"created\":1396007350,\"used\":false,\"card\":{\"object\":\"card\",\"exp_year\":2020,"
+            + "\"exp_month\":8,\"fingerprint\":\"0\",\"name\":\"KEI KUBO\",\"country\":\"JP\",\"type\":\"Visa\","
+            + "\"cvc_check\":\"pass\",\"last4\":\"4242\"}}";
+
+    @Test
+    public void resultArrivingWhileDetachedIsPassedToNextReceiver() throws Exception {
+        PendingTokenRequest request = PendingTokenRequest.create();
+        RecordingReceiver beforeRotation = new RecordingReceiver();
+        request.attach(beforeRotation);
+        request.detach();
+
+        Token token = Token.fromJson(new JSONObject(TOKEN));
+        request.onCreate(token);
+        assertEquals(0, beforeRotation.results.size());
+        assertSame(request, PendingTokenRequest.find(request.getKey()));
+
+        RecordingReceiver afterRotation = new RecordingReceiver();
+        PendingTokenRequest.find(request.getKey()).attach(afterRotation);
+        assertEquals(1, afterRotation.results.size());
+        assertSame(token, afterRotation.results.get(0));
+        assertNull(PendingTokenRequest.find(request.getKey()));
+    }
+
+    @Test
+    public void failureIsPassedToAttachedReceiver() {
+        PendingTokenRequest request = PendingTokenRequest.create();
+        RecordingReceiver receiver = new RecordingReceiver();
+        request.attach(receiver);
+
+        IOException cause = new IOException("Connection reset");
+        request.onException(cause);
+        assertEquals(1, receiver.results.size());
+        assertSame(cause, receiver.results.get(0));
+        assertNull(PendingTokenRequest.find(request.getKey()));
+    }
+
+    @Test
+    public void cancelledRequestPassesNothing() {
+        PendingTokenRequest request = PendingTokenRequest.create();
+        RecordingReceiver receiver = new RecordingReceiver();
+        request.attach(receiver);
+
+        request.cancel();
+        request.onException(new CancellationException());
+        assertEquals(0, receiver.results.size());
+        assertNull(PendingTokenRequest.find(request.getKey()));
+    }
+
+    private static class RecordingReceiver implements WebPayListener<Token> {
+        final List<Object> results = new ArrayList<Object>();
+
+        @Override
+        public void onCreate(Token result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onException(Throwable cause) {
+            results.add(cause);
+        }
+    }
+}
@@ -29,7 +29,10 @@ import java.util.concurrent.TimeUnit;
 
 import jp.webpay.android.token.ApiSample;
 import jp.webpay.android.token.ErrorResponseException;
+import jp.webpay.android.token.InterceptedTransport;
 import jp.webpay.android.token.R;
+import jp.webpay.android.token.SynchronousExecutor;
+import jp.webpay.android.token.WebPay;
 import jp.webpay.android.token.model.ErrorResponse;
 import jp.webpay.android.token.ui.field.CvcField;
 import jp.webpay.android.token.ui.field.NumberField;
@@ -50,6 +53,7 @@ public class WebPayTokenFragmentTest {
     private FragmentContainerActivity activity;
     private CountDownLatch latch;
     private WebPayTokenFragment fragment;
+    private InterceptedTransport transport;
     private Button openDialogButton;
     private CardDialogFragment dialogFragment;
     private AlertDialog dialog;
@@ -57,6 +61,10 @@ public class WebPayTokenFragmentTest {
 
     @Before
     public void setUp() throws Exception {
+        transport = new InterceptedTransport();
+        WebPay.setDefaultTransport(transport);
+        WebPay.setDefaultExecutor(new SynchronousExecutor());
+        WebPay.clearAvailabilityCache();
         Robolectric.addPendingHttpResponse(ApiSample.availabilityVMResponse);
 
         activity = Robolectric.buildActivity(FragmentContainerActivity.class).create().visible().start().get();
@@ -80,6 +88,13 @@ public class WebPayTokenFragmentTest {
         assertEquals(getString(R.string.field_name_hint), openDialogButton.getText());
     }
 
+    @Test
+    public void testFragmentPreconnectsWhenDialogIsShown() throws Exception {
+        assertTrue(dialog.isShowing());
+        assertFalse(transport.getPreconnectUrls().isEmpty());
+        assertEquals("https://api.webpay.jp/v1", transport.getPreconnectUrls().get(0));
+    }
+
     @Test
     public void testFragmentShowsAvailableCardTypesFromApi() throws Exception {
         LinearLayout layout = (LinearLayout) dialog.findViewById(R.id.cardTypeIconList);
@@ -0,0 +1,65 @@
+package jp.webpay.android.token.ui.field;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.webpay.android.token.model.CardType;
+import jp.webpay.android.token.ui.RobolectricTestRunnerWithDummyResources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@Config(manifest = "./src/main/AndroidManifestTest.xml", emulateSdk = 18)
+@RunWith(RobolectricTestRunnerWithDummyResources.class)
+public class KeystrokeTracerTest {
+    @Test
+    public void numberFieldRecordsEachPhaseOfKeystrokes() {
+        NumberField field = new NumberField(Robolectric.application);
+        final List<CardType> changes = new ArrayList<CardType>();
+        field.setOnCardTypeChangeListener(new NumberField.OnCardTypeChangeListener() {
+            @Override
+            public void onCardTypeChange(CardType cardType) {
+                changes.add(cardType);
+            }
+        });
+        KeystrokeTracer tracer = new KeystrokeTracer(true);
+        field.setKeystrokeTracer(tracer);
+
+        field.append("4");
+        field.append("2");
+        field.append("4");
+        assertFalse(field.isCurrentValueValid());
+        assertFalse(field.validate());
+
+        assertEquals(3, tracer.getKeystrokeCount());
+        assertEquals(3, tracer.getSnapshot(KeystrokeTracer.Phase.FORMAT).count);
+        assertEquals(3, tracer.getSnapshot(KeystrokeTracer.Phase.SET_TEXT).count);
+        assertEquals(1, tracer.getSnapshot(KeystrokeTracer.Phase.LISTENERS).count);
+        assertEquals(2, tracer.getSnapshot(KeystrokeTracer.Phase.VALIDATE).count);
+        assertEquals(1, changes.size());
+        assertEquals("VALIDATE", tracer.getSnapshot(KeystrokeTracer.Phase.VALIDATE).outcome);
+        // Robolectric runs on a JVM, which does not count allocations through Debug
+        assertFalse(tracer.isCountingAllocations());
+        assertEquals(0, tracer.getAllocationCount());
+    }
+
+    @Test
+    public void fieldWithoutTracerIsNotTraced() {
+        ExpiryField field = new ExpiryField(Robolectric.application);
+        field.append("1");
+        assertEquals("1", field.getText().toString());
+        KeystrokeTracer tracer = new KeystrokeTracer(false);
+        field.setKeystrokeTracer(tracer);
+        field.append("2");
+        field.setKeystrokeTracer(null);
+        field.append("1");
+
+        assertEquals(1, tracer.getKeystrokeCount());
+        assertEquals(0, tracer.getSnapshot(KeystrokeTracer.Phase.LISTENERS).count);
+    }
+}